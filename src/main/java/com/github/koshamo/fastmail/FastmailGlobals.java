@@ -26,6 +26,83 @@ public class FastmailGlobals {
 
 	public static final long FOLDER_REFRESH_MS = 10 * 1000;
 	
+	/* number of messages, whose envelope data is fetched from the server
+	 * with a single FETCH command while listing a folder */
+	public static final int ENVELOPE_FETCH_CHUNK = 500;
+	
+	/* servers terminate IDLE after 30 minutes, so IDLE is restarted before */
+	public static final long IDLE_REARM_MS = 20 * 60 * 1000;
+	
+	/* polling period for servers not supporting IDLE */
+	public static final long NOOP_POLL_MS = 60 * 1000;
+	
+	/* maximum number of connections per account to fetch mail bodies */
+	public static final int MAX_FETCH_CONNECTIONS = 3;
+	
+	/* pooled connections unused for this time are checked before use */
+	public static final long CONNECTION_CHECK_MS = 60 * 1000;
+	
+	/* socket timeout to detect broken server connections */
+	public static final int CONNECTION_TIMEOUT_MS = 30 * 1000;
+	
+	/* the body store of a folder is compacted, if this many bytes are 
+	 * occupied by expunged messages and they exceed the live messages */
+	public static final long BODY_STORE_COMPACT_BYTES = 16 * 1024 * 1024;
+	
+	/* the body store of a folder keeps at most this many bytes of messages,
+	 * the oldest stored messages are evicted to three quarters of it */
+	public static final long BODY_STORE_MAX_BYTES = 256 * 1024 * 1024;
+	
+	/* new mails are delivered to the mail table in batches, a batch is
+	 * delivered after this delay or when it reaches the maximum size */
+	public static final long ADD_MAIL_BATCH_MS = 100;
+	public static final int ADD_MAIL_BATCH_SIZE = 500;
+	
+	/* folders with more mails are matched by the quick filter outside the
+	 * FX thread, checking after each chunk, if the filter has been changed */
+	public static final int QUICK_FILTER_CHUNK = 10000;
+
+	/* folders with more mails are shown by the compact mail list, which
+	 * creates objects only for the rendered rows and caches this many */
+	public static final int COMPACT_MODEL_THRESHOLD = 20000;
+	public static final int COMPACT_VIEW_CACHE = 256;
+	
+	/* folders with more messages are listed page by page from the server,
+	 * until their mail list has been built; pages following a requested
+	 * page are loaded in advance and the latest pages are kept */
+	public static final int PAGED_LISTING_THRESHOLD = 10000;
+	public static final int MAIL_PAGE_SIZE = 200;
+	public static final int MAIL_PAGE_READ_AHEAD = 2;
+	public static final int MAIL_PAGE_CACHE = 20;
+	
+	/* attachments are saved through a direct buffer of this size, read 
+	 * from the server in partial fetches of the chunk size and resumed 
+	 * after broken transfers for the given number of retries */
+	public static final int ATTACHMENT_BUFFER_SIZE = 256 * 1024;
+	public static final int ATTACHMENT_FETCH_CHUNK = 1024 * 1024;
+	public static final int ATTACHMENT_RETRIES = 3;
+	
+	/* number of attachments saved concurrently */
+	public static final int ATTACHMENT_SAVE_THREADS = MAX_FETCH_CONNECTIONS;
+	
+	/* messages larger than this are not downloaded completely to be shown,
+	 * only their text is downloaded and the attachments when saved */
+	public static final int LAZY_BODY_BYTES = 512 * 1024;
+	
+	/* number of mails before and after the selected mail loaded in advance
+	 * and number of loaded mails kept in memory */
+	public static final int BODY_PREFETCH_COUNT = 2;
+	public static final int BODY_PREFETCH_CACHE = 32;
+	
+	/* estimated memory of the parsed mail contents kept strongly, older
+	 * contents are kept softly reachable */
+	public static final long CONTENT_CACHE_BYTES = 32 * 1024 * 1024;
+	
+	/* maximum number of mails listed as search result and maximum number 
+	 * of words of a mail body added to the search index */
+	public static final int SEARCH_MAX_HITS = 1000;
+	public static final int SEARCH_BODY_WORDS = 20000;
+	
 	private FastmailGlobals() {
 		// prevent this class from instantiation
 	}
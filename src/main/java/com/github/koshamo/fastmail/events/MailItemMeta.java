@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.events;
+
+import java.util.Objects;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailItemMeta {
+
+	private final String account;
+	private final String folder;
+	private final long uniqueID;
+	
+	/**
+	 * @param account	the account the mail belongs to
+	 * @param folder	the full name of the folder containing the mail
+	 * @param uniqueID	the unique id of the mail within the folder
+	 */
+	public MailItemMeta(String account, String folder, long uniqueID) {
+		this.account = Objects.requireNonNull(account, "account must not be null");
+		this.folder = Objects.requireNonNull(folder, "folder must not be null");
+		this.uniqueID = uniqueID;
+	}
+
+	/**
+	 * @return the account
+	 */
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return the folder
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the uniqueID
+	 */
+	public long getUniqueID() {
+		return uniqueID;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Objects.hash(account, folder, Long.valueOf(uniqueID));
+	}
+
+	/* A mail is identified by its unique id within its folder only
+	 * 
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof MailItemMeta))
+			return false;
+		MailItemMeta other = (MailItemMeta) obj;
+		return uniqueID == other.uniqueID && account.equals(other.account) 
+				&& folder.equals(other.folder);
+	}
+	
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.events;
+
+import java.util.Objects;
+
+/**
+ * Describes a page of a folder listing, which is loaded from the server
+ * on demand. The rows are numbered from the newest message on, relative 
+ * to the number of messages in the folder, when the listing was shown.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailPageMeta {
+
+	private final String account;
+	private final String folder;
+	private final int total;
+	private final int page;
+	private final int pageSize;
+	
+	/**
+	 * @param account	the account the folder belongs to
+	 * @param folder	the full name of the folder
+	 * @param total		the number of messages in the folder
+	 * @param page		the index of the page
+	 * @param pageSize	the number of rows per page
+	 */
+	public MailPageMeta(String account, String folder, int total, int page, int pageSize) {
+		this.account = Objects.requireNonNull(account, "account must not be null");
+		this.folder = Objects.requireNonNull(folder, "folder must not be null");
+		this.total = total;
+		this.page = page;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return the account
+	 */
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return the folder
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the total
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the page
+	 */
+	public int getPage() {
+		return page;
+	}
+
+	/**
+	 * @return the pageSize
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.events;
+
+import java.util.Objects;
+
+/**
+ * Describes a search for mails. The search is restricted to an account
+ * or a folder of an account, if they are given. The text of mails not 
+ * indexed yet is searched on the server, if a server search is requested.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class SearchMeta {
+
+	private final String account;
+	private final String folder;
+	private final String query;
+	private final boolean serverSearch;
+	
+	/**
+	 * @param account	the account to search in, null for all accounts
+	 * @param folder	the full name of the folder to search in, null for
+	 * all folders
+	 * @param query		the words to search for
+	 */
+	public SearchMeta(String account, String folder, String query) {
+		this(account, folder, query, false);
+	}
+	
+	/**
+	 * @param account		the account to search in, null for all accounts
+	 * @param folder		the full name of the folder to search in, null 
+	 * for all folders
+	 * @param query			the words to search for
+	 * @param serverSearch	true, to search the text of the mails on the server
+	 */
+	public SearchMeta(String account, String folder, String query, 
+			boolean serverSearch) {
+		this.account = account;
+		this.folder = folder;
+		this.query = Objects.requireNonNull(query, "query must not be null");
+		this.serverSearch = serverSearch;
+	}
+
+	/**
+	 * @return the account, null for all accounts
+	 */
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return the folder, null for all folders
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the query
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * @return true, if the text of the mails is searched on the server
+	 */
+	public boolean isServerSearch() {
+		return serverSearch;
+	}
+	
+}
@@ -26,7 +26,7 @@ import com.github.koshamo.fiddler.EventHandler;
  * @author Dr. Jochen Raßler
  *
  */
-public class ShowAddMailEvent extends DataEvent<FolderItemMeta, EmailTableData> {
+public class ShowAddMailEvent extends DataEvent<FolderItemMeta, EmailTableData[]> {
 
 	/**
 	 * @param source
@@ -34,7 +34,7 @@ public class ShowAddMailEvent extends DataEvent<FolderItemMeta, EmailTableData>
 	 * @param meta
 	 * @param data
 	 */
-	public ShowAddMailEvent(EventHandler source, EventHandler target, FolderItemMeta meta, EmailTableData data) {
+	public ShowAddMailEvent(EventHandler source, EventHandler target, FolderItemMeta meta, EmailTableData[] data) {
 		super(source, target, meta, data);
 	}
 
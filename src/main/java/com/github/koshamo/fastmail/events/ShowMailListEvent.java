@@ -18,15 +18,19 @@
 
 package com.github.koshamo.fastmail.events;
 
-import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
 import com.github.koshamo.fiddler.DataEvent;
 import com.github.koshamo.fiddler.EventHandler;
 
 /**
+ * Shows the mail list of a folder. The mails are delivered column by 
+ * column, the receiver owns the columns. The data is null, if the mail 
+ * list is still built.
+ * 
  * @author Dr. Jochen Raßler
  *
  */
-public class ShowMailListEvent extends DataEvent<FolderItemMeta, EmailTableData[]> {
+public class ShowMailListEvent extends DataEvent<FolderItemMeta, MailColumns> {
 
 	/**
 	 * @param source
@@ -34,7 +38,7 @@ public class ShowMailListEvent extends DataEvent<FolderItemMeta, EmailTableData[
 	 * @param meta
 	 * @param data
 	 */
-	public ShowMailListEvent(EventHandler source, EventHandler target, FolderItemMeta meta, EmailTableData[] data) {
+	public ShowMailListEvent(EventHandler source, EventHandler target, FolderItemMeta meta, MailColumns data) {
 		super(source, target, meta, data);
 	}
 
@@ -19,27 +19,63 @@
 package com.github.koshamo.fastmail.gui;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.github.koshamo.fastmail.FastMailGenerals;
+import com.github.koshamo.fastmail.FastmailGlobals;
 import com.github.koshamo.fastmail.events.EditAccountEvent;
 import com.github.koshamo.fastmail.events.EditType;
 import com.github.koshamo.fastmail.events.FolderItemMeta;
 import com.github.koshamo.fastmail.events.FolderItemOrders;
 import com.github.koshamo.fastmail.events.MailAccountOrders;
+import com.github.koshamo.fastmail.events.MailItemMeta;
+import com.github.koshamo.fastmail.events.MailPageMeta;
+import com.github.koshamo.fastmail.events.PrefetchMailEvent;
 import com.github.koshamo.fastmail.events.PropagateFolderTreeEvent;
 import com.github.koshamo.fastmail.events.RequestFolderItemEvent;
+import com.github.koshamo.fastmail.events.RequestMailEvent;
+import com.github.koshamo.fastmail.events.RequestMailPageEvent;
+import com.github.koshamo.fastmail.events.RequestSearchEvent;
+import com.github.koshamo.fastmail.events.SearchMeta;
 import com.github.koshamo.fastmail.events.ShowAddMailEvent;
+import com.github.koshamo.fastmail.events.ShowAddSearchResultEvent;
+import com.github.koshamo.fastmail.events.ShowMailEvent;
 import com.github.koshamo.fastmail.events.ShowMailListEvent;
+import com.github.koshamo.fastmail.events.ShowMailPageEvent;
+import com.github.koshamo.fastmail.events.ShowPagedMailListEvent;
+import com.github.koshamo.fastmail.events.ShowRemoveMailEvent;
+import com.github.koshamo.fastmail.events.ShowSearchResultEvent;
+import com.github.koshamo.fastmail.events.ShowUpdateMailEvent;
+import com.github.koshamo.fastmail.gui.utils.CompactMailList;
 import com.github.koshamo.fastmail.gui.utils.DateCellComparator;
 import com.github.koshamo.fastmail.gui.utils.DateCellFactory;
+import com.github.koshamo.fastmail.gui.utils.PagedMailList;
+import com.github.koshamo.fastmail.gui.utils.QuickFilter;
+import com.github.koshamo.fastmail.gui.utils.SortedMailList;
+import com.github.koshamo.fastmail.gui.utils.ThreadDateCell;
+import com.github.koshamo.fastmail.gui.utils.ThreadTreeItem;
 import com.github.koshamo.fastmail.gui.utils.TreeViewUtils;
 import com.github.koshamo.fastmail.mail.MailAccountData;
+import com.github.koshamo.fastmail.mail.SearchHit;
 import com.github.koshamo.fastmail.util.AccountWrapper;
 import com.github.koshamo.fastmail.util.EmailTableData;
 import com.github.koshamo.fastmail.util.FolderWrapper;
+import com.github.koshamo.fastmail.util.MailColumns;
+import com.github.koshamo.fastmail.util.MailThreader;
+import com.github.koshamo.fastmail.util.MailThreader.Container;
 import com.github.koshamo.fastmail.util.MailTreeViewable;
 import com.github.koshamo.fastmail.util.MessageConsumer;
 import com.github.koshamo.fastmail.util.SerializeManager;
@@ -50,14 +86,20 @@ import com.github.koshamo.fiddler.MessageBus.ListenerType;
 import com.github.koshamo.fiddler.jfx.FiddlerFxApp;
 
 import javafx.application.Platform;
+import javafx.beans.Observable;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
 import javafx.geometry.Orientation;
+import javafx.geometry.Pos;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
@@ -69,13 +111,18 @@ import javafx.scene.control.SeparatorMenuItem;
 import javafx.scene.control.SplitPane;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeTableColumn;
+import javafx.scene.control.TreeTableView;
 import javafx.scene.control.TreeView;
 import javafx.scene.control.cell.CheckBoxTableCell;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.control.cell.TreeItemPropertyValueFactory;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
@@ -112,6 +159,8 @@ public class FastGui extends FiddlerFxApp {
 	Button btnReply;
 	Button btnReplyAll;
 	Button btnDelete;
+	TextField searchField;
+	ChoiceBox<String> searchScope;
 	ContextMenu treeContextMenu;
 	ContextMenu tableContextMenu;
 	
@@ -119,7 +168,44 @@ public class FastGui extends FiddlerFxApp {
 	private TreeItem<MailTreeViewable> rootItem;
 	MailView mailBody;
 	TableView<EmailTableData> folderMailTable;
+	SortedMailList mailModel;
+	FilteredList<EmailTableData> filteredMails;
+	SortedList<EmailTableData> sortedMails;
+	// shows large folders without an object per mail
+	CompactMailList compactModel;
+	PagedMailList pagedModel;
+	MailPageMeta pagedListing;
+	ObservableList<EmailTableData> searchModel;
+	SortedList<EmailTableData> sortedHits;
+	// the folders of the shown search hits, null if no search result is shown
+	Map<EmailTableData, SearchHit> searchHits;
 	TreeView<MailTreeViewable> accountTree;
+	TextField filterField;
+	CheckBox unreadFilter;
+	CheckBox threadToggle;
+	TreeTableView<EmailTableData> threadTable;
+	// the threads of the shown folder, null if the mail table is shown
+	MailThreader threader;
+	// set, if the shown folder is grouped by conversation threads
+	volatile boolean threadView;
+	// the items of the shown threads keyed by the root of their thread
+	final Map<Container, ThreadTreeItem> threadItems = new HashMap<>();
+	// set, while the thread view is updated, so the selection is kept
+	boolean updatingThreads;
+	// the mail requested to be shown, whichever view it was selected in
+	MailItemMeta requestedMail;
+	private VBox folderPane;
+	private ScrollPane mailScroller;
+	private ScrollPane threadScroller;
+	// counts the changes of the filter, so outdated matching is stopped
+	volatile int filterGeneration;
+	// matches the rows of large folders outside the FX thread
+	private static final ExecutorService FILTER = 
+			Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "QuickFilter"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			});
 
 	
 
@@ -313,8 +399,27 @@ public class FastGui extends FiddlerFxApp {
 			deleteMail();
 		});
 		btnDelete.setDisable(true);
+		// SEARCH field, searches the selected folder or account or all accounts
+		final Region spacer = new Region();
+		HBox.setHgrow(spacer, Priority.ALWAYS);
+		searchScope = new ChoiceBox<>(FXCollections.observableArrayList(
+				i18n.getString("entry.search.folder"), //$NON-NLS-1$
+				i18n.getString("entry.search.account"), //$NON-NLS-1$
+				i18n.getString("entry.search.all"))); //$NON-NLS-1$
+		searchScope.getSelectionModel().select(0);
+		searchField = new TextField();
+		searchField.setPromptText(i18n.getString("entry.search")); //$NON-NLS-1$
+		searchField.setPrefColumnCount(25);
+		searchField.setOnAction(ev -> search(false));
+		// the text of mails not indexed yet is searched on explicit request
+		final Button btnSearchServer = new Button(
+				i18n.getString("entry.search.server")); //$NON-NLS-1$
+		btnSearchServer.setOnAction(ev -> search(true));
+		final HBox searchBox = new HBox(5, searchScope, searchField, btnSearchServer);
+		searchBox.setAlignment(Pos.CENTER_RIGHT);
 		
-		hbox.getChildren().addAll(btnNew, btnReply, btnReplyAll, btnDelete);
+		hbox.getChildren().addAll(btnNew, btnReply, btnReplyAll, btnDelete, 
+				spacer, searchBox);
 		return hbox;
 	}
 
@@ -330,13 +435,17 @@ public class FastGui extends FiddlerFxApp {
 		// the body must be build upside down, as we use Splitter
 
 		// upper right side:
-		final ScrollPane folderScroller = buildTableView();
+		mailScroller = buildTableView();
+		VBox.setVgrow(mailScroller, Priority.ALWAYS);
+		threadScroller = buildThreadView();
+		VBox.setVgrow(threadScroller, Priority.ALWAYS);
+		folderPane = new VBox(buildFilterBar(), mailScroller);
 		
 		// lower side: message body
 		mailBody = new MailView();
 
 		// build right side
-		final SplitPane mailfolderSplitter = new SplitPane(folderScroller, mailBody);
+		final SplitPane mailfolderSplitter = new SplitPane(folderPane, mailBody);
 		mailfolderSplitter.setDividerPosition(0, 0.4);
 		mailfolderSplitter.setOrientation(Orientation.VERTICAL);
 		
@@ -351,6 +460,247 @@ public class FastGui extends FiddlerFxApp {
 	}
 
 	
+	/**
+	 * Builds the quick filter bar above the mail table, which filters the
+	 * shown folder by sender and subject and by the read state
+	 * 
+	 * @return	the filter bar
+	 */
+	private Node buildFilterBar() {
+		filterField = new TextField();
+		filterField.setPromptText(i18n.getString("entry.filter")); //$NON-NLS-1$
+		filterField.textProperty().addListener((obs, oldVal, newVal) -> applyFilter());
+		HBox.setHgrow(filterField, Priority.ALWAYS);
+		unreadFilter = new CheckBox(i18n.getString("entry.filter.unread")); //$NON-NLS-1$
+		unreadFilter.selectedProperty().addListener((obs, oldVal, newVal) -> applyFilter());
+		threadToggle = new CheckBox(i18n.getString("entry.threads")); //$NON-NLS-1$
+		threadToggle.selectedProperty().addListener(
+				(obs, oldVal, newVal) -> showThreadView(newVal.booleanValue()));
+		// the thread view shows the whole folder
+		filterField.disableProperty().bind(threadToggle.selectedProperty());
+		unreadFilter.disableProperty().bind(threadToggle.selectedProperty());
+		final HBox filterBar = new HBox(5, filterField, unreadFilter, threadToggle);
+		filterBar.setAlignment(Pos.CENTER_LEFT);
+		return filterBar;
+	}
+	
+	/**
+	 * Switches between the mail table and the thread view. The threads are
+	 * built from the mail list of the folder, so the list is requested 
+	 * again.
+	 * 
+	 * @param threads	true to show the thread view
+	 */
+	private void showThreadView(final boolean threads) {
+		threadView = threads;
+		folderPane.getChildren().set(1, threads ? threadScroller : mailScroller);
+		threader = null;
+		threadTable.setRoot(null);
+		TreeItem<MailTreeViewable> curItem = 
+				accountTree.getSelectionModel().getSelectedItem();
+		if (threads && curItem != null && !curItem.getValue().isAccount())
+			propagateFolderSelected();
+	}
+	
+	/**
+	 * Shows the threads of a folder, the thread with the newest mail on top
+	 * 
+	 * @param threads	the threads of the shown folder, may be null
+	 */
+	private void showThreads(final MailThreader threads) {
+		threader = threadView ? threads : null;
+		threadItems.clear();
+		if (threader == null) {
+			threadTable.setRoot(null);
+			return;
+		}
+		List<Container> roots = threader.getThreads();
+		List<TreeItem<EmailTableData>> items = new ArrayList<>(roots.size());
+		for (Container thread : roots) {
+			ThreadTreeItem item = ThreadTreeItem.of(thread);
+			if (item != null) {
+				items.add(item);
+				threadItems.put(thread, item);
+			}
+		}
+		final TreeItem<EmailTableData> root = new TreeItem<>();
+		root.getChildren().setAll(items);
+		threadTable.setRoot(root);
+	}
+	
+	/**
+	 * Updates the items of the threads changed by added or removed mails.
+	 * The other threads keep their items, so they stay expanded, and the
+	 * changed threads are moved to the position of their newest mail.
+	 * 
+	 * @param changed	the root containers of the changed threads
+	 */
+	private void updateThreads(final Set<Container> changed) {
+		final ObservableList<TreeItem<EmailTableData>> items = 
+				threadTable.getRoot().getChildren();
+		final TreeItem<EmailTableData> selected = 
+				threadTable.getSelectionModel().getSelectedItem();
+		updatingThreads = true;
+		// threads linked into other threads are shown by those
+		Set<TreeItem<EmailTableData>> stale = new HashSet<>();
+		for (Container former : threader.takeDetached()) {
+			ThreadTreeItem item = threadItems.remove(former);
+			if (item != null)
+				stale.add(item);
+		}
+		List<ThreadTreeItem> updated = new ArrayList<>(changed.size());
+		for (Container thread : changed) {
+			if (!thread.isRoot())
+				continue;
+			ThreadTreeItem item = threadItems.remove(thread);
+			if (item != null)
+				stale.add(item);
+			item = ThreadTreeItem.update(item, thread);
+			if (item != null) {
+				threadItems.put(thread, item);
+				updated.add(item);
+			}
+		}
+		items.removeAll(stale);
+		for (ThreadTreeItem item : updated)
+			items.add(threadIndex(items, item.getLatest()), item);
+		// the selected mail may have been moved with its thread
+		if (selected != null && isInThreadView(selected))
+			threadTable.getSelectionModel().select(selected);
+		updatingThreads = false;
+	}
+	
+	/**
+	 * @param items		the root items of the thread view, newest first
+	 * @param latest	the date of the newest mail of a thread
+	 * @return			the position of the thread
+	 */
+	private static int threadIndex(final List<TreeItem<EmailTableData>> items, 
+			final long latest) {
+		int low = 0;
+		int high = items.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (((ThreadTreeItem) items.get(mid)).getLatest() >= latest)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * @param item	an item of the thread view
+	 * @return		true, if the item is still part of the shown threads
+	 */
+	private boolean isInThreadView(final TreeItem<EmailTableData> item) {
+		TreeItem<EmailTableData> root = item;
+		while (root.getParent() != null)
+			root = root.getParent();
+		return root == threadTable.getRoot();
+	}
+	
+	/**
+	 * Applies the text and state of the filter bar to the shown folder.
+	 * <p>
+	 * Small folders are filtered by the FilteredList directly. The rows of
+	 * large folders are matched in chunks outside the FX thread, the 
+	 * FilteredList then only looks up the results. Mails added meanwhile 
+	 * are matched, when they are added. Only the text is looked up, the 
+	 * read state is tested by the predicate itself, as it changes, while 
+	 * the folder is shown.
+	 * <p>
+	 * The compact model of large folders is filtered by the rows of its
+	 * columns the same way.
+	 */
+	void applyFilter() {
+		final QuickFilter filter = 
+				new QuickFilter(filterField.getText(), unreadFilter.isSelected());
+		final int generation = ++filterGeneration;
+		if (folderMailTable.getItems() == compactModel) {
+			applyCompactFilter(filter, generation);
+			return;
+		}
+		if (filter.isEmpty() || mailModel.size() <= FastmailGlobals.QUICK_FILTER_CHUNK) {
+			filteredMails.setPredicate(filter.isEmpty() ? null : filter);
+			return;
+		}
+		final EmailTableData[] rows = mailModel.toArray(new EmailTableData[0]);
+		FILTER.execute(() -> {
+			// compact open addressing, no entry objects per row
+			final Map<EmailTableData, Boolean> results = new IdentityHashMap<>(rows.length);
+			for (int start = 0; start < rows.length; 
+					start += FastmailGlobals.QUICK_FILTER_CHUNK) {
+				// the user changed the filter meanwhile
+				if (generation != filterGeneration)
+					return;
+				int end = Math.min(rows.length, start + FastmailGlobals.QUICK_FILTER_CHUNK);
+				for (int row = start; row < end; ++row)
+					results.put(rows[row], Boolean.valueOf(filter.matchesText(rows[row])));
+			}
+			Platform.runLater(() -> {
+				if (generation != filterGeneration)
+					return;
+				filteredMails.setPredicate(mail -> {
+					if (!filter.matchesState(mail))
+						return false;
+					Boolean matched = results.get(mail);
+					return matched != null ? matched.booleanValue() : filter.matchesText(mail);
+				});
+			});
+		});
+	}
+	
+	/**
+	 * Matches the text of the filter against the rows of the compact model
+	 * outside the FX thread, rows added meanwhile are matched, when they
+	 * are tested
+	 * 
+	 * @param filter		the filter to apply
+	 * @param generation	the generation of the filter
+	 */
+	private void applyCompactFilter(final QuickFilter filter, final int generation) {
+		if (filter.isEmpty()) {
+			compactModel.setFilter(null);
+			return;
+		}
+		final MailColumns mails = compactModel.getMails();
+		final int matched = mails.size();
+		FILTER.execute(() -> {
+			final BitSet results = new BitSet(matched);
+			for (int start = 0; start < matched; 
+					start += FastmailGlobals.QUICK_FILTER_CHUNK) {
+				// the user changed the filter meanwhile
+				if (generation != filterGeneration)
+					return;
+				int end = Math.min(matched, start + FastmailGlobals.QUICK_FILTER_CHUNK);
+				for (int row = start; row < end; ++row)
+					if (filter.matchesText(mails.getSubject(row), 
+							mails.getFromName(row), mails.getFrom(row)))
+						results.set(row);
+			}
+			Platform.runLater(() -> {
+				if (generation != filterGeneration || compactModel.getMails() != mails)
+					return;
+				compactModel.setFilter(row -> {
+					if (!filter.matchesState(mails.isRead(row)))
+						return false;
+					return row < matched ? results.get(row) : filter.matchesText(
+							mails.getSubject(row), mails.getFromName(row), mails.getFrom(row));
+				});
+			});
+		});
+	}
+	
+	/**
+	 * Clears the filter bar, e.g. if another folder is selected
+	 */
+	private void resetFilter() {
+		filterField.clear();
+		unreadFilter.setSelected(false);
+	}
+	
+	
 	/**
 	 * Builds the TableView representing the mail folders content
 	 * and returns the content in a ScrollPane
@@ -359,6 +709,25 @@ public class FastGui extends FiddlerFxApp {
 	private ScrollPane buildTableView() {
 		// upper right side: folder
 		folderMailTable = new TableView<>();
+		// the table sorts by column on a SortedList, the model keeps its own order
+		mailModel = new SortedMailList();
+		filteredMails = new FilteredList<>(mailModel);
+		sortedMails = new SortedList<>(filteredMails);
+		sortedMails.comparatorProperty().bind(folderMailTable.comparatorProperty());
+		folderMailTable.setItems(sortedMails);
+		compactModel = new CompactMailList();
+		searchModel = FXCollections.observableArrayList();
+		sortedHits = new SortedList<>(searchModel);
+		sortedHits.comparatorProperty().bind(folderMailTable.comparatorProperty());
+		folderMailTable.setSortPolicy(table -> {
+			if (table.getItems() == pagedModel)
+				return Boolean.valueOf(table.getSortOrder().isEmpty());
+			if (table.getItems() == compactModel) {
+				sortCompactModel();
+				return Boolean.TRUE;
+			}
+			return TableView.DEFAULT_SORT_POLICY.call(table);
+		});
 		folderMailTable.setEditable(true);	
 		folderMailTable.setPlaceholder(new Label(i18n.getString("entry.default.mailtable"))); //$NON-NLS-1$
 		tableContextMenu = new ContextMenu();
@@ -399,6 +768,15 @@ public class FastGui extends FiddlerFxApp {
 ////						MailTools.analyzeContent(newVal.getMessage());
 //					}
 //				});
+		// a change listener misses the selection of a search hit, that 
+		// equals the previous one, but is stored in another folder
+		folderMailTable.getSelectionModel().selectedItemProperty().addListener(
+				(Observable obs) -> {
+					EmailTableData selected = 
+							folderMailTable.getSelectionModel().getSelectedItem();
+					if (selected != null)
+						propagateMailSelected(selected);
+				});
 
 		final ScrollPane folderScroller = new ScrollPane(folderMailTable);
 		folderScroller.setFitToHeight(true);
@@ -407,6 +785,64 @@ public class FastGui extends FiddlerFxApp {
 		return folderScroller;
 	}
 
+	/**
+	 * Sorts the compact model by the sort order of the table. The columns
+	 * are identified by the property they show.
+	 */
+	private void sortCompactModel() {
+		List<TableColumn<EmailTableData, ?>> columns = folderMailTable.getSortOrder();
+		String[] properties = new String[columns.size()];
+		boolean[] ascending = new boolean[columns.size()];
+		for (int i = 0; i < properties.length; ++i) {
+			TableColumn<EmailTableData, ?> column = columns.get(i);
+			Object factory = column.getCellValueFactory();
+			properties[i] = factory instanceof PropertyValueFactory 
+					? ((PropertyValueFactory<?, ?>) factory).getProperty() : ""; //$NON-NLS-1$
+			ascending[i] = column.getSortType() == TableColumn.SortType.ASCENDING;
+		}
+		compactModel.sortBy(properties, ascending);
+	}
+	
+	/**
+	 * Builds the TreeTableView showing the mails of a folder grouped by 
+	 * conversation threads and returns it in a ScrollPane
+	 * 
+	 * @return	the ScrollPane representing the TreeTableView
+	 */
+	private ScrollPane buildThreadView() {
+		threadTable = new TreeTableView<>();
+		threadTable.setShowRoot(false);
+		threadTable.setPlaceholder(new Label(i18n.getString("entry.default.mailtable"))); //$NON-NLS-1$
+		// the threads keep their order, the newest activity on top
+		final TreeTableColumn<EmailTableData, String> subjectCol = 
+				new TreeTableColumn<>(i18n.getString("entry.subject")); //$NON-NLS-1$
+		subjectCol.setCellValueFactory(new TreeItemPropertyValueFactory<>("subject")); //$NON-NLS-1$
+		subjectCol.setMinWidth(400);
+		subjectCol.setSortable(false);
+		final TreeTableColumn<EmailTableData, String> fromCol = 
+				new TreeTableColumn<>(i18n.getString("entry.from")); //$NON-NLS-1$
+		fromCol.setCellValueFactory(new TreeItemPropertyValueFactory<>("fromName")); //$NON-NLS-1$
+		fromCol.setMinWidth(250);
+		fromCol.setSortable(false);
+		final TreeTableColumn<EmailTableData, String> dateCol = 
+				new TreeTableColumn<>(i18n.getString("entry.date")); //$NON-NLS-1$
+		dateCol.setCellValueFactory(new TreeItemPropertyValueFactory<>("sentDate")); //$NON-NLS-1$
+		dateCol.setCellFactory((TreeTableColumn<EmailTableData, String> p) -> new ThreadDateCell());
+		dateCol.setMinWidth(150);
+		dateCol.setSortable(false);
+		threadTable.getColumns().addAll(Arrays.asList(subjectCol, fromCol, dateCol));
+		threadTable.getSelectionModel().selectedItemProperty().addListener(
+				(obs, oldVal, newVal) -> {
+					if (!updatingThreads && newVal != null && newVal.getValue() != null)
+						propagateMailSelected(newVal.getValue());
+				});
+		
+		final ScrollPane scroller = new ScrollPane(threadTable);
+		scroller.setFitToHeight(true);
+		scroller.setFitToWidth(true);
+		return scroller;
+	}
+
 	/**
 	 * @return
 	 */
@@ -715,6 +1151,27 @@ public class FastGui extends FiddlerFxApp {
 		if (event instanceof ShowAddMailEvent) {
 			handleShowAddMailEvent((ShowAddMailEvent) event);
 		}
+		if (event instanceof ShowRemoveMailEvent) {
+			handleShowRemoveMailEvent((ShowRemoveMailEvent) event);
+		}
+		if (event instanceof ShowUpdateMailEvent) {
+			handleShowUpdateMailEvent((ShowUpdateMailEvent) event);
+		}
+		if (event instanceof ShowPagedMailListEvent) {
+			handleShowPagedMailListEvent((ShowPagedMailListEvent) event);
+		}
+		if (event instanceof ShowMailPageEvent) {
+			handleShowMailPageEvent((ShowMailPageEvent) event);
+		}
+		if (event instanceof ShowMailEvent) {
+			handleShowMailEvent((ShowMailEvent) event);
+		}
+		if (event instanceof ShowSearchResultEvent) {
+			handleShowSearchResultEvent((ShowSearchResultEvent) event);
+		}
+		if (event instanceof ShowAddSearchResultEvent) {
+			handleShowAddSearchResultEvent((ShowAddSearchResultEvent) event);
+		}
 	}
 
 	/**
@@ -764,17 +1221,63 @@ public class FastGui extends FiddlerFxApp {
 		// check, if folder still selected
 		if (mtv.getFullName().endsWith(smle.getMetaInformation().getOriginalFolder())) {
 			if (smle.getData() == null) {
-				Platform.runLater(
-						() -> folderMailTable.setPlaceholder(new Label("Mails still loading")));
+				Platform.runLater(() -> {
+					mailModel.clear();
+					compactModel.clear();
+					showThreads(null);
+					folderMailTable.setPlaceholder(new Label("Mails still loading"));
+				});
+			} else if (smle.getData().size() > FastmailGlobals.COMPACT_MODEL_THRESHOLD) {
+				// large folders keep the columns, sorted outside the FX thread
+				MailColumns columns = smle.getData();
+				int[] rows = CompactMailList.sortNatural(columns);
+				// the thread view needs every mail as object, but only if shown
+				MailThreader threads = threadView 
+						? new MailThreader(Arrays.asList(columns.toArray())) : null;
+				Platform.runLater(() -> {
+					pagedModel = null;
+					mailModel.clear();
+					showThreads(threads);
+					compactModel.setAll(columns, rows);
+					showMailModel(compactModel);
+				});
 			} else {
-				ObservableList<EmailTableData> mailList = 
-						FXCollections.observableArrayList(smle.getData());
-				mailList.sort(null);
-				folderMailTable.setItems(mailList);
+				// sort outside the FX thread, the model takes the sorted mails
+				EmailTableData[] mails = smle.getData().toArray();
+				Arrays.sort(mails);
+				// the threads are built in nearly linear time, but only if shown
+				MailThreader threads = 
+						threadView ? new MailThreader(Arrays.asList(mails)) : null;
+				// the model shares the rows with the threads
+				Platform.runLater(() -> {
+					pagedModel = null;
+					compactModel.clear();
+					showThreads(threads);
+					mailModel.setAllSorted(Arrays.asList(mails));
+					showMailModel(sortedMails);
+				});
 			}
 		}
 	}
 	
+	/**
+	 * Shows the model of a folder in the table, unless a search result is 
+	 * shown. The compact model is sorted by the table and filtered again, 
+	 * as it dropped the filter of the former mail list.
+	 * 
+	 * @param model	the model of the folder
+	 */
+	private void showMailModel(final ObservableList<EmailTableData> model) {
+		if (searchHits != null)
+			return;
+		if (folderMailTable.getItems() != model)
+			folderMailTable.setItems(model);
+		if (model == compactModel) {
+			sortCompactModel();
+			applyFilter();
+		}
+	}
+	
 	/**
 	 * @param event
 	 */
@@ -784,11 +1287,262 @@ public class FastGui extends FiddlerFxApp {
 				accountTree.getSelectionModel().getSelectedItem().getValue();
 		// check, if folder still selected
 		if (mtv.getFullName().endsWith(meta.getOriginalFolder())) {
-			ObservableList<EmailTableData> mailList = folderMailTable.getItems();
-			Platform.runLater(() -> mailList.add(event.getData()));
-			Platform.runLater(() -> mailList.sort(null));
+			// the batch is sorted already, so it is merged in linear time
+			List<EmailTableData> batch = Arrays.asList(event.getData());
+			Platform.runLater(() -> {
+				// the paged listing is replaced, when all mails are known, 
+				// mails shown with the complete mail list already are skipped
+				List<EmailTableData> added;
+				if (folderMailTable.getItems() == sortedMails)
+					added = mailModel.merge(batch);
+				else if (folderMailTable.getItems() == compactModel)
+					added = compactModel.merge(batch);
+				else
+					added = batch;
+				if (threader != null) {
+					Set<Container> changed = new HashSet<>();
+					for (EmailTableData mail : added)
+						changed.add(threader.add(mail));
+					updateThreads(changed);
+				}
+			});
 		}
 	}
+	
+	/**
+	 * @param event
+	 */
+	private void handleShowRemoveMailEvent(ShowRemoveMailEvent event) {
+		FolderItemMeta meta = event.getMetaInformation();
+		MailTreeViewable mtv = 
+				accountTree.getSelectionModel().getSelectedItem().getValue();
+		// check, if folder still selected
+		if (mtv.getFullName().endsWith(meta.getOriginalFolder())) {
+			// hashed, so the removal is a single pass over the table items
+			Set<EmailTableData> removed = new HashSet<>(Arrays.asList(event.getData()));
+			Platform.runLater(() -> {
+				if (folderMailTable.getItems() == sortedMails)
+					mailModel.removeAll(removed);
+				else if (folderMailTable.getItems() == compactModel)
+					compactModel.removeAll(removed);
+				if (threader != null) {
+					Set<Container> changed = new HashSet<>();
+					for (EmailTableData mail : removed) {
+						Container thread = threader.remove(mail);
+						if (thread != null)
+							changed.add(thread);
+					}
+					updateThreads(changed);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * The read or marked state of the mails has been changed on the server.
+	 * The shown mails take over the state and the filter tests them again, 
+	 * e.g. a mail read meanwhile is hidden by the unread filter.
+	 * 
+	 * @param event
+	 */
+	private void handleShowUpdateMailEvent(ShowUpdateMailEvent event) {
+		FolderItemMeta meta = event.getMetaInformation();
+		MailTreeViewable mtv = 
+				accountTree.getSelectionModel().getSelectedItem().getValue();
+		// check, if folder still selected
+		if (mtv.getFullName().endsWith(meta.getOriginalFolder())) {
+			List<EmailTableData> changed = Arrays.asList(event.getData());
+			Platform.runLater(() -> {
+				if (folderMailTable.getItems() == sortedMails)
+					mailModel.refresh(changed);
+				else if (folderMailTable.getItems() == compactModel)
+					compactModel.updateFlags(changed);
+				updateSearchHits(meta, changed);
+			});
+		}
+	}
+	
+	/**
+	 * Takes over the changed state for the shown search hits of the folder
+	 * 
+	 * @param meta		the folder of the changed mails
+	 * @param changed	the mails with their new state
+	 */
+	private void updateSearchHits(final FolderItemMeta meta, 
+			final List<EmailTableData> changed) {
+		if (searchHits == null)
+			return;
+		Map<EmailTableData, EmailTableData> states = new HashMap<>();
+		for (EmailTableData mail : changed)
+			states.put(mail, mail);
+		for (SearchHit hit : searchHits.values()) {
+			EmailTableData state = states.get(hit.getMail());
+			if (state != null && hit.getAccount().equals(meta.getAccount())
+					&& hit.getFolder().equals(meta.getOriginalFolder())) {
+				hit.getMail().setRead(state.isRead());
+				hit.getMail().setMarked(state.isMarked());
+			}
+		}
+	}
+	
+	/**
+	 * Shows a folder, whose mails are still read from the server, with all
+	 * its rows, which are loaded page by page as the user scrolls
+	 * 
+	 * @param event
+	 */
+	private void handleShowPagedMailListEvent(ShowPagedMailListEvent event) {
+		FolderItemMeta meta = event.getMetaInformation();
+		MailTreeViewable mtv = 
+				accountTree.getSelectionModel().getSelectedItem().getValue();
+		// check, if folder still selected
+		if (mtv.getFullName().endsWith(meta.getOriginalFolder())) {
+			final int total = event.getData().intValue();
+			final MailPageMeta listing = new MailPageMeta(meta.getAccount(), 
+					meta.getOriginalFolder(), total, 0, FastmailGlobals.MAIL_PAGE_SIZE);
+			Platform.runLater(() -> {
+				mailModel.clear();
+				compactModel.clear();
+				// the threads are built, when the mail list is complete
+				showThreads(null);
+				pagedListing = listing;
+				pagedModel = new PagedMailList(total, listing.getPageSize(), 
+						page -> propagateEvent(new RequestMailPageEvent(this, null, 
+								new MailPageMeta(listing.getAccount(), listing.getFolder(), 
+										total, page, listing.getPageSize()))));
+				if (searchHits == null) {
+					folderMailTable.getSortOrder().clear();
+					folderMailTable.setItems(pagedModel);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param event
+	 */
+	private void handleShowMailPageEvent(ShowMailPageEvent event) {
+		MailPageMeta meta = event.getMetaInformation();
+		Platform.runLater(() -> {
+			// check, if the listing of the page is still shown
+			if (folderMailTable.getItems() == pagedModel 
+					&& pagedListing.getAccount().equals(meta.getAccount())
+					&& pagedListing.getFolder().equals(meta.getFolder())
+					&& pagedListing.getTotal() == meta.getTotal())
+				pagedModel.setPage(meta.getPage(), event.getData());
+		});
+	}
+	
+	/**
+	 * @param event
+	 */
+	private void handleShowMailEvent(ShowMailEvent event) {
+		MailItemMeta meta = event.getMetaInformation();
+		Platform.runLater(() -> {
+			// check, if mail still selected
+			if (meta.equals(requestedMail))
+				mailBody.setContent(event.getData());
+		});
+	}
+
+
+	/**
+	 * Shows the hits of a search in the mail table, if the search is still
+	 * the current one
+	 * 
+	 * @param event
+	 */
+	private void handleShowSearchResultEvent(ShowSearchResultEvent event) {
+		SearchMeta meta = event.getMetaInformation();
+		Map<EmailTableData, SearchHit> hits = new IdentityHashMap<>();
+		EmailTableData[] mails = new EmailTableData[event.getData().length];
+		for (int i = 0; i < mails.length; ++i) {
+			mails[i] = event.getData()[i].getMail();
+			hits.put(mails[i], event.getData()[i]);
+		}
+		Platform.runLater(() -> {
+			if (!meta.getQuery().equals(searchField.getText().trim()))
+				return;
+			searchHits = hits;
+			searchModel.setAll(mails);
+			folderMailTable.setPlaceholder(
+					new Label(i18n.getString("entry.search.nohits"))); //$NON-NLS-1$
+			if (folderMailTable.getItems() != sortedHits) {
+				// the paged model leaves the sort order empty
+				folderMailTable.setItems(sortedHits);
+			}
+			setComponentsForNoMailSelected();
+		});
+	}
+	
+	/**
+	 * Adds the hits found on the server to the shown search result. The
+	 * hits of the index and the server are kept in a single list, the 
+	 * newest mail first. The hits are inserted, instead of replacing the
+	 * list, as the table would select the hit equal to the selected one
+	 * again, which may be a mail of another folder.
+	 * 
+	 * @param event
+	 */
+	private void handleShowAddSearchResultEvent(ShowAddSearchResultEvent event) {
+		SearchMeta meta = event.getMetaInformation();
+		SearchHit[] found = event.getData();
+		Platform.runLater(() -> {
+			// the hits of the index are shown first, hits of an old search
+			// are dropped
+			if (searchHits == null 
+					|| !meta.getQuery().equals(searchField.getText().trim()))
+				return;
+			for (SearchHit hit : found) {
+				searchHits.put(hit.getMail(), hit);
+				int pos = Collections.binarySearch(searchModel, hit.getMail());
+				searchModel.add(pos < 0 ? -pos - 1 : pos, hit.getMail());
+			}
+		});
+	}
+	
+	/**
+	 * Requests the mails matching the text of the search field in the 
+	 * chosen scope. An empty search field shows the selected folder again.
+	 * 
+	 * @param serverSearch	true, to search the text of the mails, which
+	 * has not been indexed, on the server
+	 */
+	void search(boolean serverSearch) {
+		String query = searchField.getText().trim();
+		TreeItem<MailTreeViewable> curItem = 
+				accountTree.getSelectionModel().getSelectedItem();
+		if (query.isEmpty()) {
+			if (searchHits != null && curItem != null)
+				propagateFolderSelected();
+			return;
+		}
+		// the hits are shown in the mail table
+		threadToggle.setSelected(false);
+		String account = null;
+		String folder = null;
+		int scope = searchScope.getSelectionModel().getSelectedIndex();
+		if (scope < 2 && curItem != null) {
+			account = getAccountName(curItem);
+			if (scope == 0 && !curItem.getValue().isAccount())
+				folder = curItem.getValue().getFullName();
+		}
+		propagateEvent(new RequestSearchEvent(this, null, 
+				new SearchMeta(account, folder, query, serverSearch)));
+	}
+	
+	/**
+	 * Leaves the search result, so the mail table shows folders again
+	 */
+	private void endSearch() {
+		if (searchHits == null)
+			return;
+		searchHits = null;
+		searchModel.clear();
+		searchField.clear();
+		folderMailTable.setPlaceholder(
+				new Label(i18n.getString("entry.default.mailtable"))); //$NON-NLS-1$
+	}
 
 
 	/* (non-Javadoc)
@@ -803,6 +1557,7 @@ public class FastGui extends FiddlerFxApp {
 	 * 
 	 */
 	void setComponentsForNoMailSelected() {
+		requestedMail = null;
 		mailBody.clear();
 		btnReply.setDisable(true);
 		btnReplyAll.setDisable(true);
@@ -820,6 +1575,8 @@ public class FastGui extends FiddlerFxApp {
 	 * 
 	 */
 	void propagateFolderSelected() {
+		endSearch();
+		resetFilter();
 		TreeItem<MailTreeViewable> curItem = 
 				accountTree.getSelectionModel().getSelectedItem();
 		String curFolder = curItem.getValue().getFullName();
@@ -829,6 +1586,76 @@ public class FastGui extends FiddlerFxApp {
 
 	}
 	
+	/**
+	 * @param mail	the mail selected in the table
+	 */
+	void propagateMailSelected(EmailTableData mail) {
+		String curFolder;
+		String account;
+		SearchHit hit = searchHits != null ? searchHits.get(mail) : null;
+		if (hit != null) {
+			// search hits may be stored in any folder
+			curFolder = hit.getFolder();
+			account = hit.getAccount();
+		} else {
+			TreeItem<MailTreeViewable> curItem = 
+					accountTree.getSelectionModel().getSelectedItem();
+			if (curItem == null)
+				return;
+			curFolder = curItem.getValue().getFullName();
+			account = getAccountName(curItem);
+		}
+		btnReply.setDisable(false);
+		btnReplyAll.setDisable(false);
+		btnDelete.setDisable(false);
+		mailBody.showHeader(mail);
+		MailItemMeta meta = new MailItemMeta(account, curFolder, mail.getUniqueID());
+		requestedMail = meta;
+		propagateEvent(new RequestMailEvent(this, null, meta));
+		prefetchNeighbours(account, curFolder);
+	}
+	
+	/**
+	 * Requests the mails next to the selected mail to be loaded in the 
+	 * background, the following mails first
+	 * 
+	 * @param account	the account of the shown folder
+	 * @param folder	the shown folder
+	 */
+	private void prefetchNeighbours(String account, String folder) {
+		// the neighbours are the rows shown next to the selection
+		final boolean threads = threadView;
+		int index = threads 
+				? threadTable.getSelectionModel().getSelectedIndex()
+				: folderMailTable.getSelectionModel().getSelectedIndex();
+		List<EmailTableData> items = folderMailTable.getItems();
+		int size = threads ? threadTable.getExpandedItemCount() : items.size();
+		if (index < 0)
+			return;
+		for (int i = 1; i <= FastmailGlobals.BODY_PREFETCH_COUNT; ++i) {
+			for (int neighbour : new int[] {index + i, index - i}) {
+				if (neighbour < 0 || neighbour >= size)
+					continue;
+				EmailTableData mail;
+				if (threads) {
+					TreeItem<EmailTableData> item = threadTable.getTreeItem(neighbour);
+					mail = item != null ? item.getValue() : null;
+				} else
+					mail = items.get(neighbour);
+				// rows of a paged listing may not be loaded yet
+				if (mail == null)
+					continue;
+				SearchHit hit = searchHits != null ? searchHits.get(mail) : null;
+				if (hit != null)
+					propagateEvent(new PrefetchMailEvent(this, null, new MailItemMeta(
+							hit.getAccount(), hit.getFolder(), mail.getUniqueID())));
+				else
+					propagateEvent(new PrefetchMailEvent(this, null, 
+							new MailItemMeta(account, folder, mail.getUniqueID())));
+			}
+		}
+	}
+	
 	private static String getAccountName(TreeItem<MailTreeViewable> item) {
 		TreeItem<MailTreeViewable> curItem = item;
 		while (!curItem.getValue().isAccount())
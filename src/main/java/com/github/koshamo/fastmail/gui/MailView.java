@@ -19,24 +19,21 @@
 
 package com.github.koshamo.fastmail.gui;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.ResourceBundle;
-
-import javax.mail.Folder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.github.koshamo.fastmail.mail.AttachmentData;
+import com.github.koshamo.fastmail.mail.AttachmentSaver;
 import com.github.koshamo.fastmail.mail.MailData;
+import com.github.koshamo.fastmail.mail.Recipients.Recipient;
+import com.github.koshamo.fastmail.util.EmailTableData;
 import com.github.koshamo.fastmail.util.MessageItem;
 import com.github.koshamo.fastmail.util.MessageMarket;
 import com.github.koshamo.fastmail.util.SerializeManager;
 
-import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
@@ -110,14 +107,87 @@ public class MailView extends StackPane {
 		saveAsBtn.setDisable(true);
 		saveAllBtn.setDisable(true);
 		this.data = null;
+		cancelLoading();
+	}
+
+	
+	/**
+	 * Shows the header data already known from the mail table, while the
+	 * mail body is still loading. The body shows a placeholder until 
+	 * {@link #setContent(MailData)} is called.
+	 * 
+	 * @param mail	the mail selected in the mail table
+	 */
+	public void showHeader(final EmailTableData mail) {
+		clear();
+		if (mail.getFromName() != null)
+			from.setText(mail.getFromName() + " <" + mail.getFrom() + ">"); //$NON-NLS-1$ //$NON-NLS-2$
+		else
+			from.setText(mail.getFrom());
+		subject.setText(mail.getSubject());
+		mailBody.getEngine().loadContent(
+				i18n.getString("entry.loadingmail"), "text/plain"); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
 	
 	/**
-	 * Call this method to fill the widgets content
+	 * Call this method to fill the widgets content.
+	 * <p>
+	 * The mail body and the recipients are parsed in the background, so 
+	 * this method returns immediately. If another mail is shown or the view
+	 * is cleared meanwhile, the loading is canceled and its result dropped.
+	 * 
 	 * @param data	the data object containing all relevant mail data
 	 */
 	public void setContent(final MailData data) {
+		cancelLoading();
+		Task<MailData> task = new Task<MailData>() {
+			@Override
+			protected MailData call() {
+				return data.load();
+			}
+		};
+		task.setOnSucceeded(event -> {
+			if (loading == task) {
+				loading = null;
+				showContent(task.getValue());
+			}
+		});
+		task.setOnFailed(event -> {
+			if (loading != task)
+				return;
+			loading = null;
+			// replaces the loading placeholder
+			String reason = task.getException().getMessage();
+			mailBody.getEngine().loadContent(MessageFormat.format(
+					i18n.getString("entry.loadingmail.failed"), reason), "text/plain"); //$NON-NLS-1$ //$NON-NLS-2$
+			MessageItem mItem = new MessageItem(MessageFormat.format(
+					i18n.getString("exception.mailaccess"), reason), //$NON-NLS-1$
+					0.0, MessageItem.MessageType.EXCEPTION);
+			MessageMarket.getInstance().produceMessage(mItem);
+		});
+		loading = task;
+		LOADER.execute(task);
+	}
+	
+	
+	/**
+	 * Cancels the loading of the mail body, if any
+	 */
+	private void cancelLoading() {
+		if (loading != null) {
+			loading.cancel(true);
+			loading = null;
+		}
+	}
+	
+	
+	/**
+	 * fill the widgets with the content of the already parsed mail
+	 * 
+	 * @param data	the parsed mail
+	 */
+	private void showContent(final MailData data) {
 		clear();
 		this.data = data;
 		// set attachments first, to get current data for header label width
@@ -168,7 +238,17 @@ public class MailView extends StackPane {
 	private GridPane mailHeader;
 	private ObservableList<String> attachments;
 	MailData data;
+	// the currently running body loader, accessed in FX thread only
+	private Task<MailData> loading;
 	private final static String DefaultView = "";
+	// parses mail bodies, the loading of the last selected mail is the only
+	// one of interest, as previous loadings are canceled
+	private final static ExecutorService LOADER = 
+			Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "MailView loader"); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			});
 	
 	final ResourceBundle i18n;
 	
@@ -289,7 +369,7 @@ public class MailView extends StackPane {
 			if (attachCnt > 0) {
 				attachmentLbl.setText(attachCnt + " attachments"); //$NON-NLS-1$
 				for (AttachmentData ad : data.getAttachments())
-					attachments.add(ad.getFileName() + " (" + (ad.getSize() / 1024) + "kb)"); //$NON-NLS-1$ //$NON-NLS-2$
+					attachments.add(ad.getFileName() + " (" + (ad.getDecodedSize() / 1024) + "kb)"); //$NON-NLS-1$ //$NON-NLS-2$
 				attachmentBox.setValue(attachments.get(0));
 				saveAsBtn.setDisable(false);
 				if (attachCnt > 1)
@@ -311,16 +391,7 @@ public class MailView extends StackPane {
 	 * @param data the current mail to display
 	 */
 	private void setToContent(final MailData data) {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < data.getTo().length; i++ ) {
-			if (data.getToName()[i] != null)
-				sb.append(data.getToName()[i]).append(" <") //$NON-NLS-1$
-				.append(data.getTo()[i]).append(">"); //$NON-NLS-1$
-			else
-				sb.append(data.getTo()[i]);
-			sb.append("; "); //$NON-NLS-1$
-		}
-		to.setText(sb.toString());
+		to.setText(format(data.getRecipients().getTo()));
 	}
 	
 	
@@ -329,21 +400,34 @@ public class MailView extends StackPane {
 	 * @param data the current mail to display
 	 */
 	private void setCcContent(final MailData data) {
-		StringBuilder sb = new StringBuilder();
-		if (data.getCc() != null) {
-			for (int i = 0; i < data.getCc().length; i++) {
-				if (data.getCcName()[i] != null)
-					sb.append(data.getCcName()[i]).append(" <") //$NON-NLS-1$
-					.append(data.getCc()[i]).append(">"); //$NON-NLS-1$
-				else
-					sb.append(data.getCc()[i]);
-				sb.append("; "); //$NON-NLS-1$
-			}
+		Recipient[] recipients = data.getRecipients().getCc();
+		if (recipients != null) {
 			mailHeader.add(ccLbl, 0, 3);
 			GridPane.setValignment(ccLbl, VPos.TOP);
 			mailHeader.add(cc, 1, 3);
+			cc.setText(format(recipients));
+		} else
+			cc.setText(""); //$NON-NLS-1$
+	}
+	
+	
+	/**
+	 * formats the recipients for a header label, members of an address 
+	 * group are listed after the group's name
+	 * 
+	 * @param recipients	the recipients to show
+	 * @return				the recipients as text
+	 */
+	private static String format(final Recipient[] recipients) {
+		StringBuilder sb = new StringBuilder();
+		String group = null;
+		for (Recipient r : recipients) {
+			if (r.getGroup() != null && !r.getGroup().equals(group))
+				sb.append(r.getGroup()).append(": "); //$NON-NLS-1$
+			group = r.getGroup();
+			sb.append(r.toString()).append("; "); //$NON-NLS-1$
 		}
-		cc.setText(sb.toString());
+		return sb.toString();
 	}
 	
 	
@@ -380,51 +464,7 @@ public class MailView extends StackPane {
 			File outputFile = fileChooser.showSaveDialog(getScene().getWindow());
 			if (outputFile == null)
 				return;
-			Thread t = new Thread(new Task<Void>() {
-				@Override
-				protected Void call() throws Exception {
-					// wrong warning from eclipse, ignore it
-					@SuppressWarnings("resource")
-					InputStream is = (data.getAttachments())[item].getInputStream();
-					if (!data.getMessage().getFolder().isOpen())
-						data.getMessage().getFolder().open(Folder.READ_WRITE);
-					if (is == null)
-						return null;
-					// Message status
-					MessageItem mItem = new MessageItem(
-							MessageFormat.format(i18n.getString("entry.saveattachment"), outputFile.getName()),  //$NON-NLS-1$
-							0.0, MessageItem.MessageType.PROGRESS);
-					MessageMarket.getInstance().produceMessage(mItem);
-					int fileSize = (data.getAttachments())[item].getSize();
-					int counter = 0; 
-					int cur = 0;
-					try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(outputFile))) { 
-						byte[] pipe = new byte[1000];
-						while ((cur = is.read(pipe)) > 0) {
-							counter += cur;
-							bos.write(pipe);
-							mItem.updateProgress((double) counter / fileSize);
-						}
-					} catch (FileNotFoundException e) {
-						mItem.done();
-						mItem = new MessageItem(
-								MessageFormat.format(i18n.getString("exception.savefile"), e.getMessage()) //$NON-NLS-1$
-								, 0.0, MessageItem.MessageType.EXCEPTION);
-						MessageMarket.getInstance().produceMessage(mItem);
-					}catch (IOException e) {
-						mItem.done();
-						mItem = new MessageItem(
-								MessageFormat.format(i18n.getString("exception.saveattachment"), e.getMessage()) //$NON-NLS-1$
-								, 0.0, MessageItem.MessageType.EXCEPTION);
-						MessageMarket.getInstance().produceMessage(mItem);
-					}
-					mItem.done();
-					is.close();
-					data.getMessage().getFolder().close(true);
-					return null;
-				}
-			});
-			t.start();
+			AttachmentSaver.save(data.getAttachments()[item], outputFile);
 		}
 	}
 	
@@ -440,67 +480,7 @@ public class MailView extends StackPane {
 			File outputDir = directoryChooser.showDialog(getScene().getWindow());
 			if (outputDir == null)
 				return;
-			Thread t = new Thread(new Task<Void>() {
-				@Override
-				protected Void call() throws Exception {
-					// Message status
-					final MessageItem mItem = 
-							new MessageItem(
-									i18n.getString("entry.initial.saveallattachment"),  //$NON-NLS-1$
-									0.0, MessageItem.MessageType.PROGRESS);
-					MessageMarket.getInstance().produceMessage(mItem);
-					int totalFileSize = 0;
-					int counter = 0; 
-					int cur = 0;
-					for (AttachmentData ad : data.getAttachments())
-						totalFileSize += ad.getSize();
-					for (int i = 0; i < data.getAttachments().length; i++) {
-						// wrong warning from eclipse, ignore it
-						@SuppressWarnings("resource")
-						InputStream is = (data.getAttachments())[i].getInputStream();
-						if (!data.getMessage().getFolder().isOpen())
-							data.getMessage().getFolder().open(Folder.READ_WRITE);
-						if (is == null)
-							return null;
-						final int aCnt = i;	// final variable for inner class
-						Platform.runLater(()-> {
-							mItem.updateMessage(MessageFormat.format(
-									i18n.getString("entry.saveallattachment"),  //$NON-NLS-1$
-									(data.getAttachments())[aCnt].getFileName(), 
-									Integer.valueOf(aCnt), 
-									Integer.valueOf(data.getAttachments().length)));
-						});
-						try (BufferedOutputStream bos = new BufferedOutputStream(
-								new FileOutputStream(
-										new File(outputDir.toString() + File.separator + 
-												data.getAttachments()[i].getFileName())))) {
-							byte[] pipe = new byte[1000];
-							while ((cur = is.read(pipe)) > 0) {
-								counter += cur;
-								bos.write(pipe);
-								mItem.updateProgress((double) counter / totalFileSize);
-							}
-						} catch (FileNotFoundException e) {
-							mItem.done();
-							MessageItem meItem = new MessageItem(
-									MessageFormat.format(i18n.getString("exception.savefile"), e.getMessage()) //$NON-NLS-1$
-									, 0.0, MessageItem.MessageType.EXCEPTION);
-							MessageMarket.getInstance().produceMessage(meItem);
-						} catch (IOException e) {
-							mItem.done();
-							MessageItem meItem = new MessageItem(
-									MessageFormat.format(i18n.getString("exception.saveattachment"), e.getMessage()) //$NON-NLS-1$
-									, 0.0, MessageItem.MessageType.EXCEPTION);
-							MessageMarket.getInstance().produceMessage(meItem);
-						}
-						mItem.done();
-						is.close();
-						data.getMessage().getFolder().close(true);
-					}
-					return null;
-				}
-			});
-			t.start();
+			AttachmentSaver.saveAll(data.getAttachments(), outputDir);
 		}
 	}
 	
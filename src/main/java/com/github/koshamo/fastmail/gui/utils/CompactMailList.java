@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * The CompactMailList is the alternative to the SortedMailList for large
+ * folders. It shows the mail list as delivered by the mail module, which
+ * keeps the mails column by column in MailColumns, and never creates an
+ * object per mail: the order of the table and the rows passing the filter
+ * are kept as arrays of rows.
+ * <p>
+ * EmailTableData objects are only created as views of the rows the table
+ * requests, which are the rendered ones, and the latest views are cached.
+ * Changes of the read and marked state in the table are written back to
+ * the columns.
+ * <p>
+ * The list sorts and filters itself, so it must not be wrapped into a
+ * SortedList or FilteredList, which would request every row. The table
+ * needs a sort policy calling sortBy(). Removed mails stay in the columns,
+ * so the rows and the filter results of the rows stay valid, until the
+ * next mail list is set.
+ * 
+ * @author Dr. Jochen Raßler
+ * 
+ */
+public class CompactMailList extends ObservableListBase<EmailTableData> {
+	
+	private static final String[] NO_PROPERTIES = new String[0];
+	
+	private MailColumns mails;
+	// the rows of the mails in the order of the table
+	private int[] sorted;
+	private int sortedSize;
+	// the rows passing the filter in the order of the table
+	private int[] shown;
+	private int shownSize;
+	// the rows of the mails removed from the list
+	private final BitSet removed;
+	private String[] sortProperties;
+	private boolean[] sortAscending;
+	private RowOrder order;
+	private IntPredicate filter;
+	private final Map<Integer, EmailTableData> views;
+	
+	/**
+	 * Creates an empty list
+	 */
+	public CompactMailList() {
+		mails = new MailColumns();
+		sorted = new int[0];
+		shown = new int[0];
+		removed = new BitSet();
+		sortProperties = NO_PROPERTIES;
+		sortAscending = new boolean[0];
+		order = naturalOrder(mails);
+		views = new LinkedHashMap<Integer, EmailTableData>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+		
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, EmailTableData> eldest) {
+				return size() > FastmailGlobals.COMPACT_VIEW_CACHE;
+			}
+		};
+	}
+	
+	/**
+	 * Sorts the rows of a mail list by the natural order of the mails, the
+	 * newest first. As this is expensive for large folders, it is up to the
+	 * caller to sort them outside the FX thread.
+	 * 
+	 * @param mails	the mail list
+	 * @return		the rows of the mails in their natural order
+	 */
+	public static int[] sortNatural(final MailColumns mails) {
+		int[] rows = new int[mails.size()];
+		for (int row = 0; row < rows.length; ++row)
+			rows[row] = row;
+		sortRows(rows, rows.length, naturalOrder(mails));
+		return rows;
+	}
+	
+	/**
+	 * Replaces the content of the list. The list takes over the columns,
+	 * which must not be changed by others afterwards. The filter is
+	 * removed, as it refers to the rows of the former columns.
+	 * 
+	 * @param columns	the mail list to show
+	 * @param natural	the rows of the mails in their natural order, as
+	 * 		sorted by sortNatural()
+	 */
+	public void setAll(final MailColumns columns, final int[] natural) {
+		List<EmailTableData> former = rowsOf(mails, shown, shownSize);
+		mails = columns;
+		removed.clear();
+		views.clear();
+		filter = null;
+		sorted = natural.clone();
+		sortedSize = sorted.length;
+		order = orderOf(mails, sortProperties, sortAscending);
+		if (sortProperties.length > 0)
+			sortRows(sorted, sortedSize, order);
+		shown = sorted.clone();
+		shownSize = sortedSize;
+		beginChange();
+		try {
+			if (!former.isEmpty())
+				nextRemove(0, former);
+			if (shownSize > 0)
+				nextAdd(0, shownSize);
+		} finally {
+			endChange();
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.AbstractList#clear()
+	 */
+	@Override
+	public void clear() {
+		setAll(new MailColumns(), new int[0]);
+	}
+	
+	/**
+	 * @return	the columns of the shown mails, which are changed by this
+	 * list only
+	 */
+	public MailColumns getMails() {
+		return mails;
+	}
+	
+	/**
+	 * Sorts the list by the given properties of the mails, as named by the
+	 * PropertyValueFactory of the table columns. The strings are compared
+	 * by the collator of the default locale, like the table does. Without
+	 * properties the list is sorted by the natural order of the mails.
+	 * 
+	 * @param properties	the properties to sort by, the first one first
+	 * @param ascending		the sort direction of each property
+	 */
+	public void sortBy(final String[] properties, final boolean[] ascending) {
+		sortProperties = properties.clone();
+		sortAscending = ascending.clone();
+		order = orderOf(mails, sortProperties, sortAscending);
+		sortRows(sorted, sortedSize, order);
+		int[] formerShown = shown;
+		int formerSize = shownSize;
+		shown = filtered(sorted, sortedSize);
+		if (formerSize == 0)
+			return;
+		// the permutation maps the former positions to the new ones
+		int[] position = new int[mails.size()];
+		for (int i = 0; i < shownSize; ++i)
+			position[shown[i]] = i;
+		int[] perm = new int[formerSize];
+		for (int i = 0; i < formerSize; ++i)
+			perm[i] = position[formerShown[i]];
+		beginChange();
+		try {
+			nextPermutation(0, formerSize, perm);
+		} finally {
+			endChange();
+		}
+	}
+	
+	/**
+	 * Restricts the list to the rows passing the filter
+	 * 
+	 * @param rowFilter	tests the rows of the columns returned by getMails(),
+	 * null to show all mails
+	 */
+	public void setFilter(final IntPredicate rowFilter) {
+		filter = rowFilter;
+		int[] formerShown = shown;
+		int formerSize = shownSize;
+		shown = filtered(sorted, sortedSize);
+		fireDifference(sorted, sortedSize, formerShown, formerSize, null);
+	}
+	
+	/**
+	 * Adds a batch of mails, which are inserted at their position in a
+	 * single pass and reported as one change. Mails already contained are
+	 * skipped.
+	 * 
+	 * @param batch	the mails to add
+	 * @return		the added mails
+	 */
+	public List<EmailTableData> merge(final List<? extends EmailTableData> batch) {
+		List<EmailTableData> added = new ArrayList<>(batch.size());
+		int[] rows = new int[batch.size()];
+		for (EmailTableData mail : batch) {
+			int row;
+			if (mails.add(mail))
+				row = mails.size() - 1;
+			else {
+				// a removed mail may come back
+				row = mails.indexOf(mail.getUniqueID());
+				if (!removed.get(row))
+					continue;
+				removed.clear(row);
+				mails.setRead(row, mail.isRead());
+				mails.setMarked(row, mail.isMarked());
+			}
+			rows[added.size()] = row;
+			added.add(mail);
+		}
+		if (added.isEmpty())
+			return added;
+		sortRows(rows, added.size(), order);
+		int[] merged = new int[sortedSize + added.size()];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < sortedSize || j < added.size()) {
+			if (j == added.size()
+					|| (i < sortedSize && order.compare(sorted[i], rows[j]) <= 0))
+				merged[k++] = sorted[i++];
+			else
+				merged[k++] = rows[j++];
+		}
+		int[] formerShown = shown;
+		int formerSize = shownSize;
+		sorted = merged;
+		sortedSize = merged.length;
+		shown = filtered(sorted, sortedSize);
+		fireDifference(sorted, sortedSize, formerShown, formerSize, null);
+		return added;
+	}
+	
+	/* Removes the mails identified by their message key in a single pass
+	 * 
+	 * (non-Javadoc)
+	 * @see java.util.AbstractCollection#removeAll(java.util.Collection)
+	 */
+	@Override
+	public boolean removeAll(final Collection<?> c) {
+		boolean changed = false;
+		for (Object o : c) {
+			if (!(o instanceof EmailTableData))
+				continue;
+			int row = mails.indexOf(((EmailTableData) o).getUniqueID());
+			if (row >= 0 && !removed.get(row)) {
+				removed.set(row);
+				views.remove(Integer.valueOf(row));
+				changed = true;
+			}
+		}
+		if (!changed)
+			return false;
+		int[] formerSorted = sorted;
+		int formerSortedSize = sortedSize;
+		int[] formerShown = shown;
+		int formerSize = shownSize;
+		int[] kept = new int[sortedSize];
+		int size = 0;
+		for (int i = 0; i < sortedSize; ++i)
+			if (!removed.get(sorted[i]))
+				kept[size++] = sorted[i];
+		sorted = kept;
+		sortedSize = size;
+		shown = filtered(sorted, sortedSize);
+		fireDifference(formerSorted, formerSortedSize, formerShown, formerSize, null);
+		return true;
+	}
+	
+	/**
+	 * Takes over the read and marked state of the given mails, which
+	 * changed on the server, and tests them against the filter again.
+	 * Mails not contained are ignored.
+	 * 
+	 * @param changed	the mails with their new state
+	 */
+	public void updateFlags(final Collection<? extends EmailTableData> changed) {
+		BitSet updated = new BitSet();
+		for (EmailTableData mail : changed) {
+			int row = mails.indexOf(mail.getUniqueID());
+			if (row < 0 || removed.get(row))
+				continue;
+			EmailTableData view = views.get(Integer.valueOf(row));
+			if (view != null) {
+				// the listeners of the view write the state back
+				view.setRead(mail.isRead());
+				view.setMarked(mail.isMarked());
+			} else {
+				mails.setRead(row, mail.isRead());
+				mails.setMarked(row, mail.isMarked());
+			}
+			updated.set(row);
+		}
+		if (updated.isEmpty())
+			return;
+		int[] formerShown = shown;
+		int formerSize = shownSize;
+		if (!dependsOnFlags()) {
+			shown = filtered(sorted, sortedSize);
+			fireDifference(sorted, sortedSize, formerShown, formerSize, updated);
+			return;
+		}
+		sortRows(sorted, sortedSize, order);
+		shown = filtered(sorted, sortedSize);
+		if (sameRows(formerShown, formerSize)) {
+			fireDifference(sorted, sortedSize, formerShown, formerSize, updated);
+			return;
+		}
+		// the changed mails moved within the table
+		List<EmailTableData> former = rowsOf(mails, formerShown, formerSize);
+		beginChange();
+		try {
+			if (formerSize > 0)
+				nextRemove(0, former);
+			if (shownSize > 0)
+				nextAdd(0, shownSize);
+		} finally {
+			endChange();
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	public EmailTableData get(final int index) {
+		if (index < 0 || index >= shownSize)
+			throw new IndexOutOfBoundsException("index " + index + " of " + shownSize); //$NON-NLS-1$ //$NON-NLS-2$
+		Integer row = Integer.valueOf(shown[index]);
+		EmailTableData view = views.get(row);
+		if (view == null) {
+			view = mails.view(row.intValue());
+			writeBack(view, row.intValue());
+			views.put(row, view);
+		}
+		return view;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size() {
+		return shownSize;
+	}
+	
+	/**
+	 * Keeps the columns up to date, if the state of the mail is changed in
+	 * the table
+	 * 
+	 * @param view	the created view of a row
+	 * @param row	the row of the view
+	 */
+	private void writeBack(final EmailTableData view, final int row) {
+		final MailColumns columns = mails;
+		view.readProperty().addListener(
+				(obs, oldVal, newVal) -> columns.setRead(row, newVal.booleanValue()));
+		view.markedProperty().addListener(
+				(obs, oldVal, newVal) -> columns.setMarked(row, newVal.booleanValue()));
+	}
+	
+	/**
+	 * @return	true, if the order changes with the read or marked state
+	 */
+	private boolean dependsOnFlags() {
+		for (String property : sortProperties)
+			if ("read".equals(property) || "marked".equals(property)) //$NON-NLS-1$ //$NON-NLS-2$
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @param rows	rows in the order of the table
+	 * @param size	the number of rows
+	 * @return		true, if the shown rows are the same in the same order
+	 */
+	private boolean sameRows(final int[] rows, final int size) {
+		if (size != shownSize)
+			return false;
+		for (int i = 0; i < size; ++i)
+			if (rows[i] != shown[i])
+				return false;
+		return true;
+	}
+	
+	/**
+	 * @param rows	the rows in the order of the table
+	 * @param size	the number of rows
+	 * @return		the rows passing the filter, the size is stored in
+	 * shownSize
+	 */
+	private int[] filtered(final int[] rows, final int size) {
+		if (filter == null) {
+			shownSize = size;
+			return Arrays.copyOf(rows, size);
+		}
+		int[] passed = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; ++i)
+			if (filter.test(rows[i]))
+				passed[count++] = rows[i];
+		shownSize = count;
+		return passed;
+	}
+	
+	/**
+	 * Reports the difference between the former and the current shown
+	 * rows as one change. Both need to be ordered like the given rows.
+	 * 
+	 * @param all			all rows, former and current, in order
+	 * @param allSize		the number of all rows
+	 * @param formerShown	the rows shown before
+	 * @param formerSize	the number of rows shown before
+	 * @param updated		the rows to report as updated, if they are
+	 * 		still shown, may be null
+	 */
+	private void fireDifference(final int[] all, final int allSize,
+			final int[] formerShown, final int formerSize, final BitSet updated) {
+		beginChange();
+		try {
+			int i = 0;
+			int j = 0;
+			int pos = 0;
+			for (int k = 0; k < allSize; ++k) {
+				int row = all[k];
+				boolean wasShown = i < formerSize && formerShown[i] == row;
+				boolean isShown = j < shownSize && shown[j] == row;
+				if (wasShown)
+					i++;
+				if (isShown)
+					j++;
+				// positions refer to the list with the previous changes applied
+				if (wasShown && isShown) {
+					if (updated != null && updated.get(row))
+						nextUpdate(pos);
+					pos++;
+				} else if (wasShown)
+					nextRemove(pos, mails.view(row));
+				else if (isShown) {
+					nextAdd(pos, pos + 1);
+					pos++;
+				}
+			}
+		} finally {
+			endChange();
+		}
+	}
+	
+	/**
+	 * @param columns	the columns of the rows
+	 * @param rows		the rows
+	 * @param size		the number of rows
+	 * @return			the mails of the rows, which are created on request
+	 */
+	private static List<EmailTableData> rowsOf(final MailColumns columns,
+			final int[] rows, final int size) {
+		return new AbstractList<EmailTableData>() {
+			@Override
+			public EmailTableData get(int index) {
+				return columns.view(rows[index]);
+			}
+		
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * @param columns	the columns to compare the rows of
+	 * @return			the natural order of the mails, the newest first
+	 */
+	private static RowOrder naturalOrder(final MailColumns columns) {
+		return (a, b) -> {
+			int result = Long.compare(columns.getSentDateMillis(b),
+					columns.getSentDateMillis(a));
+			return result != 0 ? result : Integer.compare(a, b);
+		};
+	}
+	
+	/**
+	 * @param columns		the columns to compare the rows of
+	 * @param properties	the properties to sort by
+	 * @param ascending		the sort direction of each property
+	 * @return				the order of the rows, equal mails are ordered by
+	 * their row, so the order is total
+	 */
+	private static RowOrder orderOf(final MailColumns columns,
+			final String[] properties, final boolean[] ascending) {
+		if (properties.length == 0)
+			return naturalOrder(columns);
+		final Collator collator = Collator.getInstance();
+		final RowOrder[] orders = new RowOrder[properties.length];
+		for (int p = 0; p < properties.length; ++p) {
+			RowOrder byProperty = propertyOrder(columns, properties[p], collator);
+			orders[p] = ascending[p] ? byProperty : (a, b) -> byProperty.compare(b, a);
+		}
+		return (a, b) -> {
+			for (RowOrder byProperty : orders) {
+				int result = byProperty.compare(a, b);
+				if (result != 0)
+					return result;
+			}
+			return Integer.compare(a, b);
+		};
+	}
+	
+	private static RowOrder propertyOrder(final MailColumns columns,
+			final String property, final Collator collator) {
+		switch (property) {
+		case "subject": //$NON-NLS-1$
+			return (a, b) -> compareStrings(collator, columns.getSubject(a), columns.getSubject(b));
+		case "fromName": //$NON-NLS-1$
+			return (a, b) -> compareStrings(collator, columns.getFromName(a), columns.getFromName(b));
+		case "sentDate": //$NON-NLS-1$
+			return (a, b) -> Long.compare(columns.getSentDateMillis(a), columns.getSentDateMillis(b));
+		case "read": //$NON-NLS-1$
+			return (a, b) -> Boolean.compare(columns.isRead(a), columns.isRead(b));
+		case "attachment": //$NON-NLS-1$
+			return (a, b) -> Boolean.compare(columns.isAttachment(a), columns.isAttachment(b));
+		case "marked": //$NON-NLS-1$
+			return (a, b) -> Boolean.compare(columns.isMarked(a), columns.isMarked(b));
+		default:
+			return (a, b) -> 0;
+		}
+	}
+	
+	/* nulls first, like the default comparator of the table columns */
+	private static int compareStrings(final Collator collator, final String s1,
+			final String s2) {
+		if (s1 == null || s2 == null)
+			return s1 == null ? (s2 == null ? 0 : -1) : 1;
+		return collator.compare(s1, s2);
+	}
+	
+	/**
+	 * Sorts rows by merge sort, the rows are not boxed
+	 * 
+	 * @param rows	the rows to sort
+	 * @param size	the number of rows
+	 * @param order	the order of the rows
+	 */
+	private static void sortRows(final int[] rows, final int size, final RowOrder order) {
+		if (size < 2)
+			return;
+		int[] buffer = new int[size];
+		for (int width = 1; width < size; width *= 2) {
+			for (int low = 0; low < size; low += 2 * width) {
+				int mid = Math.min(low + width, size);
+				int high = Math.min(low + 2 * width, size);
+				int i = low;
+				int j = mid;
+				for (int k = low; k < high; ++k)
+					buffer[k] = j >= high || (i < mid && order.compare(rows[i], rows[j]) <= 0)
+							? rows[i++] : rows[j++];
+			}
+			System.arraycopy(buffer, 0, rows, 0, size);
+		}
+	}
+
+	
+	/**
+	 * Compares two rows of the columns
+	 */
+	private interface RowOrder {
+		int compare(int a, int b);
+	}
+}
@@ -63,7 +63,7 @@ public class DateCellFactory extends TableCell<EmailTableData, String> {
 	 * @param date the String representing the date 
 	 * @return the formatted String using above rules
 	 */
-	private static String formatString(final String date) {
+	/*private*/ static String formatString(final String date) {
 		Instant mailDate = Instant.parse(date);
 		ZonedDateTime zonedDate = mailDate.atZone(ZoneId.systemDefault());
 		ZonedDateTime today = ZonedDateTime.now();
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * The PagedMailList shows a folder, whose mails have not been read yet, 
+ * with its total number of mails. The rows are loaded page by page, when 
+ * the table view requests them, and the following pages are requested in
+ * advance. Rows not loaded yet are null, which the table shows as empty
+ * rows.
+ * <p>
+ * Only the most recently used pages are kept, older pages are dropped and
+ * requested again, if needed.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class PagedMailList extends ObservableListBase<EmailTableData> {
+
+	private final int total;
+	private final int pageSize;
+	private final IntConsumer requester;
+	private final Map<Integer, EmailTableData[]> pages;
+	private final Set<Integer> pending;
+	
+	/**
+	 * @param total		the number of mails in the folder
+	 * @param pageSize	the number of rows per page
+	 * @param requester	requests the page with the given index, which is 
+	 * passed to setPage() when it has been loaded
+	 */
+	public PagedMailList(final int total, final int pageSize, 
+			final IntConsumer requester) {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("pageSize must be positive");
+		this.total = Math.max(total, 0);
+		this.pageSize = pageSize;
+		this.requester = requester;
+		pending = new HashSet<>();
+		pages = new LinkedHashMap<Integer, EmailTableData[]>(32, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, EmailTableData[]> eldest) {
+				return size() > FastmailGlobals.MAIL_PAGE_CACHE;
+			}
+		};
+	}
+	
+	/**
+	 * Takes over a loaded page and refreshes its rows in the table
+	 * 
+	 * @param page	the index of the page
+	 * @param mails	the mails of the page, newest first
+	 */
+	public void setPage(final int page, final EmailTableData[] mails) {
+		Integer key = Integer.valueOf(page);
+		pending.remove(key);
+		int from = page * pageSize;
+		if (from >= total)
+			return;
+		int to = Math.min(from + pageSize, total);
+		pages.put(key, mails);
+		beginChange();
+		try {
+			nextReplace(from, to, Collections.nCopies(to - from, null));
+		} finally {
+			endChange();
+		}
+	}
+	
+	/* Rows of pages not loaded yet are requested and returned as null
+	 * 
+	 * (non-Javadoc)
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	public EmailTableData get(final int index) {
+		if (index < 0 || index >= total)
+			throw new IndexOutOfBoundsException("index " + index + " of " + total); //$NON-NLS-1$ //$NON-NLS-2$
+		int page = index / pageSize;
+		EmailTableData[] mails = pages.get(Integer.valueOf(page));
+		if (mails == null) {
+			request(page);
+			return null;
+		}
+		for (int ahead = 1; ahead <= FastmailGlobals.MAIL_PAGE_READ_AHEAD; ++ahead)
+			if (!pages.containsKey(Integer.valueOf(page + ahead)))
+				request(page + ahead);
+		int row = index - page * pageSize;
+		return row < mails.length ? mails[row] : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size() {
+		return total;
+	}
+
+	/**
+	 * Requests a page, if it exists and has not been requested yet
+	 * 
+	 * @param page	the index of the page
+	 */
+	private void request(final int page) {
+		if (page * pageSize >= total)
+			return;
+		if (pending.add(Integer.valueOf(page)))
+			requester.accept(page);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import java.util.Locale;
+import java.util.function.Predicate;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+/**
+ * The QuickFilter restricts the mail table to the mails, whose sender or 
+ * subject contain all words of the filter text, and optionally to the
+ * unread mails.
+ * <p>
+ * The words are matched ignoring the case directly within the fields of 
+ * the mails, so no lower case copy of the fields needs to be kept.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public final class QuickFilter implements Predicate<EmailTableData> {
+
+	private final String[] words;
+	private final boolean unreadOnly;
+	
+	/**
+	 * @param text			the words to filter by
+	 * @param unreadOnly	set, if only unread mails pass the filter
+	 */
+	public QuickFilter(final String text, final boolean unreadOnly) {
+		String trimmed = text == null ? "" : text.trim().toLowerCase(Locale.ROOT); //$NON-NLS-1$
+		this.words = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+"); //$NON-NLS-1$
+		this.unreadOnly = unreadOnly;
+	}
+	
+	/**
+	 * @return	true, if all mails pass the filter
+	 */
+	public boolean isEmpty() {
+		return words.length == 0 && !unreadOnly;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.function.Predicate#test(java.lang.Object)
+	 */
+	@Override
+	public boolean test(final EmailTableData mail) {
+		return matchesState(mail) && matchesText(mail);
+	}
+	
+	/**
+	 * The state is tested apart from the text, as it changes, while the 
+	 * mail is shown, and it is cheap to test
+	 * 
+	 * @param mail	the mail to test
+	 * @return		true, if the read state of the mail passes the filter
+	 */
+	public boolean matchesState(final EmailTableData mail) {
+		return matchesState(mail.isRead());
+	}
+	
+	/**
+	 * @param read	the read state of a mail
+	 * @return		true, if the read state passes the filter
+	 */
+	public boolean matchesState(final boolean read) {
+		return !unreadOnly || !read;
+	}
+	
+	/**
+	 * @param mail	the mail to test
+	 * @return		true, if the sender or subject of the mail contain all
+	 * words of the filter
+	 */
+	public boolean matchesText(final EmailTableData mail) {
+		return matchesText(mail.getSubject(), mail.getFromName(), mail.getFrom());
+	}
+	
+	/**
+	 * Tests the fields of a mail, e.g. a mail kept in columns
+	 * 
+	 * @param subject	the subject of the mail
+	 * @param fromName	the sender name of the mail, may be null
+	 * @param from		the sender address of the mail
+	 * @return			true, if the sender or subject contain all words of
+	 * the filter
+	 */
+	public boolean matchesText(final String subject, final String fromName, 
+			final String from) {
+		for (String word : words)
+			if (!contains(subject, word) 
+					&& !contains(fromName, word)
+					&& !contains(from, word))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * @param text	the text to search, may be null
+	 * @param word	the lower case word to find
+	 * @return		true, if the text contains the word ignoring the case
+	 */
+	/*private*/ static boolean contains(final String text, final String word) {
+		if (text == null)
+			return false;
+		int last = text.length() - word.length();
+		for (int i = 0; i <= last; ++i)
+			if (text.regionMatches(true, i, word, 0, word.length()))
+				return true;
+		return false;
+	}
+	
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+import javafx.collections.ModifiableObservableListBase;
+
+/**
+ * The SortedMailList keeps the mails of a folder in their natural order,
+ * as defined by EmailTableData.compareTo(), without ever sorting the whole
+ * list again.
+ * <p>
+ * Single mails are inserted at the position found by binary search. 
+ * Batches of mails, which need to be sorted already, are merged into the
+ * list in a single linear pass and reported to the listeners as one 
+ * change. Mails equal to a mail of the list are not inserted again, e.g.
+ * a new mail, that has been delivered with the complete mail list as 
+ * well. The table view should show the list through a SortedList, whose
+ * comparator is bound to the comparator of the table, so sorting by 
+ * column does not touch this list.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class SortedMailList extends ModifiableObservableListBase<EmailTableData> {
+
+	private List<EmailTableData> mails;
+	
+	/**
+	 * Creates an empty list
+	 */
+	public SortedMailList() {
+		mails = new ArrayList<>();
+	}
+	
+	/**
+	 * Replaces the content of the list with the given mails, which must be
+	 * sorted already. Sorting is expensive for large folders, so it is up
+	 * to the caller to sort them outside the FX thread.
+	 * 
+	 * @param sorted	the sorted mails
+	 * @return	true
+	 */
+	public boolean setAllSorted(final Collection<? extends EmailTableData> sorted) {
+		beginChange();
+		try {
+			if (!mails.isEmpty()) {
+				List<EmailTableData> removed = mails;
+				mails = new ArrayList<>();
+				nextRemove(0, removed);
+			}
+			mails = new ArrayList<>(sorted);
+			if (!mails.isEmpty())
+				nextAdd(0, mails.size());
+		} finally {
+			endChange();
+		}
+		return true;
+	}
+	
+	/**
+	 * Inserts a single mail at its position, if it is not contained yet
+	 * 
+	 * @param mail	the mail to insert
+	 * @return		true, if the mail has been inserted
+	 */
+	public boolean insert(final EmailTableData mail) {
+		int pos = insertionPoint(mail);
+		if (containsBefore(mails, pos, mail))
+			return false;
+		add(pos, mail);
+		return true;
+	}
+	
+	/**
+	 * Merges a sorted batch of mails into the list in O(n + k). All 
+	 * insertions are reported as a single change. Mails already contained
+	 * are skipped.
+	 * 
+	 * @param sorted	the mails to insert, sorted by their natural order
+	 * @return			the inserted mails
+	 */
+	public List<EmailTableData> merge(final List<? extends EmailTableData> sorted) {
+		List<EmailTableData> added = new ArrayList<>(sorted.size());
+		if (sorted.isEmpty())
+			return added;
+		if (sorted.size() == 1) {
+			if (insert(sorted.get(0)))
+				added.add(sorted.get(0));
+			return added;
+		}
+		List<EmailTableData> merged = new ArrayList<>(mails.size() + sorted.size());
+		int[] inserted = new int[sorted.size()];
+		int i = 0;
+		int j = 0;
+		while (j < sorted.size()) {
+			// mails equal to existing ones are placed behind them
+			if (i < mails.size() && mails.get(i).compareTo(sorted.get(j)) <= 0)
+				merged.add(mails.get(i++));
+			else {
+				EmailTableData mail = sorted.get(j++);
+				if (containsBefore(merged, merged.size(), mail))
+					continue;
+				inserted[added.size()] = merged.size();
+				merged.add(mail);
+				added.add(mail);
+			}
+		}
+		if (added.isEmpty())
+			return added;
+		while (i < mails.size())
+			merged.add(mails.get(i++));
+		beginChange();
+		try {
+			mails = merged;
+			// ascending positions within the final list, so each addition
+			// is valid after the previous ones have been applied
+			for (int k = 0; k < added.size(); ++k)
+				nextAdd(inserted[k], inserted[k] + 1);
+		} finally {
+			endChange();
+		}
+		return added;
+	}
+	
+	/**
+	 * Takes over the read and marked state of the given mails and tells 
+	 * the listeners, that their state has changed, so a FilteredList tests
+	 * them again. Mails not contained are ignored.
+	 * 
+	 * @param changed	the changed mails, which may be other objects equal
+	 * to the contained ones
+	 */
+	public void refresh(final Collection<? extends EmailTableData> changed) {
+		List<Integer> positions = new ArrayList<>(changed.size());
+		for (EmailTableData mail : changed) {
+			int end = insertionPoint(mail);
+			for (int k = end - 1; k >= 0 && mails.get(k).compareTo(mail) == 0; --k)
+				if (mails.get(k).equals(mail)) {
+					mails.get(k).setRead(mail.isRead());
+					mails.get(k).setMarked(mail.isMarked());
+					positions.add(Integer.valueOf(k));
+					break;
+				}
+		}
+		if (positions.isEmpty())
+			return;
+		beginChange();
+		try {
+			for (Integer pos : positions)
+				nextUpdate(pos.intValue());
+		} finally {
+			endChange();
+		}
+	}
+	
+	/**
+	 * Looks for the mail among the mails of the same order, which are 
+	 * placed right before its insertion point
+	 * 
+	 * @param list	the sorted mails
+	 * @param end	the insertion point of the mail
+	 * @param mail	the mail to look for
+	 * @return		true, if an equal mail is contained
+	 */
+	private static boolean containsBefore(final List<EmailTableData> list, 
+			final int end, final EmailTableData mail) {
+		for (int k = end - 1; k >= 0 && list.get(k).compareTo(mail) == 0; --k)
+			if (list.get(k).equals(mail))
+				return true;
+		return false;
+	}
+	
+	/* Removes the mails in a single pass, the collection should be a 
+	 * hashed collection to get linear time
+	 * 
+	 * (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#removeAll(java.util.Collection)
+	 */
+	@Override
+	public boolean removeAll(final Collection<?> c) {
+		List<EmailTableData> kept = new ArrayList<>(mails.size());
+		int removed = 0;
+		beginChange();
+		try {
+			for (int i = 0; i < mails.size(); ++i) {
+				EmailTableData mail = mails.get(i);
+				if (c.contains(mail)) {
+					// positions refer to the list with the previous removals applied
+					nextRemove(i - removed, mail);
+					removed++;
+				} else
+					kept.add(mail);
+			}
+			mails = kept;
+		} finally {
+			endChange();
+		}
+		return removed > 0;
+	}
+	
+	/**
+	 * @param mail	the mail to insert
+	 * @return		the index behind all mails, that are not greater
+	 */
+	private int insertionPoint(final EmailTableData mail) {
+		int low = 0;
+		int high = mails.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mails.get(mid).compareTo(mail) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/* (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#get(int)
+	 */
+	@Override
+	public EmailTableData get(final int index) {
+		return mails.get(index);
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#size()
+	 */
+	@Override
+	public int size() {
+		return mails.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#doAdd(int, java.lang.Object)
+	 */
+	@Override
+	protected void doAdd(final int index, final EmailTableData element) {
+		mails.add(index, element);
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#doSet(int, java.lang.Object)
+	 */
+	@Override
+	protected EmailTableData doSet(final int index, final EmailTableData element) {
+		return mails.set(index, element);
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.collections.ModifiableObservableListBase#doRemove(int)
+	 */
+	@Override
+	protected EmailTableData doRemove(final int index) {
+		return mails.remove(index);
+	}
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+import javafx.scene.control.TreeTableCell;
+
+/**
+ * The ThreadDateCell formats the dates of the thread view using the same 
+ * rules as the DateCellFactory of the mail table
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class ThreadDateCell extends TreeTableCell<EmailTableData, String> {
+
+	/* (non-Javadoc)
+	 * @see javafx.scene.control.Cell#updateItem(java.lang.Object, boolean)
+	 */
+	@Override
+	protected void updateItem(final String item, final boolean empty) {
+		super.updateItem(item, empty);
+		if (empty || item == null) {
+			setText(null);
+			setGraphic(null);
+		} else {
+			setText(DateCellFactory.formatString(item));
+		}
+	}
+}
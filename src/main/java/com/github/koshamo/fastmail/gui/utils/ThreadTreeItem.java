@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailThreader.Container;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeItem;
+
+/**
+ * A ThreadTreeItem shows a mail of a conversation thread in the thread 
+ * view. Its children are the replies to the mail, which are created when
+ * the item is expanded, so only the threads, but not all mails of a large
+ * folder get a tree item.
+ * <p>
+ * If the root message of a thread is not contained in the folder, the 
+ * oldest mail of the thread is shown as root, all other mails of the 
+ * thread are shown as its replies.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class ThreadTreeItem extends TreeItem<EmailTableData> {
+
+	private final Container container;
+	// replies of a missing root message, that are shown as replies
+	private final List<Container> adopted;
+	private boolean loaded;
+	// the sent date of the newest mail of the thread, set for root items
+	private long latest;
+	
+	private ThreadTreeItem(final Container container, 
+			final List<Container> adopted) {
+		super(container.getMail());
+		this.container = container;
+		this.adopted = adopted;
+	}
+	
+	/**
+	 * Creates the item showing a thread
+	 * 
+	 * @param thread	the root container of the thread
+	 * @return			the item, or null if the thread contains no mail
+	 */
+	public static ThreadTreeItem of(final Container thread) {
+		ThreadTreeItem item;
+		if (thread.getMail() != null)
+			item = new ThreadTreeItem(thread, Collections.emptyList());
+		else {
+			List<Container> replies = thread.getReplies();
+			if (replies.isEmpty())
+				return null;
+			item = new ThreadTreeItem(replies.get(0), 
+					replies.subList(1, replies.size()));
+		}
+		item.latest = thread.getLatest();
+		return item;
+	}
+	
+	/**
+	 * Updates the item of a thread, whose mails have changed. The item is
+	 * kept, if the thread still has the same root mail, so the loaded 
+	 * replies stay expanded. Otherwise a new item is created.
+	 * 
+	 * @param item		the item showing the thread, may be null
+	 * @param thread	the root container of the thread
+	 * @return			the item, or null if the thread contains no mail
+	 */
+	public static ThreadTreeItem update(final ThreadTreeItem item, 
+			final Container thread) {
+		if (item == null || item.container != thread || thread.getMail() == null) {
+			ThreadTreeItem created = of(thread);
+			if (created != null && item != null)
+				created.setExpanded(item.isExpanded());
+			return created;
+		}
+		item.refresh();
+		item.latest = thread.getLatest();
+		return item;
+	}
+	
+	/**
+	 * @return	the sent date of the newest mail of the thread shown by this
+	 * root item
+	 */
+	public long getLatest() {
+		return latest;
+	}
+	
+	/**
+	 * Updates the loaded replies, the items of replies still contained 
+	 * are kept
+	 */
+	private void refresh() {
+		if (!loaded)
+			return;
+		Map<Container, ThreadTreeItem> shown = new HashMap<>();
+		for (TreeItem<EmailTableData> child : super.getChildren())
+			shown.put(((ThreadTreeItem) child).container, (ThreadTreeItem) child);
+		List<Container> replies = container.getReplies();
+		List<TreeItem<EmailTableData>> items = new ArrayList<>(replies.size());
+		for (Container reply : replies) {
+			ThreadTreeItem item = shown.get(reply);
+			if (item == null)
+				item = new ThreadTreeItem(reply, Collections.emptyList());
+			else
+				item.refresh();
+			items.add(item);
+		}
+		super.getChildren().setAll(items);
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.scene.control.TreeItem#getChildren()
+	 */
+	@Override
+	public ObservableList<TreeItem<EmailTableData>> getChildren() {
+		if (!loaded) {
+			loaded = true;
+			List<Container> replies = container.getReplies();
+			if (!adopted.isEmpty()) {
+				replies.addAll(adopted);
+				replies.sort(Comparator.comparingLong(
+						(Container c) -> c.getMail().getSentDateMillis()));
+			}
+			List<TreeItem<EmailTableData>> items = new ArrayList<>(replies.size());
+			for (Container reply : replies)
+				items.add(new ThreadTreeItem(reply, Collections.emptyList()));
+			super.getChildren().setAll(items);
+		}
+		return super.getChildren();
+	}
+
+	/* (non-Javadoc)
+	 * @see javafx.scene.control.TreeItem#isLeaf()
+	 */
+	@Override
+	public boolean isLeaf() {
+		if (loaded)
+			return super.getChildren().isEmpty();
+		return adopted.isEmpty() && !container.hasReplies();
+	}
+}
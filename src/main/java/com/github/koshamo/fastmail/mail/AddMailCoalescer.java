@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+/**
+ * The AddMailCoalescer collects new mails per folder and delivers them 
+ * to the GUI in batches, instead of posting an event for every single
+ * mail.
+ * <p>
+ * A batch is delivered, when it reaches ADD_MAIL_BATCH_SIZE mails or 
+ * ADD_MAIL_BATCH_MS after its first mail, whatever comes first. The 
+ * mails of a batch are sorted before delivery, so the GUI can merge them 
+ * into its sorted mail list.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class AddMailCoalescer {
+
+	private final MailModule mailModule;
+	private final ScheduledExecutorService timer;
+	private final Map<String, Batch> batches;
+	
+	/**
+	 * @param mailModule	the module posting the batches
+	 */
+	/*private*/ AddMailCoalescer(final MailModule mailModule) {
+		this.mailModule = Objects.requireNonNull(mailModule, "mailModule must not be null");
+		timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "AddMailCoalescer"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		batches = new HashMap<>();
+	}
+	
+	/**
+	 * Adds a mail to the batch of its folder
+	 * 
+	 * @param account		the account of the folder
+	 * @param folderName	the full name of the folder
+	 * @param mail			the new mail
+	 */
+	/*private*/ synchronized void add(final MailAccount account, 
+			final String folderName, final EmailTableData mail) {
+		String key = key(account, folderName);
+		Batch batch = batches.get(key);
+		if (batch == null) {
+			batch = new Batch(account, folderName);
+			batches.put(key, batch);
+			timer.schedule(() -> flush(key), 
+					FastmailGlobals.ADD_MAIL_BATCH_MS, TimeUnit.MILLISECONDS);
+		}
+		batch.mails.add(mail);
+		if (batch.mails.size() >= FastmailGlobals.ADD_MAIL_BATCH_SIZE)
+			flush(key);
+	}
+	
+	/**
+	 * Drops the pending mails of a folder, e.g. because the complete mail
+	 * list of the folder is shown, which already contains them. A batch
+	 * flushed before may still arrive after the mail list, so the GUI 
+	 * skips mails it already shows.
+	 * 
+	 * @param account		the account of the folder
+	 * @param folderName	the full name of the folder
+	 */
+	/*private*/ synchronized void discard(final MailAccount account, 
+			final String folderName) {
+		batches.remove(key(account, folderName));
+	}
+	
+	/*private*/ void shutdown() {
+		timer.shutdownNow();
+	}
+	
+	/**
+	 * Delivers the batch of a folder, if there is one. The timer of a 
+	 * batch, that has been delivered because of its size, may flush the 
+	 * next batch early, which does no harm.
+	 */
+	private synchronized void flush(final String key) {
+		Batch batch = batches.remove(key);
+		if (batch == null || batch.mails.isEmpty())
+			return;
+		Collections.sort(batch.mails);
+		mailModule.postAddedMails(batch.account, batch.folderName, 
+				batch.mails.toArray(new EmailTableData[0]));
+	}
+	
+	private static String key(final MailAccount account, final String folderName) {
+		return account.getAccountName() + '\n' + folderName;
+	}
+	
+	/**
+	 * the pending mails of a folder
+	 */
+	private static class Batch {
+		/*private*/ final MailAccount account;
+		/*private*/ final String folderName;
+		/*private*/ final List<EmailTableData> mails;
+		
+		/*private*/ Batch(final MailAccount account, final String folderName) {
+			this.account = account;
+			this.folderName = folderName;
+			mails = new ArrayList<>();
+		}
+	}
+}
@@ -18,10 +18,19 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimePart;
+
 /**
  * This class is a pure data class that stores attachment data
+ * <p>
+ * The content of the attachment is not held, but a new decoded stream 
+ * is opened from its part on every request, so the attachment can be 
+ * read again, if saving it failed.
  * 
  * @author jochen
  *
@@ -31,20 +40,64 @@ public final class AttachmentData {
 	private final String fileName;
 	private final int size;
 	private final String type;
-	private final InputStream inputStream;
+	private final String encoding;
+	private final Source source;
+	
+	/**
+	 * A Source opens the decoded content of an attachment, e.g. from a 
+	 * locally stored message or from the server
+	 */
+	@FunctionalInterface
+	public interface Source {
+		/**
+		 * @return	a new stream of the decoded content, which is closed 
+		 * by the caller
+		 * @throws IOException			if the content cannot be read
+		 * @throws MessagingException	if the part cannot be accessed
+		 */
+		InputStream open() throws IOException, MessagingException;
+	}
 	
 	/**
 	 * @param fileName	the file name of the containing attachment
-	 * @param size		the size in byte of the containing attachment
-	 * @param inputStream	the attachment's input stream
+	 * @param size		the encoded size in byte of the containing attachment
+	 * @param type		the content type of the attachment
+	 * @param part		the part containing the attachment
 	 */
 	public AttachmentData(final String fileName, final int size, 
-			final String type, final InputStream inputStream) {
+			final String type, final Part part) {
+		this(fileName, size, type, encodingOf(part), part::getInputStream);
+	}
+	
+	/**
+	 * @param fileName	the file name of the containing attachment
+	 * @param size		the encoded size in byte of the containing attachment
+	 * @param type		the content type of the attachment
+	 * @param encoding	the transfer encoding of the attachment, may be null
+	 * @param source	opens the decoded content of the attachment
+	 */
+	public AttachmentData(final String fileName, final int size, 
+			final String type, final String encoding, final Source source) {
 		super();
 		this.fileName = fileName;
 		this.size = size;
 		this.type = type;
-		this.inputStream = inputStream;
+		this.encoding = encoding;
+		this.source = source;
+	}
+	
+	/**
+	 * @param part	the part containing the attachment
+	 * @return		the transfer encoding of the part or null, if unknown
+	 */
+	/*private*/ static String encodingOf(final Part part) {
+		try {
+			if (part instanceof MimePart)
+				return ((MimePart) part).getEncoding();
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			// unknown encoding
+		}
+		return null;
 	}
 	
 	/**	Get the file name of the containing attachment
@@ -55,7 +108,8 @@ public final class AttachmentData {
 	}
 	
 	/**
-	 * Get the size in byte of the containing attachment
+	 * Get the size in byte of the containing attachment, as it is 
+	 * transferred, i.e. usually base64 encoded
 	 * @return the file size
 	 */
 	public int getSize() {
@@ -63,13 +117,39 @@ public final class AttachmentData {
 	}
 	
 	/**
-	 * Get the input stream of the attachment, which can be used to
-	 * pipe a file output stream
+	 * Get the estimated size in byte of the decoded attachment, which is
+	 * the size of the saved file. Base64 encodes 3 bytes in 4 characters
+	 * and adds a line break every 76 characters.
+	 * 
+	 * @return	the estimated size of the decoded content
+	 */
+	public long getDecodedSize() {
+		if (size <= 0)
+			return 0;
+		if ("base64".equalsIgnoreCase(encoding)) //$NON-NLS-1$
+			return (long) size * 76 / 78 * 3 / 4;
+		return size;
+	}
+	
+	/**
+	 * Get the content type of the attachment
+	 * @return the content type
+	 */
+	public String getType() {
+		return type;
+	}
+	
+	/**
+	 * Opens a new stream of the decoded attachment, which can be used to
+	 * pipe a file output stream. The caller has to close the stream.
+	 * Attachments of messages on the server are downloaded only now.
 	 * 
 	 * @return	the input stream
+	 * @throws IOException			if the content cannot be read
+	 * @throws MessagingException	if the part cannot be accessed
 	 */
-	public InputStream getInputStream() {
-		return inputStream;
+	public InputStream openInputStream() throws IOException, MessagingException {
+		return source.open();
 	}
 	
 }
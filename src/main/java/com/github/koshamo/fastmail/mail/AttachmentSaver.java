@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import javax.mail.MessagingException;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
+
+import javafx.application.Platform;
+
+/**
+ * The AttachmentSaver writes attachments to files in the background.
+ * <p>
+ * The decoded content is streamed through a direct buffer into a file 
+ * channel. Attachments of messages on the server are read in chunks with
+ * partial FETCH commands, as configured for the session of the account.
+ * If a transfer breaks, the attachment is opened again and the bytes 
+ * already written are skipped, so the file is continued instead of being
+ * written again. As the skipped bytes are decoded from the start of the
+ * encoded attachment, they are downloaded again. The progress is reported
+ * in decoded bytes, which is the size of the written file.
+ * <p>
+ * All attachments of a mail are saved concurrently.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public final class AttachmentSaver {
+
+	private static final ExecutorService SAVERS = 
+			Executors.newFixedThreadPool(FastmailGlobals.ATTACHMENT_SAVE_THREADS, 
+					runnable -> {
+						Thread thread = new Thread(runnable, "AttachmentSaver"); //$NON-NLS-1$
+						thread.setDaemon(true);
+						return thread;
+					});
+	
+	private AttachmentSaver() {
+		// utility class
+	}
+	
+	/**
+	 * Saves a single attachment in the background
+	 * 
+	 * @param attachment	the attachment to save
+	 * @param target		the file to write
+	 */
+	public static void save(final AttachmentData attachment, final File target) {
+		ResourceBundle i18n = SerializeManager.getLocaleMessageBundle();
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(i18n.getString("entry.saveattachment"), target.getName()),  //$NON-NLS-1$
+				0.0, MessageItem.MessageType.PROGRESS);
+		MessageMarket.getInstance().produceMessage(mItem);
+		long total = Math.max(attachment.getDecodedSize(), 1);
+		AtomicLong written = new AtomicLong();
+		SAVERS.execute(() -> {
+			try {
+				copy(attachment, target, bytes -> 
+					mItem.updateProgress(progress(written.addAndGet(bytes), total)));
+			} catch (IOException | MessagingException e) {
+				postException(e);
+			} finally {
+				mItem.done();
+			}
+		});
+	}
+	
+	/**
+	 * Saves all attachments into a directory in the background. The 
+	 * progress is reported for all attachments together.
+	 * 
+	 * @param attachments	the attachments to save
+	 * @param directory		the directory to write the files to
+	 */
+	public static void saveAll(final AttachmentData[] attachments, final File directory) {
+		if (attachments.length == 0)
+			return;
+		ResourceBundle i18n = SerializeManager.getLocaleMessageBundle();
+		MessageItem mItem = new MessageItem(
+				i18n.getString("entry.initial.saveallattachment"),  //$NON-NLS-1$
+				0.0, MessageItem.MessageType.PROGRESS);
+		MessageMarket.getInstance().produceMessage(mItem);
+		long totalSize = 0;
+		for (AttachmentData ad : attachments)
+			totalSize += ad.getDecodedSize();
+		final long total = Math.max(totalSize, 1);
+		AtomicLong written = new AtomicLong();
+		AtomicInteger started = new AtomicInteger();
+		AtomicInteger remaining = new AtomicInteger(attachments.length);
+		for (int i = 0; i < attachments.length; ++i) {
+			AttachmentData ad = attachments[i];
+			String name = ad.getFileName() != null 
+					? ad.getFileName() : "attachment" + (i + 1); //$NON-NLS-1$
+			SAVERS.execute(() -> {
+				int cnt = started.incrementAndGet();
+				Platform.runLater(() -> mItem.updateMessage(MessageFormat.format(
+						i18n.getString("entry.saveallattachment"),  //$NON-NLS-1$
+						name, Integer.valueOf(cnt), Integer.valueOf(attachments.length))));
+				try {
+					copy(ad, new File(directory, name), bytes -> 
+						mItem.updateProgress(progress(written.addAndGet(bytes), total)));
+				} catch (IOException | MessagingException e) {
+					postException(e);
+				} finally {
+					if (remaining.decrementAndGet() == 0)
+						mItem.done();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Writes the decoded attachment to the file. If reading the attachment
+	 * fails, it is opened again and read up to the last written byte, 
+	 * before the file is continued.
+	 * 
+	 * @param attachment	the attachment to write
+	 * @param target		the file to write
+	 * @param progress		receives the number of bytes of each write
+	 * @return				the size of the written file
+	 * @throws IOException			if the file cannot be written or the
+	 * attachment cannot be read after the configured retries
+	 * @throws MessagingException	if the attachment cannot be accessed
+	 */
+	/*private*/ static long copy(final AttachmentData attachment, final File target, 
+			final LongConsumer progress) throws IOException, MessagingException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(FastmailGlobals.ATTACHMENT_BUFFER_SIZE);
+		try (FileChannel out = FileChannel.open(target.toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long written = 0;
+			int attempt = 0;
+			while (true) {
+				buffer.clear();
+				boolean writing = false;
+				try (InputStream in = attachment.openInputStream();
+						ReadableByteChannel channel = Channels.newChannel(in)) {
+					skip(in, written);
+					while (channel.read(buffer) >= 0) {
+						if (!buffer.hasRemaining()) {
+							writing = true;
+							written += write(out, buffer, progress);
+							writing = false;
+						}
+					}
+					writing = true;
+					written += write(out, buffer, progress);
+					return written;
+				} catch (IOException e) {
+					// reading again does not help, if the file cannot be written
+					if (writing || ++attempt > FastmailGlobals.ATTACHMENT_RETRIES)
+						throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return	the number of bytes written
+	 */
+	private static int write(final FileChannel out, final ByteBuffer buffer, 
+			final LongConsumer progress) throws IOException {
+		buffer.flip();
+		int count = buffer.remaining();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+		progress.accept(count);
+		return count;
+	}
+	
+	/**
+	 * Skips the bytes already written, when a transfer is resumed. The 
+	 * skipped bytes are still read from the server.
+	 */
+	private static void skip(final InputStream in, final long count) throws IOException {
+		long left = count;
+		while (left > 0) {
+			long skipped = in.skip(left);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					throw new IOException("attachment shorter than written file"); //$NON-NLS-1$
+				skipped = 1;
+			}
+			left -= skipped;
+		}
+	}
+	
+	private static double progress(final long written, final long total) {
+		// the decoded size is estimated, so the progress must not exceed 1
+		return Math.min((double) written / total, 0.99);
+	}
+	
+	private static void postException(final Exception e) {
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(
+						SerializeManager.getLocaleMessageBundle().getString("exception.saveattachment"),  //$NON-NLS-1$
+						e.getMessage()),
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.events.MailItemMeta;
+
+/**
+ * The BodyPrefetcher loads the mails next to the selected mail in the
+ * background, so reading a folder mail by mail is served from memory.
+ * <p>
+ * The loaded mails are parsed completely and kept in a small cache of 
+ * the most recently used mails, their parsed content is kept in the 
+ * ContentCache, which may drop it under memory pressure. Prefetches of a previous selection, 
+ * that have not been started yet, are dropped, when another mail is
+ * selected.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class BodyPrefetcher {
+
+	private final ThreadPoolExecutor loader;
+	private final BlockingQueue<Runnable> queue;
+	private final Map<String, MailData> cache;
+	
+	/*private*/ BodyPrefetcher() {
+		queue = new LinkedBlockingQueue<>();
+		loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, 
+				runnable -> {
+					Thread thread = new Thread(runnable, "BodyPrefetcher"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+		cache = new LinkedHashMap<String, MailData>(32, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MailData> eldest) {
+				return size() > FastmailGlobals.BODY_PREFETCH_CACHE;
+			}
+		};
+	}
+	
+	/**
+	 * Drops all prefetches not started yet, e.g. because another mail has
+	 * been selected
+	 */
+	/*private*/ void cancelPending() {
+		queue.clear();
+	}
+	
+	/**
+	 * Loads the mail in the background, if it is not cached yet
+	 * 
+	 * @param account	the account of the mail
+	 * @param meta		the mail to load
+	 */
+	/*private*/ void prefetch(final MailAccount account, final MailItemMeta meta) {
+		final String key = key(meta);
+		synchronized (cache) {
+			if (cache.containsKey(key))
+				return;
+		}
+		loader.execute(() -> {
+			synchronized (cache) {
+				if (cache.containsKey(key))
+					return;
+			}
+			MailData data = account.getMailData(meta.getFolder(), meta.getUniqueID());
+			if (data != null)
+				put(meta, data.load());
+		});
+	}
+	
+	/**
+	 * @param meta	the mail to look up
+	 * @return		the cached mail or null, if it is not cached
+	 */
+	/*private*/ MailData get(final MailItemMeta meta) {
+		synchronized (cache) {
+			return cache.get(key(meta));
+		}
+	}
+	
+	/**
+	 * Caches a mail loaded for display, so selecting it again is served 
+	 * from memory
+	 * 
+	 * @param meta	the mail
+	 * @param data	the completely parsed mail
+	 */
+	/*private*/ void put(final MailItemMeta meta, final MailData data) {
+		synchronized (cache) {
+			cache.put(key(meta), data);
+		}
+	}
+	
+	/*private*/ void shutdown() {
+		loader.shutdownNow();
+	}
+	
+	private static String key(final MailItemMeta meta) {
+		return ContentCache.key(meta.getAccount(), meta.getFolder(), meta.getUniqueID());
+	}
+}
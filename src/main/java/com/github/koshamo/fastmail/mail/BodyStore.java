@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+
+/**
+ * The BodyStore keeps the raw RFC822 content of the messages of a folder
+ * on disk, so a message is downloaded only once.
+ * <p>
+ * The messages are appended to a segment file, an index file records the
+ * UID, offset and length of each message. Both files are only appended 
+ * to, expunged messages are recorded as tombstones in the index. A 
+ * message is read by mapping its region of the segment file, so it is
+ * served from the page cache without copying it into the heap.
+ * <p>
+ * The UIDs are only valid together with the UIDVALIDITY of the folder, 
+ * so the store is cleared, if the UIDVALIDITY changes. If the space of 
+ * expunged messages exceeds the space of the live messages, the store 
+ * is compacted by copying the live messages into a new segment file.
+ * <p>
+ * The store is bounded by the size of its messages. If an appended 
+ * message exceeds the bound, the messages stored first are evicted like
+ * expunged ones, until three quarters of the bound are left, and the 
+ * store is compacted. Evicted messages are downloaded again, when they
+ * are shown. The compaction keeps the messages in the order they have 
+ * been stored, so the oldest ones are always found at the start of the 
+ * segment file.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class BodyStore {
+
+	private static final String segmentSuffix = ".seg"; //$NON-NLS-1$
+	private static final String indexSuffix = ".idx"; //$NON-NLS-1$
+	// identifies the file format, increment on any change
+	private static final int VERSION = 1;
+	// length of an index entry marking an expunged message
+	private static final long TOMBSTONE = -1;
+	
+	private final File segmentFile;
+	private final File indexFile;
+	// UID -> {offset, length} within the segment file
+	private final Map<Long, long[]> index;
+	private long uidValidity = -1;
+	private long liveBytes = 0;
+	private long deadBytes = 0;
+	private FileChannel segment;
+	private DataOutputStream indexOut;
+	
+	/**
+	 * @param accountName	the name of the account the folder belongs to
+	 * @param folderName	the full name of the folder
+	 */
+	/*private*/ BodyStore(final String accountName, final String folderName) {
+		Objects.requireNonNull(accountName, "accountName must not be null");
+		Objects.requireNonNull(folderName, "folderName must not be null");
+		segmentFile = HeaderCache.getCacheFile(accountName, folderName, segmentSuffix);
+		indexFile = HeaderCache.getCacheFile(accountName, folderName, indexSuffix);
+		index = new HashMap<>();
+	}
+	
+	/**
+	 * Opens the store for the given UIDVALIDITY. If the store has been 
+	 * written with another UIDVALIDITY, it is cleared. Opening an already
+	 * opened store with the same UIDVALIDITY does nothing.
+	 * 
+	 * @param validity	the current UIDVALIDITY of the folder
+	 * @throws IOException	if the files cannot be opened
+	 */
+	/*private*/ synchronized void open(final long validity) throws IOException {
+		if (segment != null && uidValidity == validity)
+			return;
+		close();
+		segmentFile.getParentFile().mkdirs();
+		if (!readIndex(validity)) {
+			index.clear();
+			liveBytes = 0;
+			deadBytes = 0;
+			segmentFile.delete();
+			writeIndexHeader(indexFile, validity);
+		}
+		uidValidity = validity;
+		segment = FileChannel.open(segmentFile.toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.READ, 
+				StandardOpenOption.WRITE);
+		indexOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile, true)));
+	}
+	
+	/**
+	 * @return	true, if the store has been opened
+	 */
+	/*private*/ synchronized boolean isOpen() {
+		return segment != null;
+	}
+	
+	/**
+	 * Get the stored content of a message
+	 * 
+	 * @param uid	the UID of the message
+	 * @return		the mapped content or null, if the message is not stored
+	 * @throws IOException	if the segment file cannot be mapped
+	 */
+	/*private*/ synchronized ByteBuffer get(final long uid) throws IOException {
+		if (segment == null)
+			return null;
+		long[] entry = index.get(Long.valueOf(uid));
+		if (entry == null)
+			return null;
+		return segment.map(FileChannel.MapMode.READ_ONLY, entry[0], entry[1]);
+	}
+	
+	/**
+	 * Appends the content of a message to the store
+	 * 
+	 * @param uid	the UID of the message
+	 * @param raw	the RFC822 content of the message
+	 * @throws IOException	if the files cannot be written
+	 */
+	/*private*/ synchronized void append(final long uid, final byte[] raw) 
+			throws IOException {
+		append(uid, raw, FastmailGlobals.BODY_STORE_MAX_BYTES);
+	}
+	
+	/**
+	 * Appends the content of a message to the store, the oldest messages
+	 * are evicted, if the store exceeds the given bound
+	 * 
+	 * @param uid		the UID of the message
+	 * @param raw		the RFC822 content of the message
+	 * @param maxBytes	the bound of the live messages
+	 * @throws IOException	if the files cannot be written
+	 */
+	/*private*/ synchronized void append(final long uid, final byte[] raw, 
+			final long maxBytes) throws IOException {
+		if (segment == null)
+			throw new IllegalStateException("store is not opened");
+		if (index.containsKey(Long.valueOf(uid)))
+			return;
+		long offset = segment.size();
+		ByteBuffer src = ByteBuffer.wrap(raw);
+		long pos = offset;
+		while (src.hasRemaining())
+			pos += segment.write(src, pos);
+		// the index entry is written after the content, so an interrupted
+		// write leaves an entry pointing beyond the segment, which is ignored
+		writeEntry(indexOut, uid, offset, raw.length);
+		indexOut.flush();
+		index.put(Long.valueOf(uid), new long[] {offset, raw.length});
+		liveBytes += raw.length;
+		if (liveBytes > maxBytes)
+			evict(maxBytes / 4 * 3, uid);
+	}
+	
+	/**
+	 * Evicts the messages stored first and compacts the store
+	 * 
+	 * @param keepBytes	the bytes of live messages to keep at most
+	 * @param keepUid	the UID of the message just stored, which is kept
+	 * @throws IOException	if the files cannot be written
+	 */
+	private void evict(final long keepBytes, final long keepUid) 
+			throws IOException {
+		List<Map.Entry<Long, long[]>> stored = byOffset();
+		for (Map.Entry<Long, long[]> entry : stored) {
+			if (liveBytes <= keepBytes)
+				break;
+			long uid = entry.getKey().longValue();
+			if (uid == keepUid)
+				continue;
+			index.remove(entry.getKey());
+			writeEntry(indexOut, uid, 0, TOMBSTONE);
+			liveBytes -= entry.getValue()[1];
+			deadBytes += entry.getValue()[1];
+		}
+		indexOut.flush();
+		compact();
+	}
+	
+	/**
+	 * Removes expunged messages from the store. The space is freed with
+	 * the next compaction.
+	 * 
+	 * @param uids	the UIDs of the expunged messages
+	 * @throws IOException	if the files cannot be written
+	 */
+	/*private*/ synchronized void remove(final Collection<Long> uids) 
+			throws IOException {
+		if (segment == null)
+			return;
+		boolean removed = false;
+		for (Long uid : uids) {
+			long[] entry = index.remove(uid);
+			if (entry == null)
+				continue;
+			writeEntry(indexOut, uid.longValue(), 0, TOMBSTONE);
+			liveBytes -= entry[1];
+			deadBytes += entry[1];
+			removed = true;
+		}
+		if (!removed)
+			return;
+		indexOut.flush();
+		if (deadBytes > FastmailGlobals.BODY_STORE_COMPACT_BYTES 
+				&& deadBytes > liveBytes)
+			compact();
+	}
+	
+	/**
+	 * Closes the files of the store
+	 */
+	/*private*/ synchronized void close() {
+		try {
+			if (indexOut != null)
+				indexOut.close();
+			if (segment != null)
+				segment.close();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// nothing left to be written
+		}
+		indexOut = null;
+		segment = null;
+	}
+	
+	/**
+	 * Closes the store and removes its files
+	 */
+	/*private*/ synchronized void delete() {
+		close();
+		index.clear();
+		segmentFile.delete();
+		indexFile.delete();
+	}
+	
+	/**
+	 * Copies the live messages into a new segment file and writes a new
+	 * index. The files are replaced by moving the new files, so the store
+	 * is never left in an inconsistent state. Regions mapped before stay
+	 * valid, as they still refer to the old file.
+	 * 
+	 * @throws IOException	if the new files cannot be written
+	 */
+	private void compact() throws IOException {
+		File tmpSegment = new File(segmentFile.getPath() + ".tmp"); //$NON-NLS-1$
+		File tmpIndex = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+		writeIndexHeader(tmpIndex, uidValidity);
+		try (FileChannel out = FileChannel.open(tmpSegment.toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.TRUNCATE_EXISTING);
+				DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(tmpIndex, true)))) {
+			long pos = 0;
+			// the order of storing is kept, the oldest messages are evicted first
+			for (Map.Entry<Long, long[]> entry : byOffset()) {
+				long[] region = entry.getValue();
+				long copied = 0;
+				// transferTo lets the operating system copy the data
+				while (copied < region[1])
+					copied += segment.transferTo(region[0] + copied, 
+							region[1] - copied, out);
+				writeEntry(idx, entry.getKey().longValue(), pos, region[1]);
+				pos += region[1];
+			}
+		}
+		long validity = uidValidity;
+		close();
+		try {
+			Files.move(tmpSegment.toPath(), segmentFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmpIndex.toPath(), indexFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// e.g. the segment is still mapped on some platforms, 
+			// compact with the next removal
+			tmpSegment.delete();
+			tmpIndex.delete();
+			open(validity);
+			return;
+		}
+		// reads the compacted index
+		open(validity);
+	}
+	
+	/**
+	 * @return	the stored messages in the order of their regions in the 
+	 * segment file, the oldest first
+	 */
+	private List<Map.Entry<Long, long[]>> byOffset() {
+		List<Map.Entry<Long, long[]>> stored = new ArrayList<>(index.entrySet());
+		stored.sort(Comparator.comparingLong(
+				(Map.Entry<Long, long[]> entry) -> entry.getValue()[0]));
+		return stored;
+	}
+	
+	/**
+	 * Reads the index file
+	 * 
+	 * @param validity	the expected UIDVALIDITY
+	 * @return	true, if the index is valid for the given UIDVALIDITY
+	 */
+	private boolean readIndex(final long validity) {
+		index.clear();
+		liveBytes = 0;
+		deadBytes = 0;
+		if (!indexFile.exists() || !segmentFile.exists())
+			return false;
+		long segmentSize = segmentFile.length();
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != VERSION || in.readLong() != validity)
+				return false;
+			try {
+				while (true) {
+					long uid = in.readLong();
+					long offset = in.readLong();
+					long length = in.readLong();
+					Long key = Long.valueOf(uid);
+					long[] old = index.remove(key);
+					if (old != null) {
+						liveBytes -= old[1];
+						deadBytes += old[1];
+					}
+					if (length != TOMBSTONE && offset + length <= segmentSize) {
+						index.put(key, new long[] {offset, length});
+						liveBytes += length;
+					}
+				}
+			} catch (@SuppressWarnings("unused") EOFException e) {
+				// end of index, a truncated entry at the end is ignored
+			}
+		} catch (@SuppressWarnings("unused") IOException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	private static void writeIndexHeader(final File file, final long validity) 
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(file))) {
+			out.writeInt(VERSION);
+			out.writeLong(validity);
+		}
+	}
+	
+	private static void writeEntry(final DataOutputStream out, final long uid, 
+			final long offset, final long length) throws IOException {
+		out.writeLong(uid);
+		out.writeLong(offset);
+		out.writeLong(length);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+
+/**
+ * The ConnectionPool holds the server connections of a mail account.
+ * <p>
+ * Every connection is a Store of its own, so the workers of an account do 
+ * not serialize through a single connection. The pool separates the 
+ * connections by their purpose:
+ * <li> the IDLE connection is long-lived and used by the InboxWatcher
+ * <li> the sync connection is used to synchronize the folder lists
+ * <li> fetch connections are used on demand to load mail bodies and 
+ * attachments. Their number is limited by the pool's cap, a worker
+ * needs to acquire a fetch connection and release it afterwards.
+ * <p>
+ * Connections are checked before they are handed out, if they have not
+ * been used for a while. Broken connections (e.g. after BYE or timeout)
+ * are reconnected. Workers detecting a broken connection should 
+ * invalidate it, so it will be checked next time.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class ConnectionPool {
+
+	private final Session session;
+	private final MailAccountData data;
+	private final int maxFetchConnections;
+	private final Semaphore fetchPermits;
+	private final Deque<Store> freeFetchStores;
+	private final List<Store> fetchStores;
+	// the time each store has last been verified to be connected
+	private final Map<Store, Long> lastCheck;
+	private Store idleStore;
+	private Store syncStore;
+	
+	/**
+	 * @param session				the session of the mail account
+	 * @param data					the account data to connect with
+	 * @param maxFetchConnections	the cap of fetch connections
+	 */
+	/*private*/ ConnectionPool(final Session session, final MailAccountData data, 
+			final int maxFetchConnections) {
+		this.session = Objects.requireNonNull(session, "session must not be null");
+		this.data = Objects.requireNonNull(data, "data must not be null");
+		if (maxFetchConnections < 1)
+			throw new IllegalArgumentException("maxFetchConnections must be positive");
+		this.maxFetchConnections = maxFetchConnections;
+		fetchPermits = new Semaphore(maxFetchConnections, true);
+		freeFetchStores = new ArrayDeque<>();
+		fetchStores = new ArrayList<>();
+		lastCheck = new HashMap<>();
+	}
+	
+	/**
+	 * @return the cap of fetch connections
+	 */
+	/*private*/ int getMaxFetchConnections() {
+		return maxFetchConnections;
+	}
+	
+	/**
+	 * Get the long-lived connection intended for IMAP IDLE
+	 * 
+	 * @return	the connected store
+	 * @throws MessagingException	if no connection can be established
+	 */
+	/*private*/ synchronized Store getIdleStore() throws MessagingException {
+		idleStore = ensureConnected(idleStore);
+		return idleStore;
+	}
+	
+	/**
+	 * Get the connection intended for folder synchronization
+	 * 
+	 * @return	the connected store
+	 * @throws MessagingException	if no connection can be established
+	 */
+	/*private*/ synchronized Store getSyncStore() throws MessagingException {
+		syncStore = ensureConnected(syncStore);
+		return syncStore;
+	}
+	
+	/**
+	 * Acquires a connection to fetch mail bodies and attachments. If all
+	 * fetch connections are in use, the caller is blocked until one is 
+	 * released. Every acquired connection must be released with 
+	 * releaseFetchStore().
+	 * 
+	 * @return	the connected store
+	 * @throws MessagingException	if no connection can be established
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	/*private*/ Store acquireFetchStore() 
+			throws MessagingException, InterruptedException {
+		fetchPermits.acquire();
+		try {
+			synchronized (this) {
+				Store store = freeFetchStores.poll();
+				Store connected = ensureConnected(store);
+				if (store != connected)
+					fetchStores.add(connected);
+				return connected;
+			}
+		} catch (MessagingException e) {
+			fetchPermits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param store	the fetch connection acquired before
+	 */
+	/*private*/ void releaseFetchStore(final Store store) {
+		synchronized (this) {
+			freeFetchStores.push(store);
+		}
+		fetchPermits.release();
+	}
+	
+	/**
+	 * Marks a connection to be checked, before it is used the next time.
+	 * 
+	 * @param store	the connection, that failed
+	 */
+	/*private*/ synchronized void invalidate(final Store store) {
+		lastCheck.remove(store);
+	}
+	
+	/**
+	 * Closes all connections of the pool
+	 */
+	/*private*/ synchronized void close() {
+		close(idleStore);
+		close(syncStore);
+		for (Store store : fetchStores)
+			close(store);
+		idleStore = null;
+		syncStore = null;
+		fetchStores.clear();
+		freeFetchStores.clear();
+		lastCheck.clear();
+	}
+	
+	/**
+	 * Checks a connection, if it has not been checked for a while, and
+	 * reconnects it, if it is broken. A new connection is established,
+	 * if no store is given.
+	 * 
+	 * @param store	the connection to check, may be null
+	 * @return		the connected store
+	 * @throws MessagingException	if no connection can be established
+	 */
+	private Store ensureConnected(final Store store) throws MessagingException {
+		long now = System.currentTimeMillis();
+		Store result = store;
+		if (result != null) {
+			Long checked = lastCheck.get(result);
+			if (checked != null 
+					&& now - checked.longValue() < FastmailGlobals.CONNECTION_CHECK_MS)
+				return result;
+			// for IMAP, isConnected() sends a NOOP to the server
+			if (!result.isConnected()) {
+				close(result);
+				connect(result);
+			}
+		} else {
+			result = session.getStore(data.getInboxType().toLowerCase());
+			connect(result);
+		}
+		lastCheck.put(result, Long.valueOf(now));
+		return result;
+	}
+	
+	private void connect(final Store store) throws MessagingException {
+		store.connect(data.getInboxHost(), data.getUsername(), data.getPassword());
+	}
+	
+	private void close(final Store store) {
+		if (store == null)
+			return;
+		lastCheck.remove(store);
+		try {
+			store.close();
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			// connection is broken anyway
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+
+/**
+ * The ContentCache keeps the parsed content of the most recently shown 
+ * mails of all accounts. 
+ * <p>
+ * The cache is bounded by the estimated memory of the contents: the text
+ * and HTML content and the metadata of the attachments, whose content is
+ * not held in memory. If the bound is exceeded, the least recently used
+ * contents are only kept softly reachable, so they can still be served, 
+ * until the garbage collector needs the memory.
+ * <p>
+ * Hits and misses are counted to tune the size of the cache, the mail 
+ * module prints them, when the application is shut down.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ final class ContentCache {
+
+	private static final ContentCache INSTANCE = new ContentCache(FastmailGlobals.CONTENT_CACHE_BYTES);
+	
+	/* estimated memory of an entry without its strings */
+	private static final int ENTRY_WEIGHT = 128;
+	private static final int ATTACHMENT_WEIGHT = 96;
+	
+	private final long maxWeight;
+	private final LinkedHashMap<String, Entry> entries;
+	private final Map<String, SoftEntry> softEntries;
+	private final ReferenceQueue<MailContent> collected;
+	private long weight;
+	
+	private long hits;
+	private long softHits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * @param maxWeight	the estimated memory in bytes kept strongly
+	 */
+	/*private*/ ContentCache(final long maxWeight) {
+		this.maxWeight = maxWeight;
+		entries = new LinkedHashMap<>(64, 0.75f, true);
+		softEntries = new HashMap<>();
+		collected = new ReferenceQueue<>();
+	}
+	
+	/*private*/ static ContentCache getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * @param account	the account of the mail
+	 * @param folder	the full name of the folder of the mail
+	 * @param uniqueID	the message key of the mail
+	 * @return			the key of the mail in the cache
+	 */
+	/*private*/ static String key(final String account, final String folder, 
+			final long uniqueID) {
+		return account + '\n' + folder + '\n' + uniqueID;
+	}
+	
+	/**
+	 * @param key	the key of the mail
+	 * @return		the cached content or null, if it is not cached
+	 */
+	/*private*/ synchronized MailContent get(final String key) {
+		purgeCollected();
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			hits++;
+			return entry.content;
+		}
+		SoftEntry soft = softEntries.remove(key);
+		MailContent content = soft != null ? soft.get() : null;
+		if (content != null) {
+			softHits++;
+			// used again, so it is kept strongly again
+			put(key, content);
+			return content;
+		}
+		misses++;
+		return null;
+	}
+	
+	/**
+	 * Adds the content of a mail, the least recently used contents are 
+	 * kept softly, if the cache exceeds its bound
+	 * 
+	 * @param key		the key of the mail
+	 * @param content	the parsed content
+	 */
+	/*private*/ synchronized void put(final String key, final MailContent content) {
+		purgeCollected();
+		softEntries.remove(key);
+		Entry entry = new Entry(content, weigh(content));
+		Entry previous = entries.put(key, entry);
+		if (previous != null)
+			weight -= previous.weight;
+		weight += entry.weight;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		// the latest content is kept, even if it exceeds the bound alone
+		while (weight > maxWeight && entries.size() > 1) {
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			weight -= eldest.getValue().weight;
+			softEntries.put(eldest.getKey(), 
+					new SoftEntry(eldest.getKey(), eldest.getValue().content, collected));
+			evictions++;
+		}
+	}
+	
+	/**
+	 * Removes the content of a mail, e.g. because it has been expunged
+	 * 
+	 * @param key	the key of the mail
+	 */
+	/*private*/ synchronized void remove(final String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			weight -= entry.weight;
+		softEntries.remove(key);
+	}
+	
+	/**
+	 * @return	the current statistics of the cache
+	 */
+	/*private*/ synchronized Statistics getStatistics() {
+		purgeCollected();
+		return new Statistics(hits, softHits, misses, evictions, 
+				entries.size(), softEntries.size(), weight);
+	}
+	
+	/**
+	 * Estimates the memory of the content. Strings take two bytes per 
+	 * character, the attachments only hold their metadata.
+	 * 
+	 * @param content	the parsed content
+	 * @return			the estimated memory in bytes
+	 */
+	/*private*/ static long weigh(final MailContent content) {
+		long w = ENTRY_WEIGHT;
+		if (content.getTextContent() != null)
+			w += 2L * content.getTextContent().length();
+		if (content.getHtmlContent() != null)
+			w += 2L * content.getHtmlContent().length();
+		for (AttachmentData ad : content.getAttachments()) {
+			w += ATTACHMENT_WEIGHT;
+			if (ad.getFileName() != null)
+				w += 2L * ad.getFileName().length();
+			if (ad.getType() != null)
+				w += 2L * ad.getType().length();
+		}
+		return w;
+	}
+	
+	/**
+	 * Removes the entries, whose content has been collected
+	 */
+	private void purgeCollected() {
+		Reference<? extends MailContent> ref;
+		while ((ref = collected.poll()) != null) {
+			SoftEntry soft = (SoftEntry) ref;
+			// the key may have been cached again meanwhile
+			if (softEntries.get(soft.key) == soft)
+				softEntries.remove(soft.key);
+		}
+	}
+	
+	
+	private static final class Entry {
+		/*private*/ final MailContent content;
+		/*private*/ final long weight;
+		
+		/*private*/ Entry(final MailContent content, final long weight) {
+			this.content = content;
+			this.weight = weight;
+		}
+	}
+	
+	private static final class SoftEntry extends SoftReference<MailContent> {
+		/*private*/ final String key;
+		
+		/*private*/ SoftEntry(final String key, final MailContent content, 
+				final ReferenceQueue<MailContent> queue) {
+			super(content, queue);
+			this.key = key;
+		}
+	}
+	
+	
+	/**
+	 * A snapshot of the usage of the cache
+	 */
+	/*private*/ static final class Statistics {
+		private final long hits;
+		private final long softHits;
+		private final long misses;
+		private final long evictions;
+		private final int entries;
+		private final int softEntries;
+		private final long weight;
+		
+		/*private*/ Statistics(final long hits, final long softHits, 
+				final long misses, final long evictions, final int entries, 
+				final int softEntries, final long weight) {
+			this.hits = hits;
+			this.softHits = softHits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.entries = entries;
+			this.softEntries = softEntries;
+			this.weight = weight;
+		}
+
+		/**
+		 * @return the number of requests served by strongly kept contents
+		 */
+		/*private*/ long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return the number of requests served by softly kept contents
+		 */
+		/*private*/ long getSoftHits() {
+			return softHits;
+		}
+
+		/**
+		 * @return the number of requests not served
+		 */
+		/*private*/ long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return the number of contents, that exceeded the bound
+		 */
+		/*private*/ long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return the number of strongly kept contents
+		 */
+		/*private*/ int getEntries() {
+			return entries;
+		}
+
+		/**
+		 * @return the number of softly kept contents, which may have been 
+		 * collected already
+		 */
+		/*private*/ int getSoftEntries() {
+			return softEntries;
+		}
+
+		/**
+		 * @return the estimated memory of the strongly kept contents
+		 */
+		/*private*/ long getWeight() {
+			return weight;
+		}
+		
+		/**
+		 * @return the ratio of served requests
+		 */
+		/*private*/ double getHitRatio() {
+			long requests = hits + softHits + misses;
+			return requests == 0 ? 0.0 : (double) (hits + softHits) / requests;
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "ContentCache [hits=" + hits + ", softHits=" + softHits  //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", misses=" + misses + ", evictions=" + evictions  //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", entries=" + entries + ", softEntries=" + softEntries  //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", weight=" + weight + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
@@ -18,13 +18,46 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.SearchTerm;
 
+import com.github.koshamo.fastmail.FastmailGlobals;
 import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
+import com.sun.mail.imap.IMAPMessage;
 
 /**
  * @author Dr. Jochen Raßler
@@ -32,20 +65,302 @@ import com.github.koshamo.fastmail.util.EmailTableData;
  */
 /*private*/ class FolderContent {
 	
-	// TODO: make FolderContent sortable for number of mails in it
-	
 	private final MailAccount account;
 	private final Folder folder;
-	private List<MailReference> mailRefs;
-	private List<EmailTableData> mailData;
+	// the mapped messages keyed by their unique id and their table rows, 
+	// which are stored column by column, as large folders hold many of them
+	private Map<Long, MailReference> mailRefs;
+	private MailColumns mailData;
 	private final MailListFetcher fetcher;
+	private MailRef2EtdMapper etdMapper;
+	private final HeaderCache headerCache;
+	private final BodyStore bodyStore;
+	// set, if the mail list has been restored from the header cache
+	private boolean cached = false;
+	// set, if the mail list contains all messages of the folder
+	private volatile boolean listed = false;
+	// set, if the mail list could not be built, so it is scheduled again
+	private volatile boolean syncFailed = false;
+	// the messages loaded page by page, while the mail list is built
+	private final Map<Long, MailReference> pagedRefs;
+	private final Map<Long, EmailTableData> pagedRows;
+	// the messages found by the last server search, kept until the next one
+	private volatile Map<Long, MailReference> searchRefs = Collections.emptyMap();
+	private volatile Map<Long, EmailTableData> searchRows = Collections.emptyMap();
 	
 	public FolderContent(final MailAccount account, final Folder folder) {
 		this.account = Objects.requireNonNull(account, "account must not be null");
 		this.folder = Objects.requireNonNull(folder, "folder must not be null");
 //		mailRefs = new ArrayList<>();
 //		mailData = new ArrayList<>();
-		fetcher = new MailListFetcher(folder);
+		fetcher = new MailListFetcher(
+				account::getConnectionPool, folder.getFullName());
+		headerCache = new HeaderCache(account.getAccountName(), folder.getFullName());
+		bodyStore = new BodyStore(account.getAccountName(), folder.getFullName());
+		pagedRefs = Collections.synchronizedMap(new PageCache<MailReference>());
+		pagedRows = Collections.synchronizedMap(new PageCache<EmailTableData>());
+	}
+	
+	/**
+	 * Restores the mail list from the header cache, so it can be shown, 
+	 * before the folder has been synchronized with the server
+	 */
+	/*private*/ synchronized void loadHeaderCache() {
+		if (!headerCache.load())
+			return;
+		MailColumns rows = headerCache.getHeaders();
+		long[] uids = headerCache.getUids();
+		Map<Long, MailReference> refs = new HashMap<>(rows.size() * 2);
+		for (int row = 0; row < rows.size(); ++row) {
+			MailReference ref = new MailReference(null, uids[row]);
+			Long key = Long.valueOf(rows.getKey(row));
+			ref.setUniqueId(key.longValue());
+			refs.put(key, ref);
+		}
+		fetcher.restore(headerCache.getUidValidity(), headerCache.getLastUid(), 
+				headerCache.getHighestModSeq(), new ArrayList<>(refs.values()));
+		mailRefs = Collections.synchronizedMap(refs);
+		mailData = rows;
+		SearchIndex.getInstance().addAll(account.getAccountName(), 
+				getFolderName(), rows);
+		cached = true;
+		listed = true;
+	}
+	
+	/**
+	 * Writes the mail list to the header cache. Only folders with UIDs
+	 * are cached and only after the mail list has been built completely.
+	 */
+	/*private*/ synchronized void saveHeaderCache() {
+		if (etdMapper == null || !etdMapper.isDone() 
+				|| fetcher.getUidValidity() <= 0)
+			return;
+		MailColumns headers = mailData.copy();
+		// the last rows are moved into the place of removed ones
+		for (int row = headers.size() - 1; row >= 0; --row)
+			if (!mailRefs.containsKey(Long.valueOf(headers.getKey(row))))
+				headers.remove(headers.getKey(row));
+		long[] uids = new long[headers.size()];
+		for (int row = 0; row < uids.length; ++row)
+			uids[row] = mailRefs.get(Long.valueOf(headers.getKey(row))).getUid();
+		headerCache.save(fetcher.getUidValidity(), fetcher.getLastUid(), 
+				fetcher.getHighestModSeq(), headers, uids);
+	}
+	
+	
+	/**
+	 * Called after the runner has built the mail list. If the list is
+	 * complete, the paged mails are not needed anymore and the list is
+	 * propagated, so it can replace a paged listing.
+	 */
+	/*private*/ void mailListCompleted() {
+		if (etdMapper == null || !etdMapper.isDone())
+			return;
+		listed = true;
+		pagedRefs.clear();
+		pagedRows.clear();
+		account.propagateMailList(getFolderName());
+	}
+	
+	/**
+	 * Called, if the mail list could not be built, e.g. as no connection
+	 * was available. The next synchronization schedules the folder again.
+	 */
+	/*private*/ void mailListFailed() {
+		syncFailed = true;
+	}
+	
+	/**
+	 * @return	true, if the mail list contains all messages of the folder,
+	 * false, if the mail list is still built
+	 */
+	/*private*/ boolean isMailListComplete() {
+		return listed;
+	}
+	
+	/**
+	 * Loads a page of the folder listing directly from the server, so a 
+	 * large folder can be shown, before its mail list has been built. The
+	 * rows are counted from the newest message on, message number 
+	 * <code>total</code> being the first row.
+	 * <p>
+	 * The loaded messages are kept in a bounded cache, so they can be 
+	 * opened from the listing.
+	 * 
+	 * @param total		the number of messages, when the listing was shown
+	 * @param page		the index of the page
+	 * @param pageSize	the number of rows per page
+	 * @return	the table data of the page, newest message first, or null,
+	 * if the page could not be loaded
+	 */
+	/*private*/ EmailTableData[] getMailPage(int total, int page, int pageSize) {
+		int high = total - page * pageSize;
+		int low = Math.max(high - pageSize + 1, 1);
+		ConnectionPool pool = account.getConnectionPool();
+		Store store = null;
+		Folder pageFolder = null;
+		try {
+			store = pool.acquireFetchStore();
+			pageFolder = store.getFolder(getFolderName());
+			pageFolder.open(Folder.READ_ONLY);
+			// messages expunged meanwhile shift the listing, which is 
+			// accepted, as it is replaced by the complete mail list
+			high = Math.min(high, pageFolder.getMessageCount());
+			if (low > high)
+				return new EmailTableData[0];
+			Message[] msgs = pageFolder.getMessages(low, high);
+			pageFolder.fetch(msgs, MailRef2EtdMapper.createEnvelopeProfile());
+			UIDFolder uidFolder = pageFolder instanceof UIDFolder 
+					? (UIDFolder) pageFolder : null;
+			long uidValidity = uidFolder != null ? uidFolder.getUIDValidity() : 0;
+			EmailTableData[] rows = new EmailTableData[msgs.length];
+			for (int i = 0; i < msgs.length; ++i) {
+				Message msg = msgs[msgs.length - 1 - i];
+				if (msg instanceof IMAPMessage)
+					((IMAPMessage) msg).setPeek(true);
+				// the uid of folders without UIDs is the message number
+				long uid = uidFolder != null 
+						? uidFolder.getUID(msg) : msg.getMessageNumber();
+				EmailTableData etd = MailRef2EtdMapper.getEmailTableData(
+						new MailReference(msg, uid), uidValidity);
+				// the message object is bound to the closed page folder
+				MailReference ref = new MailReference(null, uid);
+				ref.setUniqueId(etd.getUniqueID());
+				Long key = Long.valueOf(etd.getUniqueID());
+				pagedRefs.put(key, ref);
+				pagedRows.put(key, etd);
+				rows[i] = etd;
+			}
+			return rows;
+		} catch (FolderClosedException e) {
+			pool.invalidate(store);
+			postException(e);
+		} catch (MessagingException | IOException e) {
+			postException(e);
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			// shutting down
+		} finally {
+			try {
+				if (pageFolder != null && pageFolder.isOpen())
+					pageFolder.close(false);
+			} catch (@SuppressWarnings("unused") MessagingException e) {
+				// folder is not used anymore
+			}
+			if (store != null)
+				pool.releaseFetchStore(store);
+		}
+		return null;
+	}
+	
+	/**
+	 * Searches the messages of the folder on the server. The envelopes of
+	 * the matching messages, that are not part of the mail list yet, are 
+	 * fetched in chunks and kept until the next search, so they can be 
+	 * opened from the search result.
+	 * 
+	 * @param term		the search term to send to the server
+	 * @param known		the keys of the mails already found, which are skipped
+	 * @param maxHits	the maximum number of mails to deliver
+	 * @param hits		receives the found mails chunk by chunk, newest first
+	 * @param cancelled	tells, if the search is not needed anymore
+	 * @return			the number of delivered mails
+	 */
+	/*private*/ int searchServer(SearchTerm term, Set<String> known, int maxHits, 
+			Consumer<EmailTableData[]> hits, BooleanSupplier cancelled) {
+		ConnectionPool pool = account.getConnectionPool();
+		Store store = null;
+		Folder searchFolder = null;
+		int delivered = 0;
+		Map<Long, MailReference> foundRefs = Collections.synchronizedMap(new HashMap<>());
+		Map<Long, EmailTableData> foundRows = Collections.synchronizedMap(new HashMap<>());
+		searchRefs = foundRefs;
+		searchRows = foundRows;
+		try {
+			store = pool.acquireFetchStore();
+			searchFolder = store.getFolder(getFolderName());
+			searchFolder.open(Folder.READ_ONLY);
+			Message[] found = searchFolder.search(term);
+			if (found.length == 0 || cancelled.getAsBoolean())
+				return 0;
+			UIDFolder uidFolder = searchFolder instanceof UIDFolder 
+					? (UIDFolder) searchFolder : null;
+			long uidValidity = uidFolder != null ? uidFolder.getUIDValidity() : 0;
+			if (uidFolder != null) {
+				FetchProfile uids = new FetchProfile();
+				uids.add(UIDFolder.FetchProfileItem.UID);
+				searchFolder.fetch(found, uids);
+			}
+			// the newest messages are found first
+			List<EmailTableData> listed = new ArrayList<>();
+			List<Message> unknown = new ArrayList<>();
+			for (int i = found.length - 1; i >= 0 && listed.size() + unknown.size() < maxHits; --i) {
+				if (uidValidity > 0) {
+					Long key = Long.valueOf(MessageKey.of(
+							uidValidity, uidFolder.getUID(found[i])));
+					EmailTableData etd = mailData != null ? mailData.get(key.longValue()) : null;
+					if (etd != null) {
+						// listed mails need no envelope
+						if (!known.contains(contentKey(etd)))
+							listed.add(etd);
+						continue;
+					}
+				}
+				unknown.add(found[i]);
+			}
+			if (!listed.isEmpty()) {
+				hits.accept(listed.toArray(new EmailTableData[listed.size()]));
+				delivered += listed.size();
+			}
+			FetchProfile profile = MailRef2EtdMapper.createEnvelopeProfile();
+			for (int start = 0; start < unknown.size(); 
+					start += FastmailGlobals.ENVELOPE_FETCH_CHUNK) {
+				if (cancelled.getAsBoolean())
+					break;
+				Message[] chunk = unknown.subList(start, Math.min(unknown.size(), 
+						start + FastmailGlobals.ENVELOPE_FETCH_CHUNK)).toArray(new Message[0]);
+				searchFolder.fetch(chunk, profile);
+				List<EmailTableData> rows = new ArrayList<>(chunk.length);
+				for (Message msg : chunk) {
+					if (msg instanceof IMAPMessage)
+						((IMAPMessage) msg).setPeek(true);
+					// the uid of folders without UIDs is the message number
+					long uid = uidFolder != null 
+							? uidFolder.getUID(msg) : msg.getMessageNumber();
+					EmailTableData etd = MailRef2EtdMapper.getEmailTableData(
+							new MailReference(msg, uid), uidValidity);
+					if (known.contains(contentKey(etd)))
+						continue;
+					// the message object is bound to the closed search folder
+					MailReference ref = new MailReference(null, uid);
+					ref.setUniqueId(etd.getUniqueID());
+					Long key = Long.valueOf(etd.getUniqueID());
+					foundRefs.put(key, ref);
+					foundRows.put(key, etd);
+					rows.add(etd);
+				}
+				if (!rows.isEmpty()) {
+					hits.accept(rows.toArray(new EmailTableData[rows.size()]));
+					delivered += rows.size();
+				}
+			}
+		} catch (FolderClosedException e) {
+			pool.invalidate(store);
+			postException(e);
+		} catch (MessagingException | IOException e) {
+			postException(e);
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			// shutting down
+		} finally {
+			try {
+				if (searchFolder != null && searchFolder.isOpen())
+					searchFolder.close(false);
+			} catch (@SuppressWarnings("unused") MessagingException e) {
+				// folder is not used anymore
+			}
+			if (store != null)
+				pool.releaseFetchStore(store);
+		}
+		return delivered;
 	}
 	
 	public void generateMailList() {
@@ -53,10 +368,434 @@ import com.github.koshamo.fastmail.util.EmailTableData;
 		new Thread(etdMapper).start();
 	}
 	
-	public MailRef2EtdMapper generateMail2EtdRunner() {
-		mailRefs = fetcher.getMailRefs();
-		mailData = new ArrayList<>();
-		return new MailRef2EtdMapper(this, mailRefs, mailData);
+	/**
+	 * Creates the runner to build the mail list. If the mail list has 
+	 * been restored from the header cache, only the changes since the last
+	 * session are read from the server and the runner maps the new mails.
+	 * 
+	 * @return	the runner to map the mails
+	 */
+	public synchronized MailRef2EtdMapper generateMail2EtdRunner() {
+		if (cached) {
+			cached = false;
+			fetcher.updateMailList();
+			removeMails(fetcher.getToDelete());
+			updateFlags(fetcher.getToUpdate());
+			etdMapper = new MailRef2EtdMapper(this, new ArrayList<>(fetcher.getToAdd()));
+			return etdMapper;
+		}
+		List<MailReference> refs = fetcher.getMailRefs();
+		// the mails of a mail list built again are indexed again
+		if (mailData != null)
+			SearchIndex.getInstance().removeFolder(
+					account.getAccountName(), getFolderName());
+		mailRefs = Collections.synchronizedMap(new HashMap<>(refs.size() * 2));
+		mailData = new MailColumns(refs.size());
+		SearchIndex.getInstance().addAll(account.getAccountName(), 
+				getFolderName(), mailData);
+		etdMapper = new MailRef2EtdMapper(this, refs);
+		return etdMapper;
+	}
+	
+	/**
+	 * Synchronizes the local mail list with the server folder. Only the
+	 * changes since the last synchronization are fetched from the server,
+	 * new mails are added and propagated, expunged mails are removed and
+	 * changed read and marked states are updated in place.
+	 * <p>
+	 * Nothing is done, until the initial mail list has been built. If 
+	 * building the mail list failed, the folder is scheduled to build it
+	 * again.
+	 */
+	public synchronized void synchronize() {
+		if (syncFailed || (etdMapper != null && etdMapper.isFailed())) {
+			syncFailed = false;
+			etdMapper = null;
+			account.scheduleSync(this);
+			return;
+		}
+		if (etdMapper == null || !etdMapper.isDone())
+			return;
+		fetcher.updateMailList();
+		removeMails(fetcher.getToDelete());
+		updateFlags(fetcher.getToUpdate());
+		List<MailReference> toAdd = fetcher.getToAdd();
+		if (!toAdd.isEmpty())
+			new MailRef2EtdMapper(this, toAdd).run();
+	}
+	
+	/**
+	 * Updates the read and marked state of the given messages. The table 
+	 * shows its own rows, so the changed mails are propagated with their
+	 * new state, which the table takes over and tests them again, if it is
+	 * filtered.
+	 * 
+	 * @param refs	the messages with changed flags
+	 */
+	private void updateFlags(List<MailReference> refs) {
+		if (refs.isEmpty())
+			return;
+		List<EmailTableData> rows = new ArrayList<>();
+		for (MailReference ref : refs) {
+			Flags flags = ref.getFlags();
+			EmailTableData etd = flags == null ? null : mailData.setFlags(
+					ref.getUniqueId(), flags.contains(Flag.SEEN), flags.contains(Flag.FLAGGED));
+			if (etd != null)
+				rows.add(etd);
+		}
+		if (!rows.isEmpty())
+			account.propagateChangedMails(getFolderName(), 
+					rows.toArray(new EmailTableData[0]));
+	}
+	
+	/**
+	 * @param refs	the messages expunged on the server
+	 */
+	private void removeMails(List<MailReference> refs) {
+		if (refs.isEmpty())
+			return;
+		removeBodies(refs);
+		List<EmailTableData> removed = new ArrayList<>();
+		for (MailReference ref : refs) {
+			if (ref.getUniqueId() == MessageKey.NONE)
+				continue;
+			Long key = Long.valueOf(ref.getUniqueId());
+			ContentCache.getInstance().remove(ContentCache.key(
+					account.getAccountName(), getFolderName(), ref.getUniqueId()));
+			SearchIndex.getInstance().remove(
+					account.getAccountName(), getFolderName(), ref.getUniqueId());
+			mailRefs.remove(key);
+			EmailTableData etd = mailData.remove(key.longValue());
+			if (etd != null)
+				removed.add(etd);
+		}
+		if (!removed.isEmpty())
+			account.propagateRemovedMails(getFolderName(), 
+					removed.toArray(new EmailTableData[0]));
+	}
+	
+	/**
+	 * @return	the number of messages in the server folder, which is read
+	 * with STATUS for a closed folder. If the server cannot deliver the 
+	 * number, Integer.MAX_VALUE is returned.
+	 */
+	/*private*/ int getServerMessageCount() {
+		try {
+			int count = folder.getMessageCount();
+			return count < 0 ? Integer.MAX_VALUE : count;
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Removes the stored content of expunged messages
+	 * 
+	 * @param refs	the messages expunged on the server
+	 */
+	private void removeBodies(List<MailReference> refs) {
+		long validity = fetcher.getUidValidity();
+		if (validity <= 0)
+			return;
+		List<Long> uids = new ArrayList<>(refs.size());
+		for (MailReference ref : refs)
+			uids.add(Long.valueOf(ref.getUid()));
+		try {
+			bodyStore.open(validity);
+			bodyStore.remove(uids);
+		} catch (IOException e) {
+			// the content is removed with the next successful removal
+			postException(e);
+		}
+	}
+	
+	/**
+	 * Builds the MailData of a message. The content of the message is read
+	 * from the body store, if it has been downloaded before. Otherwise 
+	 * small messages are downloaded once and appended to the store, so 
+	 * they are parsed from the mapped store and no server connection is 
+	 * held by the MailData.
+	 * <p>
+	 * Of large messages only the headers and the text to show are 
+	 * downloaded, the attachments are downloaded when they are saved.
+	 * 
+	 * @param uniqueId	the unique id of the message
+	 * @return	the MailData or null, if the message is unknown or cannot
+	 * be read
+	 */
+	/*private*/ MailData getMailData(long uniqueId) {
+		MailReference ref = findReference(uniqueId);
+		EmailTableData etd = findTableData(uniqueId);
+		if (ref == null || etd == null)
+			return null;
+		try {
+			ByteBuffer content = loadStoredContent(ref);
+			if (content != null)
+				return createMailData(etd, content);
+			return downloadMailData(ref, etd);
+		} catch (MessagingException | IOException e) {
+			postException(e);
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			// shutting down
+		}
+		return null;
+	}
+	
+	private MailData createMailData(EmailTableData etd, ByteBuffer content) 
+			throws MessagingException {
+		MimeMessage msg = new MimeMessage(account.getSession(), 
+				new SharedByteBufferInputStream(content));
+		return new MailData(etd.getFrom(), etd.getFromName(), etd.getSubject(), 
+				etd.getSentDateAsInstant(), null, etd.isAttachment(), msg, 
+				contentKey(etd), () -> MailTools.parseMailContent(msg));
+	}
+	
+	private String contentKey(EmailTableData etd) {
+		return ContentCache.key(account.getAccountName(), getFolderName(), 
+				etd.getUniqueID());
+	}
+	
+	/**
+	 * @param ref	the message to load
+	 * @return		the RFC822 content of the message or null, if it has not
+	 * been stored
+	 */
+	private ByteBuffer loadStoredContent(MailReference ref) throws IOException {
+		long validity = fetcher.getUidValidity();
+		// message numbers of folders without UIDs cannot be stored
+		if (validity <= 0)
+			return null;
+		bodyStore.open(validity);
+		return bodyStore.get(ref.getUid());
+	}
+	
+	/**
+	 * Downloads the message using a fetch connection. Small messages are
+	 * downloaded completely and stored, large messages are walked by their
+	 * BODYSTRUCTURE and only the displayed text is downloaded.
+	 * 
+	 * @param ref	the message to download
+	 * @param etd	the table data of the message
+	 * @return		the MailData of the message
+	 */
+	private MailData downloadMailData(MailReference ref, EmailTableData etd) 
+			throws MessagingException, IOException, InterruptedException {
+		ConnectionPool pool = account.getConnectionPool();
+		Store store = pool.acquireFetchStore();
+		Folder fetchFolder = null;
+		try {
+			fetchFolder = store.getFolder(getFolderName());
+			fetchFolder.open(Folder.READ_ONLY);
+			Message msg = findMessage(fetchFolder, ref.getUid());
+			if (msg.getSize() <= FastmailGlobals.LAZY_BODY_BYTES) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						Math.max(msg.getSize(), 1024));
+				msg.writeTo(out);
+				long validity = fetcher.getUidValidity();
+				if (validity <= 0)
+					return createMailData(etd, ByteBuffer.wrap(out.toByteArray()));
+				bodyStore.open(validity);
+				bodyStore.append(ref.getUid(), out.toByteArray());
+				return createMailData(etd, bodyStore.get(ref.getUid()));
+			}
+			final long uid = ref.getUid();
+			MailContent content = parseRemoteContent(msg, uid);
+			if (content == null)
+				throw new MessagingException("message cannot be parsed"); //$NON-NLS-1$
+			String key = contentKey(etd);
+			ContentCache.getInstance().put(key, content);
+			SearchIndex.getInstance().addContent(key, content);
+			MimeMessage headers = new MimeMessage(account.getSession(), 
+					new ByteArrayInputStream(readHeaders(msg)));
+			return new MailData(etd.getFrom(), etd.getFromName(), etd.getSubject(), 
+					etd.getSentDateAsInstant(), null, etd.isAttachment(), headers, 
+					key, () -> loadRemoteContent(uid));
+		} catch (FolderClosedException e) {
+			pool.invalidate(store);
+			throw e;
+		} finally {
+			if (fetchFolder != null && fetchFolder.isOpen())
+				fetchFolder.close(false);
+			pool.releaseFetchStore(store);
+		}
+	}
+	
+	private MailContent parseRemoteContent(Message msg, long uid) {
+		return MailTools.parseMailContent(msg, false, 
+				(part, path) -> () -> openRemotePart(uid, path));
+	}
+	
+	/**
+	 * Reads the content of a large message again, after it has been 
+	 * dropped from the content cache
+	 * 
+	 * @param uid	the UID of the message, the message number for folders
+	 * without UIDs
+	 * @return		the content or null, if it cannot be read
+	 */
+	private MailContent loadRemoteContent(long uid) {
+		ConnectionPool pool = account.getConnectionPool();
+		Store store;
+		try {
+			store = pool.acquireFetchStore();
+		} catch (MessagingException e) {
+			postException(e);
+			return null;
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			return null;
+		}
+		Folder contentFolder = null;
+		try {
+			contentFolder = store.getFolder(getFolderName());
+			contentFolder.open(Folder.READ_ONLY);
+			return parseRemoteContent(findMessage(contentFolder, uid), uid);
+		} catch (MessagingException e) {
+			if (e instanceof FolderClosedException)
+				pool.invalidate(store);
+			postException(e);
+			return null;
+		} finally {
+			releasePartFolder(pool, store, contentFolder);
+		}
+	}
+	
+	/**
+	 * Opens a part of a message on the server using a fetch connection, 
+	 * which is released when the returned stream is closed. The part is
+	 * read in chunks by partial FETCH commands.
+	 * 
+	 * @param uid	the UID of the message, the message number for folders
+	 * without UIDs
+	 * @param path	the path of the part within the message
+	 * @return		the decoded content of the part
+	 */
+	private InputStream openRemotePart(long uid, int[] path) 
+			throws MessagingException, IOException {
+		ConnectionPool pool = account.getConnectionPool();
+		Store store;
+		try {
+			store = pool.acquireFetchStore();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		Folder partFolder = null;
+		try {
+			partFolder = store.getFolder(getFolderName());
+			partFolder.open(Folder.READ_ONLY);
+			InputStream in = MailTools.findPart(findMessage(partFolder, uid), path)
+					.getInputStream();
+			final Folder openFolder = partFolder;
+			return new FilterInputStream(in) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						releasePartFolder(pool, store, openFolder);
+					}
+				}
+			};
+		} catch (MessagingException | IOException e) {
+			if (e instanceof FolderClosedException)
+				pool.invalidate(store);
+			releasePartFolder(pool, store, partFolder);
+			throw e;
+		}
+	}
+	
+	private static void releasePartFolder(ConnectionPool pool, Store store, 
+			Folder partFolder) {
+		try {
+			if (partFolder != null && partFolder.isOpen())
+				partFolder.close(false);
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			// the folder is not used anymore
+		} finally {
+			pool.releaseFetchStore(store);
+		}
+	}
+	
+	/**
+	 * @param openFolder	the opened folder of a fetch connection
+	 * @param uid			the UID of the message, the message number for
+	 * folders without UIDs
+	 * @return				the message, which is not marked as read, if its
+	 * content is downloaded
+	 */
+	private static Message findMessage(Folder openFolder, long uid) 
+			throws MessagingException {
+		Message msg = openFolder instanceof UIDFolder 
+				? ((UIDFolder) openFolder).getMessageByUID(uid)
+				: openFolder.getMessage((int) uid);
+		if (msg == null)
+			throw new MessagingException("message expunged"); //$NON-NLS-1$
+		if (msg instanceof IMAPMessage)
+			((IMAPMessage) msg).setPeek(true);
+		return msg;
+	}
+	
+	/**
+	 * @param msg	the message on the server
+	 * @return		the header block of the message, which is downloaded
+	 * without the content
+	 */
+	private static byte[] readHeaders(Message msg) throws MessagingException {
+		StringBuilder sb = new StringBuilder();
+		Enumeration<?> lines = ((MimeMessage) msg).getAllHeaderLines();
+		while (lines.hasMoreElements())
+			sb.append(lines.nextElement()).append("\r\n"); //$NON-NLS-1$
+		sb.append("\r\n"); //$NON-NLS-1$
+		// header lines are US-ASCII or encoded words, raw UTF-8 is kept
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private MailReference findReference(long uniqueId) {
+		Map<Long, MailReference> refs = mailRefs;
+		MailReference ref = refs == null ? null : refs.get(Long.valueOf(uniqueId));
+		if (ref == null)
+			ref = pagedRefs.get(Long.valueOf(uniqueId));
+		return ref != null ? ref : searchRefs.get(Long.valueOf(uniqueId));
+	}
+	
+	private EmailTableData findTableData(long uniqueId) {
+		MailColumns rows = mailData;
+		EmailTableData etd = rows == null ? null : rows.get(uniqueId);
+		if (etd == null)
+			etd = pagedRows.get(Long.valueOf(uniqueId));
+		return etd != null ? etd : searchRows.get(Long.valueOf(uniqueId));
+	}
+	
+	/**
+	 * Closes the body store of the folder
+	 */
+	/*private*/ void close() {
+		bodyStore.close();
+	}
+	
+	private static void postException(Exception e) {
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(
+						SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
+						e.getMessage()),
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
+	}
+	
+	/**
+	 * Adds a mapped message to the mail list. A message already known is
+	 * ignored, e.g. if it has been restored from the header cache and is 
+	 * reported by the server again.
+	 * 
+	 * @param ref	the mapped message
+	 * @param mail	the table data of the message
+	 */
+	/*private*/ void addMail(MailReference ref, EmailTableData mail) {
+		mailRefs.put(Long.valueOf(mail.getUniqueID()), ref);
+		if (mailData.add(mail)) {
+			SearchIndex.getInstance().add(account.getAccountName(), 
+					getFolderName(), mail);
+			propagateETD(mail);
+		}
 	}
 	
 	/*private*/ void propagateETD(EmailTableData mail) {
@@ -67,10 +806,13 @@ import com.github.koshamo.fastmail.util.EmailTableData;
 //		fetcher.updateMailList();
 //	}
 	
-	public EmailTableData[] getMailList() {
-		if (mailData == null)
-			return null;
-		return mailData.toArray(new EmailTableData[0]);
+	/**
+	 * @return	a copy of the mail list, which the receiver owns, or null, 
+	 * if the mail list has not been built yet
+	 */
+	public MailColumns getMailList() {
+		MailColumns rows = mailData;
+		return rows == null ? null : rows.copy();
 	}
 	
 	/* (non-Javadoc)
@@ -92,4 +834,24 @@ import com.github.koshamo.fastmail.util.EmailTableData;
 	public String getFolderName() {
 		return folder.getFullName();
 	}
+	
+	
+	/**
+	 * Keeps the messages of the most recently loaded pages
+	 */
+	private static class PageCache<T> extends LinkedHashMap<Long, T> {
+		private static final long serialVersionUID = 1L;
+
+		/*private*/ PageCache() {
+			super(64, 0.75f, true);
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+			return size() > FastmailGlobals.MAIL_PAGE_SIZE * FastmailGlobals.MAIL_PAGE_CACHE;
+		}
+	}
 }
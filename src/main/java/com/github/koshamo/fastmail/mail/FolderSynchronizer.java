@@ -18,9 +18,8 @@
 
 package com.github.koshamo.fastmail.mail;
 
-import javax.mail.Folder;
+import java.util.Objects;
 
-import javafx.collections.ObservableList;
 import javafx.concurrent.ScheduledService;
 import javafx.concurrent.Task;
 
@@ -37,23 +36,20 @@ import javafx.concurrent.Task;
  */
 public class FolderSynchronizer extends ScheduledService<Void> {
 
-	private final Folder folder;
-	private final ObservableList<EmailTableData> mailList;
+	private final FolderContent folderContent;
 	
 
 	
 	/**
-	 * The constructor needs the folder on the server side and the data
-	 * representation on the local side to do its work.
+	 * The constructor needs the local representation of the server folder
+	 * to do its work.
 	 * 
-	 * @param folder 	the folder on the server to be synched
-	 * @param mailList	the ObservableList on the local side
+	 * @param folderContent	the folder to be synched
 	 */
-	public FolderSynchronizer(final Folder folder, 
-			final ObservableList<EmailTableData> mailList) {
+	/*package private*/ FolderSynchronizer(final FolderContent folderContent) {
 		super();
-		this.folder = folder;
-		this.mailList = mailList;
+		this.folderContent = Objects.requireNonNull(
+				folderContent, "folderContent must not be null");
 	}
 
 
@@ -63,7 +59,7 @@ public class FolderSynchronizer extends ScheduledService<Void> {
 	 */
 	@Override
 	protected Task<Void> createTask() {
-		return new FolderSynchronizerTask(folder, mailList);
+		return new FolderSynchronizerTask(folderContent);
 	}
 
 }
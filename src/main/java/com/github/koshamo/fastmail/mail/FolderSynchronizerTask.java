@@ -18,22 +18,8 @@
 
 package com.github.koshamo.fastmail.mail;
 
-import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.ResourceBundle;
+import java.util.Objects;
 
-import javax.mail.Folder;
-import javax.mail.Message;
-import javax.mail.MessagingException;
-
-import com.github.koshamo.fastmail.util.MessageItem;
-import com.github.koshamo.fastmail.util.MessageMarket;
-import com.github.koshamo.fastmail.util.SerializeManager;
-
-import javafx.application.Platform;
-import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 
 /**
@@ -47,30 +33,29 @@ import javafx.concurrent.Task;
  * FolderSynchronizer, that uses this Task to poll the update of a given 
  * folder. Main use for polling the inbox to check, if any mails have arrived
  * or been deleted using another device / client.
+ * <p>
+ * The synchronization itself is done incrementally by the FolderContent
+ * using the message UIDs, so only new and expunged messages are 
+ * transferred. The changes are propagated to the GUI by the FolderContent.
  *  
  * @author jochen
  *
  */
 public class FolderSynchronizerTask extends Task<Void> {
 
-	private final Folder folder;
-	private final ObservableList<EmailTableData> mailList;
+	private final FolderContent folderContent;
 
 	private boolean stop = false;
-	private final ResourceBundle i18n;
 	
 	/**
-	 * The constructor builds the context of this task, which is the folder 
-	 * on the server to check and the local list of mails to update.
+	 * The constructor builds the context of this task, which is the local
+	 * representation of the folder to synchronize with the server.
 	 * 
-	 * @param folder	the folder on the server to check
-	 * @param mailList	the local observable list of mails to update
+	 * @param folderContent	the folder to synchronize
 	 */
-	public FolderSynchronizerTask(final Folder folder, 
-			final ObservableList<EmailTableData> mailList) {
-		this.folder = folder;
-		this.mailList = mailList;
-		i18n = SerializeManager.getLocaleMessageBundle();
+	/*package private*/ FolderSynchronizerTask(final FolderContent folderContent) {
+		this.folderContent = Objects.requireNonNull(
+				folderContent, "folderContent must not be null");
 	}
 	
 	/**
@@ -86,67 +71,8 @@ public class FolderSynchronizerTask extends Task<Void> {
 	 */
 	@Override
 	protected Void call() throws Exception {
-		try {
-			if (stop) return null; // check if thread needs to be stopped
-			// get mail count in local end
-			int count = mailList.size();
-			if (!folder.isOpen())
-				folder.open(Folder.READ_WRITE);
-			Message[] messages = folder.getMessages();
-			List<EmailTableData> serverList = new ArrayList<>();
-			/* 
-			 * first step: add mails, if there really are more mails
-			 * on server than on the local end
-			 */
-			if (messages != null) {
-				for (Message msg : messages) {
-					if (stop) return null; // check if thread needs to be stopped
-					// check, if message has been deleted meanwhile
-					if (msg.isExpunged())
-						continue;
-					EmailTableData etd = new EmailTableData(msg);
-					if (!mailList.contains(etd)) 
-						// TODO: this may cause a NullPointerException. Why?
-						Platform.runLater(()-> mailList.add(etd));
-					// prepare for step two
-					if (count > 0)
-						serverList.add(etd);
-				}
-			}
-			/*
-			 * if local end had no mails, we do not need to check, if any
-			 * mails need to be deleted.
-			 * This is always true, if we read a folder for the first time
-			 */
-			if (count > 0) {
-				/*
-				 * second step: if there are more mails on the local end,
-				 * which should be true, whenever mails are added in the first
-				 * step or mails have been deleted from another source,
-				 * delete all excessive mails
-				 */
-				if (mailList.size() != serverList.size()) {
-					// prevent ConcurrentModificationException
-					Collection<EmailTableData> toBeRemoved = new ArrayList<>();
-					for (EmailTableData etd : mailList) {
-						if (!serverList.contains(etd))
-							toBeRemoved.add(etd);
-					}
-					mailList.removeAll(toBeRemoved);
-				}
-			}
-			// sort the list in the natural order
-			// TODO: verify this solves the ArrayIndexOutOfBoundsException
-			// FIXME: does not!!
-			Platform.runLater(()-> mailList.sort(null));
-		} catch (MessagingException e) {
-			MessageItem mItem = new MessageItem(
-					MessageFormat.format(i18n.getString("exception.mailaccess"),  //$NON-NLS-1$
-							e.getMessage()),
-					0.0, MessageItem.MessageType.EXCEPTION);
-			MessageMarket.getInstance().produceMessage(mItem);
-		}
-
+		if (stop) return null; // check if thread needs to be stopped
+		folderContent.synchronize();
 		return null;
 	}
 
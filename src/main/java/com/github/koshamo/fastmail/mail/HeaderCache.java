@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Objects;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
+
+/**
+ * The HeaderCache stores the mail list of a folder on disk, so it can be 
+ * shown immediately at the next start, while the folder is synchronized
+ * with the server in the background.
+ * <p>
+ * Each folder of each account has its own cache file. The mails are keyed
+ * by their UID, which is only valid together with the UIDVALIDITY of the 
+ * folder, so the UIDVALIDITY is stored as well. The cache also remembers
+ * the last known UID and HIGHESTMODSEQ, so the first synchronization
+ * after the start only needs to fetch the changes.
+ * <p>
+ * The mails are read into and written from MailColumns, the UIDs are kept
+ * in an array parallel to their rows.
+ * <p>
+ * Strings are written as UTF-8 bytes behind their length, as subjects and
+ * references of spam mails may exceed the 64 KB of writeUTF().
+ * <p>
+ * The file is written to a temporary file first and then moved, so an
+ * interrupted write never destroys the last cache. A corrupt cache is 
+ * ignored, the folder is then read completely from the server.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class HeaderCache {
+
+	private static final String cachePath = "/.FDE/fastmail/cache/"; //$NON-NLS-1$
+	private static final String cacheSuffix = ".hdr"; //$NON-NLS-1$
+	// identifies the file format, increment on any change
+	private static final int VERSION = 4;
+	// a longer string comes from a corrupt file, it is not allocated
+	private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+	
+	private static final int ATTACHMENT = 1;
+	private static final int READ = 2;
+	private static final int MARKED = 4;
+	
+	private final File file;
+	private long uidValidity = -1;
+	private long lastUid = 0;
+	private long highestModSeq = -1;
+	private MailColumns headers;
+	private long[] uids;
+	
+	/**
+	 * @param accountName	the name of the account the folder belongs to
+	 * @param folderName	the full name of the folder
+	 */
+	/*private*/ HeaderCache(final String accountName, final String folderName) {
+		Objects.requireNonNull(accountName, "accountName must not be null");
+		Objects.requireNonNull(folderName, "folderName must not be null");
+		file = getCacheFile(accountName, folderName, cacheSuffix);
+		headers = new MailColumns();
+		uids = new long[0];
+	}
+	
+	/**
+	 * Reads the cache file of the folder
+	 * 
+	 * @return	true, if a valid cache has been read
+	 */
+	/*private*/ boolean load() {
+		if (!file.exists())
+			return false;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != VERSION)
+				return false;
+			long validity = in.readLong();
+			long last = in.readLong();
+			long modSeq = in.readLong();
+			int size = in.readInt();
+			if (size < 0)
+				return false;
+			MailColumns read = new MailColumns(size);
+			long[] readUids = new long[size];
+			for (int i = 0; i < size; ++i) {
+				long uid = in.readLong();
+				String from = readString(in);
+				String fromName = in.readBoolean() ? readString(in) : null;
+				String subject = readString(in);
+				Instant sentDate = Instant.ofEpochMilli(in.readLong());
+				int flags = in.readByte();
+				long uniqueID = in.readLong();
+				String messageId = in.readBoolean() ? readString(in) : null;
+				String[] references = new String[in.readInt()];
+				for (int r = 0; r < references.length; ++r)
+					references[r] = readString(in);
+				EmailTableData etd = new EmailTableData(from, fromName, 
+						subject, sentDate, (flags & ATTACHMENT) != 0, 
+						(flags & READ) != 0, (flags & MARKED) != 0, uniqueID);
+				etd.setThreadHeaders(messageId, references);
+				// the rows are appended, so the row of the mail is i
+				if (!read.add(etd))
+					return false;
+				readUids[i] = uid;
+			}
+			uidValidity = validity;
+			lastUid = last;
+			highestModSeq = modSeq;
+			headers = read;
+			uids = readUids;
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// corrupt or outdated cache, the folder is read from the server
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the mail list of the folder to the cache file
+	 * 
+	 * @param validity	the UIDVALIDITY of the folder
+	 * @param last		the highest UID known
+	 * @param modSeq	the HIGHESTMODSEQ of the folder, or -1 if unknown
+	 * @param mails		the mails of the folder
+	 * @param mailUids	the UIDs of the mails by their row
+	 */
+	/*private*/ void save(final long validity, final long last, 
+			final long modSeq, final MailColumns mails, final long[] mailUids) {
+		File tmp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		file.getParentFile().mkdirs();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(VERSION);
+			out.writeLong(validity);
+			out.writeLong(last);
+			out.writeLong(modSeq);
+			int size = Math.min(mails.size(), mailUids.length);
+			out.writeInt(size);
+			for (int row = 0; row < size; ++row) {
+				EmailTableData etd = mails.view(row);
+				out.writeLong(mailUids[row]);
+				writeString(out, etd.getFrom());
+				out.writeBoolean(etd.getFromName() != null);
+				if (etd.getFromName() != null)
+					writeString(out, etd.getFromName());
+				writeString(out, etd.getSubject());
+				out.writeLong(etd.getSentDateAsInstant().toEpochMilli());
+				int flags = 0;
+				if (etd.isAttachment())
+					flags |= ATTACHMENT;
+				if (etd.isRead())
+					flags |= READ;
+				if (etd.isMarked())
+					flags |= MARKED;
+				out.writeByte(flags);
+				out.writeLong(etd.getUniqueID());
+				out.writeBoolean(etd.getMessageId() != null);
+				if (etd.getMessageId() != null)
+					writeString(out, etd.getMessageId());
+				out.writeInt(etd.getReferences().length);
+				for (String reference : etd.getReferences())
+					writeString(out, reference);
+			}
+		} catch (@SuppressWarnings("unused") IOException e) {
+			tmp.delete();
+			postSaveFailure();
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			tmp.delete();
+			postSaveFailure();
+		}
+	}
+	
+	/**
+	 * Writes a string of any length as UTF-8 bytes behind their number
+	 * 
+	 * @param out	the stream to write to
+	 * @param str	the string to write
+	 */
+	private static void writeString(final DataOutputStream out, final String str) 
+			throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * @param in	the stream to read from
+	 * @return		the string written by writeString()
+	 */
+	private static String readString(final DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_STRING_BYTES)
+			throw new IOException("corrupt string length " + length); //$NON-NLS-1$
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Removes the cache file of the folder
+	 */
+	/*private*/ void delete() {
+		file.delete();
+	}
+	
+	/**
+	 * @return the UIDVALIDITY of the cached folder
+	 */
+	/*private*/ long getUidValidity() {
+		return uidValidity;
+	}
+
+	/**
+	 * @return the highest UID cached
+	 */
+	/*private*/ long getLastUid() {
+		return lastUid;
+	}
+
+	/**
+	 * @return the HIGHESTMODSEQ of the cached folder, or -1 if unknown
+	 */
+	/*private*/ long getHighestModSeq() {
+		return highestModSeq;
+	}
+
+	/**
+	 * @return the cached mails
+	 */
+	/*private*/ MailColumns getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return the UIDs of the cached mails by their row
+	 */
+	/*private*/ long[] getUids() {
+		return uids;
+	}
+	
+	/**
+	 * Removes the cache files of all folders of an account
+	 * 
+	 * @param accountName	the name of the account
+	 */
+	/*private*/ static void deleteAccount(final String accountName) {
+		File dir = getAccountDir(accountName);
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+	
+	/**
+	 * Get a cache file of a folder. All cache files of an account are kept
+	 * in the same directory, so they are removed together with the account.
+	 * 
+	 * @param accountName	the name of the account
+	 * @param folderName	the full name of the folder
+	 * @param suffix		the suffix identifying the kind of cache
+	 * @return	the cache file
+	 */
+	/*private*/ static File getCacheFile(final String accountName, 
+			final String folderName, final String suffix) {
+		return new File(getAccountDir(accountName), encode(folderName) + suffix);
+	}
+	
+	private static File getAccountDir(final String accountName) {
+		return new File(System.getProperty("user.home") //$NON-NLS-1$
+				+ cachePath + encode(accountName));
+	}
+	
+	/**
+	 * Folder names may contain the path separator of the server, so they
+	 * are encoded to be used as file name
+	 */
+	private static String encode(final String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8"); //$NON-NLS-1$
+		} catch (@SuppressWarnings("unused") UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			return name;
+		}
+	}
+	
+	private static void postSaveFailure() {
+		MessageItem mItem = new MessageItem(
+				SerializeManager.getLocaleMessageBundle().getString("exception.savefile"),  //$NON-NLS-1$
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
+	}
+}
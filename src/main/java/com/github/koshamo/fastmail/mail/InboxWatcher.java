@@ -18,91 +18,178 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.Supplier;
+
 import javax.mail.Folder;
-import javax.mail.Message;
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
 
-import javafx.collections.ObservableList;
-import javafx.concurrent.ScheduledService;
-import javafx.concurrent.Task;
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 
 /**
  * The InboxWatcher is used to check, if new mails have arrived to the mail box
  * and also notifies us, when an email has been deleted from elsewhere.
  * <p>
- * InboxWatcher and FolderSynchronizer are very similar, but currently have
- * different purposes and thus specializations:
+ * The InboxWatcher does its work in a separate thread. It keeps its own
+ * folder object opened on the IDLE connection of the account's connection
+ * pool and waits for the server to push changes using the IMAP IDLE command.
+ * IDLE returns with the first change the server reports, e.g. new, 
+ * expunged or changed messages, and the folder is synchronized 
+ * incrementally by FolderContent in the watcher thread, before IDLE is
+ * started again.
  * <p>
- * InboxWatcher only checks for new mails and adds them to the local 
- * mail list and notifies the user of newly arrived mails, whereas 
- * FolderSynchronizer checks the folder and the local mail list, if any
- * differences exists and updates the local list.
+ * As servers terminate IDLE after 30 minutes, a timer interrupts IDLE 
+ * regularly, which synchronizes the folder and restarts IDLE. For servers
+ * not supporting IDLE, the watcher falls back to polling the folder with 
+ * NOOP, which lets the server report the changes as well. If the connection
+ * breaks, the folder is reopened on a reconnected IDLE connection.
  * <p>
- * Currently we use both tasks, as we can define different periods for both 
- * tasks to check the server folder. Maybe it would be a great idea to 
- * integrate InboxWatcher into FolderSynchronizer and leave this class. 
+ * In contrast, FolderSynchronizer polls the folder on a regular basis 
+ * and is intended for folders without a watcher.
  * 
  * @author jochen
  *
  */
-public class InboxWatcher extends ScheduledService<Void> {
+/*private*/ class InboxWatcher implements Runnable {
 
-	/*package private*/ Folder folder;
-	/*package private*/ ObservableList<EmailTableData> mailList;
+	/*package private*/ final FolderContent folderContent;
+	// the pool is replaced, if the account reconnects
+	private final Supplier<ConnectionPool> connectionPool;
+	// own folder object, as IDLE blocks the connection of the folder
+	private volatile Folder folder;
+	private volatile boolean run = true;
+	// the watcher thread, interrupted to stop waiting for the next poll
+	private volatile Thread worker;
+	private Timer rearmTimer;
 	
 	/**
 	 * The constructor is aimed to can watch any folder, although most
 	 * probably it will only be used for the inbox. 
 	 * <p>
 	 * 
-	 * @param folder	the folder to watch
-	 * @param mailList	the observable list to connect the server folder to the GUI
+	 * @param folderContent		the folder to watch
+	 * @param connectionPool	supplies the current connection pool of the 
+	 * account, which provides the IDLE connection
 	 */
-	public InboxWatcher(final Folder folder, 
-			final ObservableList<EmailTableData> mailList) {
-		this.folder = folder;
-		this.mailList = mailList;
+	/*package private*/ InboxWatcher(final FolderContent folderContent, 
+			final Supplier<ConnectionPool> connectionPool) {
+		this.folderContent = Objects.requireNonNull(
+				folderContent, "folderContent must not be null");
+		this.connectionPool = Objects.requireNonNull(
+				connectionPool, "connectionPool must not be null");
 	}
-
 	
+	/*package private*/ void stop() {
+		run = false;
+		interruptIdle();
+		Thread current = worker;
+		if (current != null)
+			current.interrupt();
+	}
+
 	/* (non-Javadoc)
-	 * This thread checks the Inboxes on a regularly basis for new mails.
-	 * If the action listeners worked properly, this would just be to trigger
-	 * the IMAP server to stay connected and to send us events.
-	 * 
-	 * @see javafx.concurrent.Service#createTask()
+	 * @see java.lang.Runnable#run()
 	 */
 	@Override
-	protected Task<Void> createTask() {
-		return new Task<Void>() {
-
-			@Override
-			protected Void call() throws Exception {
-				int localCnt = mailList.size();
-				int serverCnt = folder.getMessageCount();
-				if (serverCnt != localCnt) {
-					int newMails = serverCnt - localCnt;
-					if (newMails > 0) {
-						// as the number of mails has changed update the folder
-						if (!folder.isOpen())
-							folder.open(Folder.READ_WRITE);
-						for (int i = localCnt; i < serverCnt; i++) {
-							Message msg = folder.getMessage(i+1);
-							if (msg != null) {
-								EmailTableData etd = new EmailTableData(msg);
-								if (!mailList.contains(etd))
-									// TODO: this may cause a NullPointerException. Why?
-									mailList.add(etd);
-							}
-						}
-						// TODO: this may cause a NullPointerException and
-						// a ArrayIndexOutOfBoundsException. Why?
-						mailList.sort(null);
-					}
+	public void run() {
+		worker = Thread.currentThread();
+		while (run) {
+			try {
+				if (folder == null || !folder.isOpen())
+					openFolder();
+				if (supportsIdle())
+					// returns with the first change reported, if IDLE is 
+					// interrupted or the connection is lost
+					((IMAPFolder) folder).idle(true);
+				else {
+					Thread.sleep(FastmailGlobals.NOOP_POLL_MS);
+					// sends NOOP, so the server reports the changes
+					folder.getMessageCount();
 				}
-				return null;
+				if (run)
+					folderContent.synchronize();
+			} catch (@SuppressWarnings("unused") FolderClosedException e) {
+				// connection lost (BYE or timeout), reopen with next iteration
+				connectionPool.get().invalidate(folder.getStore());
+			} catch (@SuppressWarnings("unused") MessagingException e) {
+				// server not reachable, wait before reconnecting
+				if (folder != null)
+					connectionPool.get().invalidate(folder.getStore());
+				pause();
+			} catch (@SuppressWarnings("unused") InterruptedException e) {
+				run = false;
 			}
-			
-		};
+		}
+		if (rearmTimer != null)
+			rearmTimer.cancel();
+		try {
+			if (folder != null && folder.isOpen())
+				folder.close(false);
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			// we are done anyway
+		}
+	}
+	
+	/**
+	 * Opens the watched folder on the IDLE connection and starts the timer
+	 * to re-arm IDLE, if the server supports it
+	 * 
+	 * @throws MessagingException	if the folder cannot be opened
+	 */
+	private void openFolder() throws MessagingException {
+		Folder newFolder = connectionPool.get().getIdleStore().getFolder(
+				folderContent.getFolderName());
+		newFolder.open(Folder.READ_ONLY);
+		folder = newFolder;
+		if (rearmTimer == null && supportsIdle()) {
+			rearmTimer = new Timer("IDLE " + folder.getFullName(), true); //$NON-NLS-1$
+			rearmTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					interruptIdle();
+				}
+			}, FastmailGlobals.IDLE_REARM_MS, FastmailGlobals.IDLE_REARM_MS);
+		}
+	}
+	
+	private void pause() {
+		try {
+			Thread.sleep(FastmailGlobals.NOOP_POLL_MS);
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			run = false;
+		}
+	}
+	
+	/**
+	 * @return	true, if the server supports IMAP IDLE
+	 */
+	private boolean supportsIdle() {
+		if (!(folder instanceof IMAPFolder))
+			return false;
+		try {
+			return ((IMAPStore) folder.getStore()).hasCapability("IDLE"); //$NON-NLS-1$
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Any command on an idling folder terminates IDLE. We use NOOP, which
+	 * is sent by getMessageCount() on an open folder.
+	 */
+	private void interruptIdle() {
+		Folder current = folder;
+		try {
+			if (current != null && current.isOpen())
+				current.getMessageCount();
+		} catch (@SuppressWarnings("unused") MessagingException e) {
+			// the watcher thread will reconnect
+		}
 	}
 
 }
@@ -27,6 +27,9 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import javax.mail.AuthenticationFailedException;
 import javax.mail.Folder;
@@ -41,14 +44,16 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.search.SearchTerm;
 
 import com.github.koshamo.fastmail.FastMailGenerals;
+import com.github.koshamo.fastmail.FastmailGlobals;
 import com.github.koshamo.fastmail.events.MailAccountMeta;
 import com.github.koshamo.fastmail.events.MailAccountOrders;
 import com.github.koshamo.fastmail.util.EmailTableData;
 import com.github.koshamo.fastmail.util.FolderWrapper;
+import com.github.koshamo.fastmail.util.MailColumns;
 import com.github.koshamo.fastmail.util.MailTreeViewable;
-import com.github.koshamo.fastmail.util.SerialRunnerThread;
 import com.github.koshamo.fastmail.util.SerializeManager;
 
 import javafx.concurrent.Task;
@@ -72,12 +77,15 @@ import javafx.concurrent.Task;
 	private Properties props;
 	private Session session;
 	private Store store;
+	// replaced on reconnect, so users ask for the current pool each time
+	private volatile ConnectionPool connectionPool;
 	
 	private AccountFolderWatcher accountFolderWatcher;
 	private FolderContent inbox;
+	private InboxWatcher inboxWatcher;
 	private List<FolderContent> mailFolders;
 	private List<FolderContent> currentlyAdded;
-	private SerialRunnerThread serialRunnerThread;
+	private SyncScheduler syncScheduler;
 	
 	private static ResourceBundle i18n;
 	
@@ -106,6 +114,13 @@ import javafx.concurrent.Task;
 	/*private*/ void connect() {
 		if (store == null || !store.isConnected()) {
 			session = Session.getInstance(props);
+			if (connectionPool != null)
+				connectionPool.close();
+			connectionPool = new ConnectionPool(session, mailAccountData, 
+					FastmailGlobals.MAX_FETCH_CONNECTIONS);
+			if (syncScheduler != null)
+				syncScheduler.shutdown();
+			syncScheduler = new SyncScheduler(connectionPool);
 			try {
 				store = session.getStore(mailAccountData.getInboxType().toLowerCase());
 				store.connect(mailAccountData.getInboxHost(), mailAccountData.getUsername(), mailAccountData.getPassword());
@@ -127,6 +142,14 @@ import javafx.concurrent.Task;
 		Properties props = new Properties();
 		if ("IMAP".equals(mailAccountData.getInboxType())) { //$NON-NLS-1$
 			props.setProperty("mail.imap.ssl.enable", new Boolean(mailAccountData.isSsl()).toString()); //$NON-NLS-1$
+			// detect broken connections of the connection pool
+			String timeout = String.valueOf(FastmailGlobals.CONNECTION_TIMEOUT_MS);
+			props.setProperty("mail.imap.connectiontimeout", timeout); //$NON-NLS-1$
+			props.setProperty("mail.imap.timeout", timeout); //$NON-NLS-1$
+			// large parts are fetched in chunks, so they can be streamed
+			props.setProperty("mail.imap.partialfetch", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			props.setProperty("mail.imap.fetchsize",  //$NON-NLS-1$
+					String.valueOf(FastmailGlobals.ATTACHMENT_FETCH_CHUNK));
 		}
 		props.put("mail.smtp.host", mailAccountData.getSmtpHost()); //$NON-NLS-1$
 		props.setProperty("mail.smtp.starttls.enable", new Boolean(mailAccountData.isTls()).toString()); //$NON-NLS-1$
@@ -147,13 +170,37 @@ import javafx.concurrent.Task;
 		new Thread(accountFolderWatcher).start();
 	}
 
+	/**
+	 * The inbox watcher uses the IDLE connection of the connection pool, 
+	 * as it keeps the folder open to get changes pushed by the server
+	 */
+	private void addInboxWatcher() {
+		inboxWatcher = new InboxWatcher(inbox, this::getConnectionPool);
+		Thread watcher = new Thread(inboxWatcher, "InboxWatcher"); //$NON-NLS-1$
+		// does not keep the application alive
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
 	/**
 	 * Cares for a clean shutdown process
 	 */
 	/*private*/ void shutdown() {
 		accountFolderWatcher.stop();
-		if (serialRunnerThread != null)
-			serialRunnerThread.shutdown();
+		if (inboxWatcher != null)
+			inboxWatcher.stop();
+		if (syncScheduler != null)
+			syncScheduler.shutdown();
+		if (inbox != null) {
+			inbox.saveHeaderCache();
+			inbox.close();
+		}
+		for (FolderContent fc : mailFolders) {
+			fc.saveHeaderCache();
+			fc.close();
+		}
+		if (connectionPool != null)
+			connectionPool.close();
 	}
 	
 	/**
@@ -161,6 +208,7 @@ import javafx.concurrent.Task;
 	 */
 	/*private*/ void propagateFolderChanges(List<MailTreeViewable> list) {
 		if (list == null) {
+			synchronizeFolders();
 			generateLocalMailRepresentation(currentlyAdded);
 			currentlyAdded.clear();
 			return;
@@ -171,7 +219,9 @@ import javafx.concurrent.Task;
 				if (wrapper.getName().toLowerCase().equals("INBOX".toLowerCase())) {
 					if (inbox == null) {
 						inbox = new FolderContent(this, wrapper.getFolder());
-						inbox.generateMailList();
+						inbox.loadHeaderCache();
+						syncScheduler.schedule(inbox);
+						addInboxWatcher();
 					}
 				} else {
 					if (!canHoldMessages(wrapper.getFolder()))
@@ -179,6 +229,7 @@ import javafx.concurrent.Task;
 						continue;
 					FolderContent fc = new FolderContent(this, wrapper.getFolder());
 					if (!mailFolders.contains(fc)) {
+						fc.loadHeaderCache();
 						mailFolders.add(fc);
 						currentlyAdded.add(fc);
 					}
@@ -187,22 +238,78 @@ import javafx.concurrent.Task;
 		}
 	}
 
+	/**
+	 * @return the connection pool of this account
+	 */
+	/*private*/ ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
+	/**
+	 * @return the session of this account, e.g. to parse stored messages
+	 */
+	/*private*/ Session getSession() {
+		return session;
+	}
+	
 	/*private*/ void propagateSingleMail(String folderName, EmailTableData mail) {
 		mailModule.postSingleMail(this, folderName, mail);
 	}
 	
+	/*private*/ void propagateRemovedMails(String folderName, EmailTableData[] mails) {
+		mailModule.postRemovedMails(this, folderName, mails);
+	}
+
+	/*private*/ void propagateChangedMails(String folderName, EmailTableData[] mails) {
+		mailModule.postChangedMails(this, folderName, mails);
+	}
+
+	/*private*/ void propagateMailList(String folderName) {
+		mailModule.postMailList(this, folderName);
+	}
+	
 	/**
-	 * @param currentlyAdded
+	 * Synchronizes all folders, whose mail list has already been built, 
+	 * with the server. As only the changes are fetched, this is cheap for
+	 * unchanged folders. The inbox is synchronized by its watcher.
+	 */
+	private void synchronizeFolders() {
+		if (inbox != null && inboxWatcher == null)
+			inbox.synchronize();
+		for (FolderContent fc : mailFolders)
+			fc.synchronize();
+	}
+	
+	/**
+	 * Queues the new folders to build their mail lists. The folders are
+	 * processed concurrently by the sync scheduler.
+	 * 
+	 * @param currentlyAdded	the folders discovered with the last update
 	 */
 	private void generateLocalMailRepresentation(List<FolderContent> currentlyAdded) {
-		List<MailRef2EtdMapper> runners = new ArrayList<>();
-		// TODO: sort that list, so folders with fewest mails will be processed first
 		for (FolderContent fc : currentlyAdded) 
-			runners.add(fc.generateMail2EtdRunner());
-		if (runners.size() > 0) {
-			serialRunnerThread = new SerialRunnerThread(runners.toArray(new Runnable[0]));
-			serialRunnerThread.start();
-		}
+			syncScheduler.schedule(fc);
+	}
+	
+	/**
+	 * Queues a folder again, whose mail list could not be built
+	 * 
+	 * @param fc	the folder to synchronize
+	 */
+	/*private*/ void scheduleSync(FolderContent fc) {
+		if (syncScheduler != null)
+			syncScheduler.schedule(fc);
+	}
+	
+	/**
+	 * Lets the sync scheduler process the displayed folder next, if its 
+	 * mail list has not been built yet
+	 * 
+	 * @param folderName	the full name of the displayed folder
+	 */
+	/*private*/ void prioritize(String folderName) {
+		if (syncScheduler != null)
+			syncScheduler.prioritize(folderName);
 	}
 	
 	private static boolean canHoldMessages(Folder folder) {
@@ -217,7 +324,103 @@ import javafx.concurrent.Task;
 		return result;	
 	}
 	
-	public EmailTableData[] getMails(String folderName) {
+	/**
+	 * Get the complete data of a single mail to be shown
+	 * 
+	 * @param folderName	the full name of the folder containing the mail
+	 * @param uniqueId		the unique id of the mail
+	 * @return	the mail data or null, if the mail cannot be read
+	 */
+	/*private*/ MailData getMailData(String folderName, long uniqueId) {
+		FolderContent fc = findFolder(folderName);
+		if (fc == null)
+			return null;
+		return fc.getMailData(uniqueId);
+	}
+	
+	/**
+	 * @param folderName	the full name of the folder
+	 * @return	the number of messages of a folder, whose mail list is still
+	 * built, or -1, if the mail list is complete or the folder is unknown
+	 */
+	/*private*/ int getPendingMessageCount(String folderName) {
+		FolderContent fc = findFolder(folderName);
+		if (fc == null || fc.isMailListComplete())
+			return -1;
+		return fc.getServerMessageCount();
+	}
+	
+	/*private*/ EmailTableData[] getMailPage(String folderName, int total, int page, int pageSize) {
+		FolderContent fc = findFolder(folderName);
+		if (fc == null)
+			return null;
+		return fc.getMailPage(total, page, pageSize);
+	}
+	
+	/**
+	 * Searches the messages of a folder or of all folders on the server.
+	 * Folders the search index can answer for are skipped: folders with a
+	 * complete mail list, unless their text is searched, and folders whose
+	 * mails have all been indexed with their text.
+	 * 
+	 * @param folderName	the full name of the folder to search, null to 
+	 * search all folders
+	 * @param term			the search term to send to the server
+	 * @param bodies		true, if the term searches the text of the mails
+	 * @param known			the keys of the mails already found, which are skipped
+	 * @param maxHits		the maximum number of mails to deliver
+	 * @param hits			receives the found mails chunk by chunk
+	 * @param cancelled		tells, if the search is not needed anymore
+	 * @return				the number of delivered mails
+	 */
+	/*private*/ int searchServer(String folderName, SearchTerm term, 
+			boolean bodies, Set<String> known, int maxHits, 
+			Consumer<SearchHit[]> hits, BooleanSupplier cancelled) {
+		List<FolderContent> folders = new ArrayList<>();
+		if (folderName != null) {
+			FolderContent fc = findFolder(folderName);
+			if (fc != null)
+				folders.add(fc);
+		} else {
+			if (inbox != null)
+				folders.add(inbox);
+			folders.addAll(mailFolders);
+		}
+		int delivered = 0;
+		for (FolderContent fc : folders) {
+			if (delivered >= maxHits || cancelled.getAsBoolean())
+				break;
+			if (fc.isMailListComplete() && (!bodies 
+					|| SearchIndex.getInstance().isTextIndexed(
+							getAccountName(), fc.getFolderName())))
+				continue;
+			delivered += fc.searchServer(term, known, maxHits - delivered, 
+					mails -> {
+						SearchHit[] found = new SearchHit[mails.length];
+						for (int i = 0; i < mails.length; ++i)
+							found[i] = new SearchHit(getAccountName(), 
+									fc.getFolderName(), mails[i]);
+						hits.accept(found);
+					}, cancelled);
+		}
+		return delivered;
+	}
+	
+	private FolderContent findFolder(String folderName) {
+		if (folderName.toLowerCase().equals("INBOX".toLowerCase()))
+			return inbox;
+		for (FolderContent fc : mailFolders)
+			if (folderName.equals(fc.getFolderName()))
+				return fc;
+		return null;
+	}
+	
+	/**
+	 * @param folderName	the full name of the folder
+	 * @return	a copy of the mail list of the folder or null, if it has not
+	 * been built yet
+	 */
+	public MailColumns getMails(String folderName) {
 		if (folderName.toLowerCase().equals("INBOX".toLowerCase()))
 			return inbox.getMailList();
 		else {
@@ -246,6 +449,18 @@ import javafx.concurrent.Task;
 	 */
 	/*private*/ void remove() {
 		accountFolderWatcher.stop();
+		if (inboxWatcher != null)
+			inboxWatcher.stop();
+		if (syncScheduler != null)
+			syncScheduler.shutdown();
+		if (connectionPool != null)
+			connectionPool.close();
+		if (inbox != null)
+			inbox.close();
+		for (FolderContent fc : mailFolders)
+			fc.close();
+		HeaderCache.deleteAccount(getAccountName());
+		SearchIndex.getInstance().removeAccount(getAccountName());
 		accountFolderWatcher.propagateRemovefolderTree();
 	}
 	
@@ -352,6 +567,12 @@ import javafx.concurrent.Task;
 			Folder folder = getDefaultFolder().getFolder(folderName);
 			if (folder.exists())
 				folder.delete(true);
+			FolderContent fc = findFolder(folderName);
+			if (fc != null)
+				fc.close();
+			new HeaderCache(getAccountName(), folderName).delete();
+			new BodyStore(getAccountName(), folderName).delete();
+			SearchIndex.getInstance().removeFolder(getAccountName(), folderName);
 		} catch (MessagingException e) {
 			mailModule.postMessage(i18n.getString("exception.mailaccess"));
 		}
@@ -470,6 +691,8 @@ import javafx.concurrent.Task;
 				orig.close(true);
 			Folder newFolder = orig.getParent().getFolder(data);
 			orig.renameTo(newFolder);
+			// the mails are indexed again, when the renamed folder is listed
+			SearchIndex.getInstance().removeFolder(getAccountName(), originalFolder);
 		} catch (MessagingException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -18,7 +18,6 @@
 
 package com.github.koshamo.fastmail.mail;
 
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -78,10 +77,10 @@ public final class MailContent {
 	}
 
 	/**
-	 * @param attachments the attachments to set
+	 * @param attachment the attachment to add
 	 */
-	public void addAttachment(String name, int size, String type, InputStream stream) {
-		attachments.add(new AttachmentData(name, size, type, stream));
+	public void addAttachment(AttachmentData attachment) {
+		attachments.add(attachment);
 	}
 	
 	public void addAttachment(List<AttachmentData> attachments) {
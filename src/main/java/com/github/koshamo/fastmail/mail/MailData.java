@@ -18,8 +18,10 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.lang.ref.SoftReference;
 import java.time.Instant;
 import java.util.NoSuchElementException;
+import java.util.function.Supplier;
 
 import javax.mail.Message;
 
@@ -46,11 +48,14 @@ public final class MailData {
 	 * fields that can be loaded lazily, which means they only need to be
 	 * fetched from the server, if they are needed by the user
 	 */
-	private String[] to;
-	private String[] toName;
-	private String[] cc;
-	private String[] ccName;
-	private MailContent content;
+	private Recipients recipients;
+	/*
+	 * the parsed content is kept in the shared content cache, it is 
+	 * parsed again, if it has been dropped by the cache
+	 */
+	private final String contentKey;
+	private final Supplier<MailContent> contentLoader;
+	private SoftReference<MailContent> content;
 	// the received date can change, e.g. if the message is moved to another folder
 	private Instant receivedDate;	
 
@@ -79,6 +84,59 @@ public final class MailData {
 		this.receivedDate = receivedDate;
 		this.attached = attached;
 		this.message = message;
+		this.contentKey = null;
+		this.contentLoader = () -> MailTools.parseMailContent(message);
+	}
+	
+	/**
+	 * Build a new Mail object, whose content is kept in the content cache
+	 * 
+	 * @param from			the sender's internet address
+	 * @param fromName		the sender's display name
+	 * @param subject		the message's subject
+	 * @param sentDate		the message's sent date 
+	 * @param receivedDate	the message's received date
+	 * @param attached		set, if an attachment is available
+	 * @param message		the message reference
+	 * @param contentKey	the key of the content in the content cache
+	 * @param contentLoader	reads the content, if it is not cached
+	 */
+	public MailData (final String from, final String fromName, 
+			final String subject, final Instant sentDate, 
+			final Instant receivedDate, final boolean attached,
+			final Message message, final String contentKey, 
+			final Supplier<MailContent> contentLoader) {
+		this.from = from;
+		this.fromName = fromName;
+		this.subject = subject;
+		this.sentDate = sentDate;
+		this.receivedDate = receivedDate;
+		this.attached = attached;
+		this.message = message;
+		this.contentKey = contentKey;
+		this.contentLoader = contentLoader;
+	}
+	
+	/**
+	 * @return	the parsed content, which is read again, if it has been 
+	 * dropped from the cache
+	 */
+	private MailContent getContent() {
+		MailContent mc = content != null ? content.get() : null;
+		if (mc == null && contentKey != null)
+			mc = ContentCache.getInstance().get(contentKey);
+		if (mc == null) {
+			mc = contentLoader.get();
+			// a message, that cannot be parsed, is shown without content
+			if (mc == null)
+				return new MailContent();
+			if (contentKey != null) {
+				ContentCache.getInstance().put(contentKey, mc);
+				SearchIndex.getInstance().addContent(contentKey, mc);
+			}
+		}
+		content = new SoftReference<>(mc);
+		return mc;
 	}
 	
 	
@@ -100,15 +158,24 @@ public final class MailData {
 	}
 
 
+	/**
+	 * Get the to and cc recipients of this mail, the headers are parsed
+	 * at the first call only
+	 * @return	the recipients
+	 */
+	public Recipients getRecipients() {
+		if (recipients == null)
+			recipients = MailTools.getRecipients(message);
+		return recipients;
+	}
+	
+	
 	/**
 	 * Get all directly addressed recipients of this mail
 	 * @return	the recipients as array
 	 */
 	public String[] getTo() {
-		if (to == null) {
-			to = MailTools.getToAddresses(message);
-		}
-		return to;
+		return getRecipients().getToAddresses();
 	}
 	
 	/**
@@ -116,10 +183,8 @@ public final class MailData {
 	 * @return	the recipients as string
 	 */
 	public String getToAsLine() {
-		if (to == null)
-			to = MailTools.getToAddresses(message);
 		StringBuilder sb = new StringBuilder();
-		for (String str: to)
+		for (String str: getTo())
 			sb.append(str).append(";"); //$NON-NLS-1$
 		return sb.toString();
 	}
@@ -130,9 +195,7 @@ public final class MailData {
 	 * @return	get the recipients names as array
 	 */
 	public String[] getToName() {
-		if (toName == null)
-			toName = MailTools.getToNames(message);
-		return toName;
+		return getRecipients().getToNames();
 	}
 
 
@@ -141,9 +204,7 @@ public final class MailData {
 	 * @return	the cc recipients as array
 	 */
 	public String[] getCc() {
-		if (cc == null)
-			cc = MailTools.getCcAddresses(message);
-		return cc;
+		return getRecipients().getCcAddresses();
 	}
 
 
@@ -152,8 +213,7 @@ public final class MailData {
 	 * @return	the cc recipients as string
 	 */
 	public String getCcAsLine() {
-		if (cc == null)
-			cc = MailTools.getCcAddresses(message);
+		String[] cc = getCc();
 		if (cc == null)
 			return ""; //$NON-NLS-1$
 		StringBuilder sb = new StringBuilder();
@@ -168,9 +228,7 @@ public final class MailData {
 	 * @return	get the cc recipients names as array
 	 */
 	public String[] getCcName() {
-		if (ccName == null) 
-			ccName = MailTools.getCcNames(message);
-		return ccName;
+		return getRecipients().getCcNames();
 	}
 
 
@@ -188,9 +246,7 @@ public final class MailData {
 	 * @return	the content as string
 	 */
 	public String getTextContent() {
-		if (content == null)
-			content = MailTools.parseMailContent(message);
-		return content.getTextContent();
+		return getContent().getTextContent();
 	}
 
 	
@@ -199,9 +255,7 @@ public final class MailData {
 	 * @return	the content as string
 	 */
 	public String getHtmlContent() {
-		if (content == null)
-			content = MailTools.parseMailContent(message);
-		return content.getHtmlContent();
+		return getContent().getHtmlContent();
 	}
 
 	
@@ -210,9 +264,7 @@ public final class MailData {
 	 * @return	true, if HTML message is available, else false
 	 */
 	public boolean hasHtmlContent() {
-		if (content == null)
-			content = MailTools.parseMailContent(message);
-		return content.getHtmlContent() != null ? true : false;
+		return getContent().getHtmlContent() != null ? true : false;
 	}
 	
 
@@ -221,12 +273,26 @@ public final class MailData {
 	 * @return	the attachment data object
 	 */
 	public AttachmentData[] getAttachments() {
-		if (content == null)
-			content = MailTools.parseMailContent(message);
-		return content.getAttachments().toArray(new AttachmentData[0]);
+		return getContent().getAttachments().toArray(new AttachmentData[0]);
 	}
 
 
+	/**
+	 * Reads all lazily loaded fields, so the mail can be shown without 
+	 * parsing anything. As this may download content, it should not be 
+	 * called in the FX thread.
+	 * 
+	 * @return	this mail
+	 */
+	public MailData load() {
+		hasHtmlContent();
+		getTextContent();
+		getAttachments();
+		getRecipients();
+		return this;
+	}
+	
+	
 	/**
 	 * Get the original Message object
 	 * @return	the containing message object
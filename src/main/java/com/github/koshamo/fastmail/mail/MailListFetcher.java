@@ -18,124 +18,403 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
 
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
+
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
 
 /**
+ * The MailListFetcher keeps track of the messages of a server folder.
+ * <p>
+ * For folders supporting UIDs (IMAP) the fetcher remembers the UIDVALIDITY 
+ * and the highest UID it has seen. An update only asks the server for 
+ * messages with a higher UID, so a refresh costs O(new messages) instead
+ * of O(folder size). Expunged messages are detected by comparing the 
+ * UID sets, which is only done if the message count on the server does not 
+ * match the local message count. 
+ * <p>
+ * If the UIDVALIDITY changes, all local messages are invalid and the 
+ * folder is read completely. Folders without UID support are read 
+ * completely, if their message count changes.
+ * <p>
+ * Flag changes are only detected on IMAP servers supporting CONDSTORE. 
+ * The fetcher remembers the HIGHESTMODSEQ of the folder and asks for the
+ * flags of those messages only, that have changed since. If the server
+ * supports QRESYNC, changed flags and vanished messages are reported while
+ * opening the folder. If the server reported vanished messages, the 
+ * expunge detection by UID sets is skipped, as the server has reported
+ * all messages expunged since the last synchronization.
+ * 
  * @author Dr. Jochen Raßler
  *
  */
 /*private*/ class MailListFetcher {
 
-	private List<MailReference> localMails;
+	// the pool is replaced, if the account reconnects
+	private final Supplier<ConnectionPool> connectionPool;
+	private final String folderName;
+	// folder object on the sync connection, renewed if the connection changes
+	private Folder folder;
+	// all messages known on the local end, keyed by their UID
+	private final Map<Long, MailReference> localMails;
+	private long uidValidity = -1;
+	private long lastUid = 0;
+	private long highestModSeq = -1;
+	// set, if the server reported the changes while opening the folder
+	private boolean qresynced = false;
+	private List<MailEvent> resyncEvents;
+	// set, if the server reported the vanished messages with QRESYNC
+	private boolean vanished = false;
 	private List<MailReference> toDelete;
 	private List<MailReference> toAdd;
-	private final Folder folder;
+	private List<MailReference> toUpdate;
 	
 	/**
-	 * 
+	 * @param connectionPool	supplies the current connection pool of the 
+	 * account, which provides the sync connection
+	 * @param folderName		the full name of the server folder to fetch 
+	 * the messages from
 	 */
-	public MailListFetcher(final Folder folder) {
-		this.folder = folder;
-//		this.localMails = localMails;
+	public MailListFetcher(final Supplier<ConnectionPool> connectionPool, 
+			final String folderName) {
+		this.connectionPool = Objects.requireNonNull(
+				connectionPool, "connectionPool must not be null");
+		this.folderName = Objects.requireNonNull(
+				folderName, "folderName must not be null");
+		localMails = new HashMap<>();
 		toDelete = new ArrayList<>();
 		toAdd = new ArrayList<>();
+		toUpdate = new ArrayList<>();
 	}
 	
 	/**
-	 * @return the localMails
+	 * @return the messages expunged on the server with the last update
 	 */
-//	public List<MailReference> getLocalMails() {
-//		return localMails;
-//	}
+	public List<MailReference> getToDelete() {
+		return toDelete;
+	}
 
 	/**
-	 * @return the toDelete
+	 * @return the messages added on the server with the last update
 	 */
-//	public List<MailReference> getToDelete() {
-//		return toDelete;
-//	}
+	public List<MailReference> getToAdd() {
+		return toAdd;
+	}
 
 	/**
-	 * @return the toAdd
+	 * @return the messages, whose flags changed on the server with the 
+	 * last update
 	 */
-//	public List<MailReference> getToAdd() {
-//		return toAdd;
-//	}
-
-	public void updateMailList() {
-		List<Message> msgs = getMailsFromServer();
-		checkForDeletedMailsOnServer(msgs);
-		checkForNewMailsOnServer(msgs);
+	public List<MailReference> getToUpdate() {
+		return toUpdate;
 	}
 
-	public List<MailReference> getMailRefs() {
-		localMails = new ArrayList<>();
-		List<Message> msgs = getMailsFromServer();
-		for (Message msg : msgs)
-			localMails.add(new MailReference(msg));
-		return localMails;
-	}
-	
 	/**
-	 * @return
+	 * Synchronizes the local state with the server. Afterwards the 
+	 * differences can be read with getToAdd() and getToDelete().
 	 */
-	private List<Message> getMailsFromServer() {
-		List<Message> serverMails = new ArrayList<>();
+	public synchronized void updateMailList() {
+		toDelete = new ArrayList<>();
+		toAdd = new ArrayList<>();
+		toUpdate = new ArrayList<>();
 		try {
-			if (!folder.isOpen())
-				folder.open(Folder.READ_WRITE);
-			Message[] messages = folder.getMessages();
-			serverMails = Arrays.asList(messages);
+			resolveFolder();
+			openFolder();
+			if (folder instanceof UIDFolder)
+				updateByUid((UIDFolder) folder);
+			else
+				updateByCount();
 		} catch (MessagingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if (folder != null)
+				connectionPool.get().invalidate(folder.getStore());
+			postException(e);
 		} finally {
 			try {
-				folder.close(true);
+				if (folder != null && folder.isOpen())
+					folder.close(false);
 			} catch (MessagingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				postException(e);
 			}
 		}
-		return serverMails;
+	}
+	
+	/**
+	 * Gets the folder object from the sync connection. A new folder object
+	 * is needed, whenever the pool has replaced the connection.
+	 * 
+	 * @throws MessagingException	if the sync connection cannot be established
+	 */
+	private void resolveFolder() throws MessagingException {
+		Store store = connectionPool.get().getSyncStore();
+		if (folder == null || folder.getStore() != store)
+			folder = store.getFolder(folderName);
 	}
 
 	/**
-	 * @param msgs
+	 * Reads the complete folder from the server and forgets the local state
+	 * 
+	 * @return	all messages of the folder
 	 */
-	private void checkForDeletedMailsOnServer(List<Message> msgs) {
-		toDelete = new ArrayList<>();
-		for (MailReference ref : localMails) {
-			if (!msgs.contains(ref.getMessage()))
-				toDelete.add(ref);
-		}
-		// TODO: how to propagate?
+	public synchronized List<MailReference> getMailRefs() {
+		localMails.clear();
+		uidValidity = -1;
+		lastUid = 0;
+		highestModSeq = -1;
+		updateMailList();
+		return new ArrayList<>(toAdd);
+	}
+	
+	/**
+	 * Restores the local state from a previous session, e.g. from the 
+	 * header cache. The next update only fetches the changes since then.
+	 * 
+	 * @param validity	the UIDVALIDITY the UIDs belong to
+	 * @param last		the highest UID known
+	 * @param modSeq	the HIGHESTMODSEQ known, or -1 if unknown
+	 * @param refs		the messages known, which need not to have a 
+	 * message object
+	 */
+	public synchronized void restore(final long validity, final long last, 
+			final long modSeq, final List<MailReference> refs) {
+		localMails.clear();
+		for (MailReference ref : refs)
+			localMails.put(Long.valueOf(ref.getUid()), ref);
+		uidValidity = validity;
+		lastUid = last;
+		highestModSeq = modSeq;
+	}
+	
+	/**
+	 * @return the UIDVALIDITY of the folder, 0 for folders without UIDs 
+	 * and -1 if the folder has not been read yet
+	 */
+	public synchronized long getUidValidity() {
+		return uidValidity;
 	}
 
 	/**
-	 * @param msgs
+	 * @return the highest UID known
 	 */
-	private void checkForNewMailsOnServer(List<Message> msgs) {
-		toAdd = new ArrayList<>();
-		
-		List<Message> localRefs = new ArrayList<>();
-		for (MailReference ref : localMails) {
-			localRefs.add(ref.getMessage());
+	public synchronized long getLastUid() {
+		return lastUid;
+	}
+
+	/**
+	 * @return the HIGHESTMODSEQ of the last update, or -1 if unknown
+	 */
+	public synchronized long getHighestModSeq() {
+		return highestModSeq;
+	}
+	
+	/**
+	 * Opens the folder. If the server supports QRESYNC and the folder has
+	 * been synchronized before, the server reports the changes since then
+	 * while opening the folder. CONDSTORE servers are asked to maintain
+	 * the modification sequences for the folder.
+	 * 
+	 * @throws MessagingException	if the folder cannot be opened
+	 */
+	private void openFolder() throws MessagingException {
+		qresynced = false;
+		resyncEvents = null;
+		vanished = false;
+		if (folder.isOpen())
+			return;
+		if (folder instanceof IMAPFolder) {
+			IMAPFolder imapFolder = (IMAPFolder) folder;
+			IMAPStore store = (IMAPStore) folder.getStore();
+			if (highestModSeq > 0 && store.hasCapability("QRESYNC")) { //$NON-NLS-1$
+				resyncEvents = imapFolder.open(Folder.READ_ONLY, 
+						new ResyncData(uidValidity, highestModSeq));
+				qresynced = true;
+				return;
+			}
+			if (store.hasCapability("CONDSTORE")) { //$NON-NLS-1$
+				imapFolder.open(Folder.READ_ONLY, ResyncData.CONDSTORE);
+				return;
+			}
 		}
-		
-		for (Message msg : msgs) {
-			if (!localRefs.contains(msg))
-				toAdd.add(new MailReference(msg));
+		folder.open(Folder.READ_ONLY);
+	}
+	
+	/**
+	 * @param uidFolder	the opened folder
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private void updateByUid(final UIDFolder uidFolder) 
+			throws MessagingException {
+		long validity = uidFolder.getUIDValidity();
+		if (validity != uidValidity) {
+			// all known UIDs became invalid, start from scratch
+			toDelete.addAll(localMails.values());
+			localMails.clear();
+			lastUid = 0;
+			highestModSeq = -1;
+			uidValidity = validity;
+		} else 
+			resyncFlags(uidFolder);
+		int serverCount = folder.getMessageCount();
+		if (serverCount > 0) {
+			Message[] newMsgs;
+			if (lastUid == 0) {
+				newMsgs = folder.getMessages();
+				folder.fetch(newMsgs, createUidProfile());
+			} else
+				newMsgs = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+			long highestUid = lastUid;
+			for (Message msg : newMsgs) {
+				if (msg == null || msg.isExpunged())
+					continue;
+				long uid = uidFolder.getUID(msg);
+				// "n:*" always matches the last message, even if its UID is lower
+				if (uid <= lastUid)
+					continue;
+				MailReference ref = new MailReference(msg, uid);
+				localMails.put(Long.valueOf(uid), ref);
+				toAdd.add(ref);
+				if (uid > highestUid)
+					highestUid = uid;
+			}
+			lastUid = highestUid;
 		}
-		
-		// TODO: how to propagate new Mails?
-		// TODO: how to create ETD and hash?
+		// all new messages are known now, so a difference means expunges,
+		// unless the server has reported them already
+		if (!vanished && serverCount != localMails.size())
+			detectExpunged(uidFolder);
+		if (folder instanceof IMAPFolder 
+				&& ((IMAPStore) folder.getStore()).hasCapability("CONDSTORE")) //$NON-NLS-1$
+			highestModSeq = ((IMAPFolder) folder).getHighestModSeq();
+	}
+	
+	/**
+	 * Reads the flag changes and vanished messages since the last
+	 * synchronization, either from the events reported by QRESYNC or 
+	 * by asking a CONDSTORE server for the messages changed since the
+	 * last known modification sequence.
+	 * 
+	 * @param uidFolder	the opened folder
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private void resyncFlags(final UIDFolder uidFolder) 
+			throws MessagingException {
+		if (qresynced) {
+			if (resyncEvents == null)
+				return;
+			for (MailEvent event : resyncEvents) {
+				if (event instanceof MessageVanishedEvent) {
+					vanished = true;
+					for (long uid : ((MessageVanishedEvent) event).getUIDs()) {
+						MailReference ref = localMails.remove(Long.valueOf(uid));
+						if (ref != null)
+							toDelete.add(ref);
+					}
+				} else if (event instanceof MessageChangedEvent)
+					updateFlags(uidFolder, ((MessageChangedEvent) event).getMessage());
+			}
+		} else if (highestModSeq > 0 && lastUid > 0) {
+			Message[] changed = ((IMAPFolder) folder)
+					.getMessagesByUIDChangedSince(1, lastUid, highestModSeq);
+			for (Message msg : changed)
+				updateFlags(uidFolder, msg);
+		}
+	}
+	
+	/**
+	 * @param uidFolder	the opened folder
+	 * @param msg		the message with changed flags
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private void updateFlags(final UIDFolder uidFolder, final Message msg) 
+			throws MessagingException {
+		if (msg == null || msg.isExpunged())
+			return;
+		MailReference ref = localMails.get(Long.valueOf(uidFolder.getUID(msg)));
+		if (ref == null)
+			return;
+		ref.setFlags(msg.getFlags());
+		toUpdate.add(ref);
+	}
+	
+	/**
+	 * Compares the UID set of the server with the local UID set and 
+	 * removes all messages, that do not exist on the server any more
+	 * 
+	 * @param uidFolder	the opened folder
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private void detectExpunged(final UIDFolder uidFolder) 
+			throws MessagingException {
+		Message[] serverMsgs = folder.getMessages();
+		folder.fetch(serverMsgs, createUidProfile());
+		Set<Long> serverUids = new HashSet<>(serverMsgs.length * 2);
+		for (Message msg : serverMsgs)
+			serverUids.add(Long.valueOf(uidFolder.getUID(msg)));
+		Iterator<Map.Entry<Long, MailReference>> it = localMails.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, MailReference> entry = it.next();
+			if (!serverUids.contains(entry.getKey())) {
+				toDelete.add(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Folders without UIDs cannot be synchronized incrementally, so they 
+	 * are read completely, if the message count has changed
+	 * 
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private void updateByCount() throws MessagingException {
+		int serverCount = folder.getMessageCount();
+		if (uidValidity == 0 && serverCount == localMails.size())
+			return;
+		toDelete.addAll(localMails.values());
+		localMails.clear();
+		// without UIDs, the message number is the only key we have
+		for (Message msg : folder.getMessages()) {
+			MailReference ref = new MailReference(msg, msg.getMessageNumber());
+			localMails.put(Long.valueOf(msg.getMessageNumber()), ref);
+			toAdd.add(ref);
+		}
+		uidValidity = 0;
+	}
+	
+	private static FetchProfile createUidProfile() {
+		FetchProfile profile = new FetchProfile();
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		return profile;
+	}
+	
+	private static void postException(MessagingException e) {
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(
+						SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
+						e.getMessage()),
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
 	}
-
 }
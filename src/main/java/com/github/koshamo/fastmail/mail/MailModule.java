@@ -18,23 +18,46 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+import com.github.koshamo.fastmail.FastmailGlobals;
 import com.github.koshamo.fastmail.events.EditAccountEvent;
 import com.github.koshamo.fastmail.events.EditFolderItemEvent;
 import com.github.koshamo.fastmail.events.EditType;
 import com.github.koshamo.fastmail.events.FolderItemMeta;
 import com.github.koshamo.fastmail.events.FolderItemOrders;
 import com.github.koshamo.fastmail.events.MailAccountMeta;
+import com.github.koshamo.fastmail.events.MailItemMeta;
+import com.github.koshamo.fastmail.events.MailPageMeta;
+import com.github.koshamo.fastmail.events.PrefetchMailEvent;
 import com.github.koshamo.fastmail.events.PropagateFolderTreeEvent;
 import com.github.koshamo.fastmail.events.RequestFolderItemEvent;
+import com.github.koshamo.fastmail.events.RequestMailEvent;
+import com.github.koshamo.fastmail.events.RequestMailPageEvent;
+import com.github.koshamo.fastmail.events.RequestSearchEvent;
+import com.github.koshamo.fastmail.events.SearchMeta;
 import com.github.koshamo.fastmail.events.ShowAddMailEvent;
+import com.github.koshamo.fastmail.events.ShowAddSearchResultEvent;
+import com.github.koshamo.fastmail.events.ShowMailEvent;
 import com.github.koshamo.fastmail.events.ShowMailListEvent;
+import com.github.koshamo.fastmail.events.ShowMailPageEvent;
+import com.github.koshamo.fastmail.events.ShowPagedMailListEvent;
+import com.github.koshamo.fastmail.events.ShowRemoveMailEvent;
+import com.github.koshamo.fastmail.events.ShowSearchResultEvent;
+import com.github.koshamo.fastmail.events.ShowUpdateMailEvent;
 import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
 import com.github.koshamo.fastmail.util.MailTreeViewable;
 import com.github.koshamo.fastmail.util.SerializeManager;
 import com.github.koshamo.fastmail.util.UnbalancedTree;
@@ -52,6 +75,15 @@ public class MailModule implements EventHandler {
 
 	private final MessageBus messageBus;
 	private List<MailAccount> accounts;
+	private final AddMailCoalescer addMailCoalescer;
+	private final ExecutorService pageLoader;
+	private final ExecutorService searcher;
+	private final ExecutorService mailLoader;
+	// counts the requested mails, so superseded requests are dropped
+	private final AtomicLong mailRequest = new AtomicLong();
+	// counts the searches, so a running search can tell, if it is outdated
+	private final AtomicLong searchGeneration = new AtomicLong();
+	private final BodyPrefetcher bodyPrefetcher;
 	
 	/* These fields store the current folder to show. 
 	 * If new mails arrive in a folder, that is not
@@ -60,6 +92,8 @@ public class MailModule implements EventHandler {
 	 */
 	MailAccount currentDisplayedAccount;
 	String currentDisplayedFolder;
+	// set, if the current folder is shown page by page
+	boolean currentDisplayedPaged;
 	
 	/**
 	 * @param messageBus
@@ -68,6 +102,23 @@ public class MailModule implements EventHandler {
 		this.messageBus = 
 				Objects.requireNonNull(messageBus, "messageBus must not be null");
 		this.messageBus.registerAllEvents(this, ListenerType.TARGET);
+		addMailCoalescer = new AddMailCoalescer(this);
+		bodyPrefetcher = new BodyPrefetcher();
+		pageLoader = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "MailPageLoader"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		searcher = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "MailSearcher"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		mailLoader = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "MailLoader"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	public void start() {
@@ -131,6 +182,14 @@ public class MailModule implements EventHandler {
 			handleEditFolderItemEvent((EditFolderItemEvent) event);
 		if (event instanceof RequestFolderItemEvent)
 			handleRequestFolderItemEvent((RequestFolderItemEvent) event);
+		if (event instanceof RequestMailEvent)
+			handleRequestMailEvent((RequestMailEvent) event);
+		if (event instanceof PrefetchMailEvent)
+			handlePrefetchMailEvent((PrefetchMailEvent) event);
+		if (event instanceof RequestMailPageEvent)
+			handleRequestMailPageEvent((RequestMailPageEvent) event);
+		if (event instanceof RequestSearchEvent)
+			handleRequestSearchEvent((RequestSearchEvent) event);
 	}
 
 
@@ -193,16 +252,175 @@ public class MailModule implements EventHandler {
 		if (meta.getOrder() == FolderItemOrders.SHOW) {
 			currentDisplayedAccount = ma;
 			currentDisplayedFolder = meta.getOriginalFolder();
-			EmailTableData[] etdList = ma.getMails(meta.getOriginalFolder());
-			messageBus.postEvent(new ShowMailListEvent(this, event.getSource(), meta, etdList));
+			ma.prioritize(meta.getOriginalFolder());
+			// the mail list shown contains all pending mails
+			addMailCoalescer.discard(ma, meta.getOriginalFolder());
+			// large folders are listed page by page, until their mail list is built
+			int pending = ma.getPendingMessageCount(meta.getOriginalFolder());
+			currentDisplayedPaged = pending > FastmailGlobals.PAGED_LISTING_THRESHOLD;
+			if (currentDisplayedPaged) {
+				messageBus.postEvent(new ShowPagedMailListEvent(
+						this, event.getSource(), meta, Integer.valueOf(pending)));
+				// the mail list may have been completed meanwhile
+				if (ma.getPendingMessageCount(meta.getOriginalFolder()) < 0)
+					postMailList(ma, meta.getOriginalFolder());
+				return;
+			}
+			MailColumns mails = ma.getMails(meta.getOriginalFolder());
+			messageBus.postEvent(new ShowMailListEvent(this, event.getSource(), meta, mails));
 		}
 	}
 	
+	/**
+	 * Loads a page of a folder listing from the server. The pages are 
+	 * loaded one after the other, so scrolling does not occupy all fetch
+	 * connections of the account.
+	 * 
+	 * @param event	the request containing the page to load
+	 */
+	private void handleRequestMailPageEvent(RequestMailPageEvent event) {
+		MailPageMeta meta = event.getMetaInformation();
+		pageLoader.execute(() -> {
+			MailAccount ma = currentDisplayedAccount;
+			// pages of a folder not shown anymore are not needed
+			if (ma == null || !ma.getAccountName().equals(meta.getAccount())
+					|| !meta.getFolder().equals(currentDisplayedFolder))
+				return;
+			EmailTableData[] data = ma.getMailPage(meta.getFolder(), 
+					meta.getTotal(), meta.getPage(), meta.getPageSize());
+			if (data != null)
+				messageBus.postEvent(new ShowMailPageEvent(this, event.getSource(), meta, data));
+		});
+	}
+	
+	/**
+	 * Loads the requested mail in a separate thread, as its content may
+	 * need to be downloaded, and posts it to be shown. The mails are loaded
+	 * one after the other, requests superseded by a newer one while they
+	 * wait are dropped, e.g. when the user moves through the table.
+	 * 
+	 * @param event	the request containing the mail to be shown
+	 */
+	private void handleRequestMailEvent(RequestMailEvent event) {
+		MailItemMeta meta = event.getMetaInformation();
+		long request = mailRequest.incrementAndGet();
+		// the neighbours of the previous selection are not needed anymore
+		bodyPrefetcher.cancelPending();
+		MailData cached = bodyPrefetcher.get(meta);
+		if (cached != null) {
+			messageBus.postEvent(new ShowMailEvent(this, event.getSource(), meta, cached));
+			return;
+		}
+		Optional<MailAccount> ma = accounts.stream().
+				filter(acc -> acc.getAccountName().equals(meta.getAccount())).
+				findFirst();
+		if (!ma.isPresent())
+			return;
+		mailLoader.execute(() -> {
+			if (request != mailRequest.get())
+				return;
+			MailData data = ma.get().getMailData(meta.getFolder(), meta.getUniqueID());
+			if (data != null) {
+				bodyPrefetcher.put(meta, data);
+				messageBus.postEvent(new ShowMailEvent(this, event.getSource(), meta, data));
+			}
+		});
+	}
+	
+	/**
+	 * Loads a mail, that is likely to be selected next, in the background
+	 * 
+	 * @param event	the request containing the mail to be loaded
+	 */
+	private void handlePrefetchMailEvent(PrefetchMailEvent event) {
+		MailItemMeta meta = event.getMetaInformation();
+		Optional<MailAccount> ma = accounts.stream().
+				filter(acc -> acc.getAccountName().equals(meta.getAccount())).
+				findFirst();
+		if (ma.isPresent())
+			bodyPrefetcher.prefetch(ma.get(), meta);
+	}
+	
+	/**
+	 * Searches the indexed mails in a separate thread and posts the hits.
+	 * Afterwards the server is searched for further mails, whose hits are 
+	 * posted as they arrive: the folders, whose mail list is still built, 
+	 * and, if the search requests it, the text of the mails, that is not 
+	 * indexed. A new search cancels the server search of the previous one.
+	 * 
+	 * @param event	the request containing the search
+	 */
+	private void handleRequestSearchEvent(RequestSearchEvent event) {
+		SearchMeta meta = event.getMetaInformation();
+		long search = searchGeneration.incrementAndGet();
+		BooleanSupplier cancelled = () -> search != searchGeneration.get();
+		searcher.execute(() -> {
+			if (cancelled.getAsBoolean())
+				return;
+			List<SearchHit> hits = SearchIndex.getInstance().search(
+					meta.getQuery(), meta.getAccount(), meta.getFolder(), 
+					FastmailGlobals.SEARCH_MAX_HITS);
+			messageBus.postEvent(new ShowSearchResultEvent(this, event.getSource(), 
+					meta, hits.toArray(new SearchHit[hits.size()])));
+			Set<String> known = new HashSet<>();
+			for (SearchHit hit : hits)
+				known.add(ContentCache.key(hit.getAccount(), hit.getFolder(), 
+						hit.getMail().getUniqueID()));
+			List<MailAccount> scope = new ArrayList<>();
+			for (MailAccount ma : accounts)
+				if (meta.getAccount() == null 
+						|| ma.getAccountName().equals(meta.getAccount()))
+					scope.add(ma);
+			ServerSearch.search(scope, meta.getFolder(), meta.getQuery(), 
+					meta.isServerSearch(), known, 
+					FastmailGlobals.SEARCH_MAX_HITS - hits.size(), 
+					found -> {
+						if (!cancelled.getAsBoolean())
+							messageBus.postEvent(new ShowAddSearchResultEvent(
+									this, event.getSource(), meta, found));
+					}, cancelled);
+		});
+	}
+	
 	/*private*/ void postSingleMail(MailAccount account, String folderName, EmailTableData mail) {
 		if (currentDisplayedAccount == account 
-				&& currentDisplayedFolder.equals(folderName)) {
+				&& folderName.equals(currentDisplayedFolder))
+			addMailCoalescer.add(account, folderName, mail);
+	}
+
+	/*private*/ void postAddedMails(MailAccount account, String folderName, EmailTableData[] mails) {
+		if (currentDisplayedAccount == account 
+				&& folderName.equals(currentDisplayedFolder)) {
+			FolderItemMeta meta = new FolderItemMeta(account.getAccountName(), folderName, FolderItemOrders.SHOW);
+			messageBus.postEvent(new ShowAddMailEvent(this, null, meta, mails));
+		}
+	}
+
+	/*private*/ void postRemovedMails(MailAccount account, String folderName, EmailTableData[] mails) {
+		if (currentDisplayedAccount == account 
+				&& folderName.equals(currentDisplayedFolder)) {
+			FolderItemMeta meta = new FolderItemMeta(account.getAccountName(), folderName, FolderItemOrders.SHOW);
+			messageBus.postEvent(new ShowRemoveMailEvent(this, null, meta, mails));
+		}
+	}
+
+	/*private*/ void postChangedMails(MailAccount account, String folderName, EmailTableData[] mails) {
+		if (currentDisplayedAccount == account 
+				&& folderName.equals(currentDisplayedFolder)) {
+			FolderItemMeta meta = new FolderItemMeta(account.getAccountName(), folderName, FolderItemOrders.SHOW);
+			messageBus.postEvent(new ShowUpdateMailEvent(this, null, meta, mails));
+		}
+	}
+
+	/*private*/ void postMailList(MailAccount account, String folderName) {
+		if (currentDisplayedAccount == account 
+				&& folderName.equals(currentDisplayedFolder)
+				&& currentDisplayedPaged) {
+			// the complete mail list replaces the paged listing
+			currentDisplayedPaged = false;
+			addMailCoalescer.discard(account, folderName);
 			FolderItemMeta meta = new FolderItemMeta(account.getAccountName(), folderName, FolderItemOrders.SHOW);
-			messageBus.postEvent(new ShowAddMailEvent(this, null, meta, mail));
+			messageBus.postEvent(new ShowMailListEvent(this, null, meta, account.getMails(folderName)));
 		}
 	}
 
@@ -226,8 +444,20 @@ public class MailModule implements EventHandler {
 	 */
 	@Override
 	public void shutdown() {
+		addMailCoalescer.shutdown();
+		pageLoader.shutdownNow();
+		searcher.shutdownNow();
+		mailLoader.shutdownNow();
+		bodyPrefetcher.shutdown();
 		for (MailAccount ma : accounts)
 			ma.shutdown();
+		// the statistics show, whether the content cache is sized well
+		ContentCache.Statistics stats = ContentCache.getInstance().getStatistics();
+		System.out.println(MessageFormat.format(
+				SerializeManager.getLocaleMessageBundle().getString("info.contentcache"),  //$NON-NLS-1$
+				Long.valueOf(stats.getHits()), Long.valueOf(stats.getSoftHits()), 
+				Long.valueOf(stats.getMisses()), Double.valueOf(stats.getHitRatio()),
+				Long.valueOf(stats.getEvictions())));
 		System.exit(0);
 	}
 
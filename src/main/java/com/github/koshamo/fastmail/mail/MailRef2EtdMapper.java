@@ -19,20 +19,26 @@
 package com.github.koshamo.fastmail.mail;
 
 import java.io.IOException;
+import java.text.MessageFormat;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
 
+import com.github.koshamo.fastmail.FastmailGlobals;
 import com.github.koshamo.fastmail.util.EmailTableData;
-import com.github.koshamo.fastmail.util.HashUtils;
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
 import com.sun.mail.imap.IMAPMessage;
 
 /**
@@ -42,24 +48,52 @@ import com.sun.mail.imap.IMAPMessage;
 /*private*/ class MailRef2EtdMapper implements Runnable {
 
 	private final FolderContent currentFolder;
-	private List<EmailTableData> mailList;
 	private final List<MailReference> messages;
-	private boolean stop = false;
-	private boolean done = false;
+	private final int chunkSize;
+	private volatile boolean stop = false;
+	private volatile boolean done = false;
+	// set, if the server could not deliver the messages, so the mail list
+	// needs to be built again
+	private volatile boolean failed = false;
+	// folder to read the messages from, if not the folder of the messages
+	private Folder folder;
 	
 	/**
-	 * @param folder
+	 * @param currentFolder	the folder the messages belong to, which gets 
+	 * the mapped messages
+	 * @param messages		the messages to map
 	 */
 	public MailRef2EtdMapper(final FolderContent currentFolder, 
-			final List<MailReference> messages, 
-			List<EmailTableData> mailList) {
+			final List<MailReference> messages) {
+		this(currentFolder, messages, FastmailGlobals.ENVELOPE_FETCH_CHUNK);
+	}
+	
+	/**
+	 * @param currentFolder	the folder the messages belong to, which gets 
+	 * the mapped messages
+	 * @param messages		the messages to map
+	 * @param chunkSize		the number of messages to prefetch per FETCH command
+	 */
+	public MailRef2EtdMapper(final FolderContent currentFolder, 
+			final List<MailReference> messages, final int chunkSize) {
 		this.currentFolder = 
 				Objects.requireNonNull(currentFolder, "currentFolder must not be null");
 		this.messages = messages;
-		if (mailList != null)
-			this.mailList = mailList;
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = chunkSize;
 	}
 
+	/**
+	 * Sets the folder to read the messages from, e.g. a folder object of
+	 * another connection. By default the folder of the messages is used.
+	 * 
+	 * @param folder	the folder containing the messages
+	 */
+	/*private*/ void setFolder(final Folder folder) {
+		this.folder = folder;
+	}
+	
 	public void stop() {
 		stop = true;
 	}
@@ -68,8 +102,11 @@ import com.sun.mail.imap.IMAPMessage;
 		return done;
 	}
 	
-	public List<EmailTableData> getMailList() {
-		return mailList;
+	/**
+	 * @return	true, if the mapping was aborted by an error
+	 */
+	public boolean isFailed() {
+		return failed;
 	}
 	
 	/* (non-Javadoc)
@@ -77,61 +114,150 @@ import com.sun.mail.imap.IMAPMessage;
 	 */
 	@Override
 	public void run() {
-		if (mailList == null)
-			mailList = new ArrayList<>();
-		if (messages.size() == 0)
+		if (messages.size() == 0) {
+			done = true;
 			return;
-		Folder folder = messages.get(0).getMessage().getFolder();
+		}
+		Folder folder = this.folder != null 
+				? this.folder : messages.get(0).getMessage().getFolder();
 		try {
 			if (!folder.isOpen())
 				folder.open(Folder.READ_ONLY);
-			for (MailReference ref : messages) {
+			// 0 for folders without UIDs, whose keys are hashed Message-IDs
+			long uidValidity = folder instanceof UIDFolder 
+					? ((UIDFolder) folder).getUIDValidity() : 0;
+			FetchProfile profile = createEnvelopeProfile();
+			for (int start = 0; start < messages.size(); start += chunkSize) {
 				if (stop) return;
-				
-				if (ref.getMessage() instanceof IMAPMessage) 
-					((IMAPMessage) ref.getMessage()).setPeek(true);
-				EmailTableData etd = getEmailTableData(ref.getMessage());
-				ref.setUniqueId(etd.getUniqueID());
-				mailList.add(etd);
-				currentFolder.propagateETD(etd);
+				List<MailReference> chunk = messages.subList(
+						start, Math.min(start + chunkSize, messages.size()));
+				for (MailReference ref : prefetch(folder, chunk, profile)) {
+					if (stop) return;
+					
+					if (ref.getMessage() instanceof IMAPMessage) 
+						((IMAPMessage) ref.getMessage()).setPeek(true);
+					EmailTableData etd = getEmailTableData(ref, uidValidity);
+					ref.setUniqueId(etd.getUniqueID());
+					currentFolder.addMail(ref, etd);
+				}
 			}
 			done = true;
-			if (folder.isOpen())
-				folder.close(false);
-		} catch (MessagingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} catch (MessagingException | IOException e) {
+			failed = true;
+			postException(e);
+		} finally {
+			try {
+				if (folder.isOpen())
+					folder.close(false);
+			} catch (@SuppressWarnings("unused") MessagingException e) {
+				// folder is not used anymore
+			}
 		}
 
 	}
 
-	private static EmailTableData getEmailTableData(Message msg) 
-			throws MessagingException, IOException {
+	/**
+	 * The FetchProfile contains all data needed to build the table data
+	 * of a message, so the server can deliver it for a whole chunk of
+	 * messages at once instead of several requests per message
+	 * 
+	 * @return	the profile for the envelope prefetch
+	 */
+	/*private*/ static FetchProfile createEnvelopeProfile() {
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		// not part of the envelope, but needed to thread the mails
+		profile.add("References"); //$NON-NLS-1$
+		profile.add("In-Reply-To"); //$NON-NLS-1$
+		return profile;
+	}
+	
+	/**
+	 * Fetches the envelope data of a chunk of messages with a single
+	 * request to the server.
+	 * <p>
+	 * Message objects of a previously opened folder do not receive the 
+	 * fetched data, so the references are updated with the message objects
+	 * of the currently opened folder. The UIDs ensure that the messages
+	 * still match, if messages were expunged meanwhile.
+	 * 
+	 * @param folder	the opened folder containing the messages
+	 * @param chunk		the messages to prefetch
+	 * @param profile	the data to prefetch
+	 * @return			the messages of the chunk still existing on the server
+	 * @throws MessagingException	if the server cannot deliver the data
+	 */
+	private static List<MailReference> prefetch(final Folder folder, 
+			final List<MailReference> chunk, final FetchProfile profile) 
+			throws MessagingException {
+		int count = folder.getMessageCount();
+		Message[] msgs = new Message[chunk.size()];
+		List<Message> toFetch = new ArrayList<>(chunk.size());
+		for (int i = 0; i < msgs.length; ++i) {
+			int num = chunk.get(i).getMessage().getMessageNumber();
+			if (num > 0 && num <= count) {
+				msgs[i] = folder.getMessage(num);
+				toFetch.add(msgs[i]);
+			}
+		}
+		folder.fetch(toFetch.toArray(new Message[0]), profile);
+		
+		List<MailReference> valid = new ArrayList<>(chunk.size());
+		UIDFolder uidFolder = 
+				folder instanceof UIDFolder ? (UIDFolder) folder : null;
+		for (int i = 0; i < msgs.length; ++i) {
+			MailReference ref = chunk.get(i);
+			Message msg = msgs[i];
+			if (uidFolder != null 
+					&& (msg == null || uidFolder.getUID(msg) != ref.getUid()))
+				msg = uidFolder.getMessageByUID(ref.getUid());
+			if (msg == null)
+				continue;
+			ref.setMessage(msg);
+			valid.add(ref);
+		}
+		return valid;
+	}
+
+	private static void postException(Exception e) {
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(
+						SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
+						e.getMessage()),
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
+	}
+
+	/*private*/ static EmailTableData getEmailTableData(MailReference ref, 
+			long uidValidity) throws MessagingException, IOException {
+		Message msg = ref.getMessage();
 		String from = ((InternetAddress[]) msg.getFrom())[0].getAddress();
 		String fromName = ((InternetAddress[]) msg.getFrom())[0].getPersonal();
 		String subject = msg.getSubject();
 		if (subject == null)
 			subject = "";
 		Instant sentDate = msg.getSentDate().toInstant();
-		boolean attached = false;
-		if (msg.isMimeType("multipart/mixed")) { //$NON-NLS-1$
-			Multipart mp = (Multipart) msg.getContent();
-			if (mp.getCount() > 1)
-				attached = true;
-			else 
-				// TODO: what, if image is the only content?
-				// would it be better to check against not-TEXT?
-				if (mp.getBodyPart(0).getContentType().contains("APPLICATION"))
-					attached = true;
-		}
+		// uses BODYSTRUCTURE, so no message content will be downloaded
+		boolean attached = MailTools.hasAttachment(msg);
 		boolean read = msg.isSet(Flag.SEEN);
 		boolean marked = msg.isSet(Flag.FLAGGED);
-		String hashText = from + fromName + subject + sentDate.toString();
-		String uniqueID = HashUtils.calcMD5Hash(hashText);
+		// the Message-ID is part of the envelope, so it has been prefetched
+		String messageId = msg instanceof MimeMessage 
+				? ((MimeMessage) msg).getMessageID() : null;
+		long uniqueID;
+		if (uidValidity > 0)
+			uniqueID = MessageKey.of(uidValidity, ref.getUid());
+		else if (messageId != null)
+			uniqueID = MessageKey.ofMessageId(messageId);
+		else
+			uniqueID = MessageKey.ofMessageId(
+					from + fromName + subject + sentDate.toString());
 
-		return new EmailTableData(from, fromName, subject, sentDate, attached, read, marked, uniqueID);
+		EmailTableData etd = new EmailTableData(from, fromName, subject, sentDate, attached, read, marked, uniqueID);
+		etd.setThreadHeaders(messageId, MailTools.getReferences(msg));
+		return etd;
 	}
 }
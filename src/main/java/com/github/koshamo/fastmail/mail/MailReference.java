@@ -18,6 +18,7 @@
 
 package com.github.koshamo.fastmail.mail;
 
+import javax.mail.Flags;
 import javax.mail.Message;
 
 /**
@@ -25,27 +26,38 @@ import javax.mail.Message;
  *
  */
 /* private */ class MailReference {
-	private final Message message;
-	private String uniqueId;
+	private Message message;
+	private final long uid;
+	private long uniqueId = MessageKey.NONE;
+	private Flags flags;
 	
 	/**
-	 * @param message
+	 * @param message	the message on the server
+	 * @param uid		the UID of the message within its folder
 	 */
-	public MailReference(Message message) {
+	public MailReference(Message message, long uid) {
 		this.message = message;
+		this.uid = uid;
 	}
 
 	/**
-	 * @return the uniqueId
+	 * @return the UID of the message within its folder
 	 */
-	public String getUniqueId() {
+	public long getUid() {
+		return uid;
+	}
+
+	/**
+	 * @return the uniqueId, MessageKey.NONE until the message is mapped
+	 */
+	public long getUniqueId() {
 		return uniqueId;
 	}
 
 	/**
 	 * @param uniqueId the uniqueId to set
 	 */
-	public void setUniqueId(String uniqueId) {
+	public void setUniqueId(long uniqueId) {
 		this.uniqueId = uniqueId;
 	}
 
@@ -55,5 +67,29 @@ import javax.mail.Message;
 	public Message getMessage() {
 		return message;
 	}
+
+	/**
+	 * Message objects become invalid, when their folder is closed. So 
+	 * after reopening the folder the reference needs the new object.
+	 * 
+	 * @param message the message object of the currently opened folder
+	 */
+	public void setMessage(Message message) {
+		this.message = message;
+	}
+
+	/**
+	 * @return the flags last read from the server, if they have changed
+	 */
+	public Flags getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @param flags the flags read from the server
+	 */
+	public void setFlags(Flags flags) {
+		this.flags = flags;
+	}
 	
 }
@@ -19,19 +19,26 @@
 package com.github.koshamo.fastmail.mail;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.activation.DataHandler;
+import javax.mail.Address;
 import javax.mail.BodyPart;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.Part;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
 
+import com.github.koshamo.fastmail.mail.Recipients.Recipient;
 import com.github.koshamo.fastmail.util.MessageItem;
 import com.github.koshamo.fastmail.util.MessageMarket;
 import com.github.koshamo.fastmail.util.SerializeManager;
@@ -170,18 +177,21 @@ public class MailTools {
 	}
 	
 	/**
-	 * Just in time loading of to addresses of the given message
+	 * Just in time loading of the to and cc recipients of the given message.
+	 * <p>
+	 * Each header is read and parsed only once. Members of address groups
+	 * are listed as single recipients with the name of their group, display
+	 * names are decoded, if the server delivers them MIME encoded.
+	 * 
 	 * @param message	the message to process
-	 * @return			the list of to addresses as array
+	 * @return			the recipients of the message
 	 */
-	public static String[] getToAddresses(final Message message) {
+	public static Recipients getRecipients(final Message message) {
 		try {
-			int toLength = ((InternetAddress[])message.getRecipients(RecipientType.TO)).length;
-			String[] to = new String[toLength];
-			for (int i = 0; i < toLength; i++) {
-				to[i] = ((InternetAddress[])message.getRecipients(RecipientType.TO))[i].getAddress();
-			}
-			return to;
+			Address[] cc = message.getRecipients(RecipientType.CC);
+			return new Recipients(
+					toRecipients(message.getRecipients(RecipientType.TO)),
+					cc != null ? toRecipients(cc) : null);
 		} catch (MessagingException e) {
 			MessageItem mItem = new MessageItem(
 					MessageFormat.format(
@@ -190,122 +200,211 @@ public class MailTools {
 					0.0, MessageItem.MessageType.EXCEPTION);
 			MessageMarket.getInstance().produceMessage(mItem);
 		}
-		return null;
+		return Recipients.EMPTY;
 	}
 	
-
+	
 	/**
-	 * Just in time loading of to display names of the given message
-	 * @param message	the message to process
-	 * @return			the list of to display names as array
+	 * Maps the addresses of a recipient header to recipients, address 
+	 * groups are resolved to their members
+	 * 
+	 * @param addresses	the addresses of the header, may be null
+	 * @return			the recipients
 	 */
-	public static String[] getToNames(final Message message) {
-		try {
-			int toLength = ((InternetAddress[])message.getRecipients(RecipientType.TO)).length;
-			String[] toName = new String[toLength];
-			for (int i = 0; i < toLength; i++) {
-				toName[i] = ((InternetAddress[])message.getRecipients(RecipientType.TO))[i].getPersonal();
+	private static Recipient[] toRecipients(final Address[] addresses) {
+		if (addresses == null)
+			return new Recipient[0];
+		List<Recipient> recipients = new ArrayList<>(addresses.length);
+		for (Address adr : addresses) {
+			if (!(adr instanceof InternetAddress)) {
+				recipients.add(new Recipient(adr.toString(), null, null));
+				continue;
+			}
+			InternetAddress ia = (InternetAddress) adr;
+			if (!ia.isGroup()) {
+				recipients.add(toRecipient(ia, null));
+				continue;
+			}
+			// the address of a group is "name:member,...;"
+			String group = ia.getAddress();
+			int colon = group.indexOf(':');
+			if (colon >= 0)
+				group = group.substring(0, colon);
+			group = decode(group.trim());
+			try {
+				for (InternetAddress member : ia.getGroup(false))
+					recipients.add(toRecipient(member, group));
+			} catch (@SuppressWarnings("unused") AddressException e) {
+				// show the group as it is, if the members cannot be parsed
+				recipients.add(new Recipient(ia.getAddress(), null, group));
 			}
-			return toName;
-		} catch (MessagingException e) {
-			MessageItem mItem = new MessageItem(
-					MessageFormat.format(
-							SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
-							e.getMessage()),
-					0.0, MessageItem.MessageType.EXCEPTION);
-			MessageMarket.getInstance().produceMessage(mItem);
 		}
-		return null;
+		return recipients.toArray(new Recipient[recipients.size()]);
+	}
+	
+	
+	private static Recipient toRecipient(final InternetAddress adr, 
+			final String group) {
+		String address = adr.getAddress();
+		return new Recipient(address != null ? address : "", //$NON-NLS-1$
+				decode(adr.getPersonal()), group);
 	}
 	
 	
 	/**
-	 * Just in time loading of cc addresses of the given message
-	 * @param message	the message to process
-	 * @return			the list of cc addresses as array
+	 * Decodes MIME encoded words, that have not been decoded yet, e.g. 
+	 * names taken from the IMAP envelope
+	 * 
+	 * @param text	the text to decode, may be null
+	 * @return		the decoded text, or the text itself, if its charset
+	 * is not supported
 	 */
-	public static String[] getCcAddresses(final Message message) {
+	private static String decode(final String text) {
+		if (text == null || !text.contains("=?")) //$NON-NLS-1$
+			return text;
 		try {
-			if (message.getRecipients(RecipientType.CC) != null) {
-				int ccLength = ((InternetAddress[])message.getRecipients(RecipientType.CC)).length;
-				String[] cc = new String[ccLength];
-				for (int i = 0; i < ccLength; i++) {
-					cc[i] = ((InternetAddress[])message.getRecipients(RecipientType.CC))[i].getAddress();
-				}
-				return cc;
+			return MimeUtility.decodeText(text);
+		} catch (@SuppressWarnings("unused") UnsupportedEncodingException e) {
+			return text;
+		}
+	}
+	
+	/**
+	 * Get the Message-IDs a message refers to, as used to build the 
+	 * conversation threads. The References header lists the thread from
+	 * its root to the parent of the message. Some mail clients only send
+	 * the In-Reply-To header, so its first Message-ID is added as parent,
+	 * if it is not the last reference anyway.
+	 * 
+	 * @param msg	the message with prefetched References and In-Reply-To
+	 * @return		the referenced Message-IDs, the parent last
+	 * @throws MessagingException	if the message is expunged or similar
+	 */
+	public static String[] getReferences(final Message msg) 
+			throws MessagingException {
+		List<String> refs = parseMessageIds(msg.getHeader("References")); //$NON-NLS-1$
+		List<String> inReplyTo = parseMessageIds(msg.getHeader("In-Reply-To")); //$NON-NLS-1$
+		if (!inReplyTo.isEmpty()) {
+			String parent = inReplyTo.get(0);
+			if (refs.isEmpty() || !parent.equals(refs.get(refs.size() - 1))) {
+				refs.remove(parent);
+				refs.add(parent);
 			}
-		} catch (MessagingException e) {
-			MessageItem mItem = new MessageItem(
-					MessageFormat.format(
-							SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
-							e.getMessage()),
-					0.0, MessageItem.MessageType.EXCEPTION);
-			MessageMarket.getInstance().produceMessage(mItem);
 		}
-		return null;
+		return refs.toArray(new String[refs.size()]);
 	}
 	
+	/**
+	 * Extracts the Message-IDs enclosed in angle brackets, any comments 
+	 * or folding between them is ignored
+	 * 
+	 * @param headers	the values of a header, may be null
+	 * @return			the Message-IDs including their angle brackets
+	 */
+	/*private*/ static List<String> parseMessageIds(final String[] headers) {
+		List<String> ids = new ArrayList<>();
+		if (headers == null)
+			return ids;
+		for (String header : headers) {
+			int start = header.indexOf('<');
+			while (start >= 0) {
+				int end = header.indexOf('>', start);
+				if (end < 0)
+					break;
+				if (end > start + 1)
+					ids.add(header.substring(start, end + 1));
+				start = header.indexOf('<', end);
+			}
+		}
+		return ids;
+	}
 	
 	/**
-	 * Just in time loading of cc display names of the given message
-	 * @param message	the message to process
-	 * @return			the list of cc display names as array
+	 * Checks if a message or a part of it contains attachments.
+	 * <p>
+	 * The check only uses the content type and content disposition of
+	 * the parts. For IMAP messages this information is taken from the 
+	 * BODYSTRUCTURE, which is part of the envelope prefetch, so no message
+	 * content is downloaded. Leaf parts count as attachments, if they are
+	 * marked as attachment or are not textual. Embedded resources of 
+	 * HTML messages (multipart/related) are no attachments.
+	 * 
+	 * @param part	the message or body part to check
+	 * @return		true, if an attachment is contained, false otherwise
+	 * @throws MessagingException 	if the message is expunged or similar
+	 * @throws IOException 			if the internet connection is lost
 	 */
-	public static String[] getCcNames(final Message message) {
-		try {
-			if (message.getRecipients(RecipientType.CC) != null) {
-				int ccLength = ((InternetAddress[])message.getRecipients(RecipientType.CC)).length;
-				String[] ccName = new String[ccLength];
-				for (int i = 0; i < ccLength; i++) {
-					ccName[i] = ((InternetAddress[])message.getRecipients(RecipientType.CC))[i].getPersonal();
-				}
-				return ccName;
+	public static boolean hasAttachment(final Part part) 
+			throws MessagingException, IOException {
+		if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()))
+			return true;
+		if (part.isMimeType("multipart/*")) { //$NON-NLS-1$
+			// IMAP multiparts are built from the BODYSTRUCTURE
+			Multipart mp = (Multipart) part.getContent();
+			boolean related = part.isMimeType("multipart/related"); //$NON-NLS-1$
+			for (int i = 0; i < mp.getCount(); i++) {
+				BodyPart bp = mp.getBodyPart(i);
+				// the first part of multipart/related is the actual content
+				if (related && i > 0 
+						&& !Part.ATTACHMENT.equalsIgnoreCase(bp.getDisposition()))
+					continue;
+				if (hasAttachment(bp))
+					return true;
 			}
-		} catch (MessagingException e) {
-			MessageItem mItem = new MessageItem(
-					MessageFormat.format(
-							SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
-							e.getMessage()),
-					0.0, MessageItem.MessageType.EXCEPTION);
-			MessageMarket.getInstance().produceMessage(mItem);
+			return false;
 		}
-		return null;
+		return !part.isMimeType("text/*"); //$NON-NLS-1$
 	}
 	
-
+	/**
+	 * Creates the source of an attachment, which is found at the given
+	 * path of part indices within the message
+	 */
+	@FunctionalInterface
+	/*private*/ interface AttachmentSourceFactory {
+		AttachmentData.Source sourceOf(Part part, int[] path);
+	}
 	
 	/**
 	 * Just in time loading of Message content, such as Text and HTML
-	 * content and attachments
+	 * content and attachments. Both text contents of a message are read,
+	 * attachments are read only when they are saved.
 	 * 
 	 * @param msg	the message to be read 
 	 * @return		the MailContent object containing text, and HTML 
 	 * content as well as the attachments
 	 */
 	public static MailContent parseMailContent(final Message msg) {
-		MailContent content = null;
-		
+		return parseMailContent(msg, true, (part, path) -> part::getInputStream);
+	}
+	
+	/**
+	 * Walks the MIME structure of the message without reading the content
+	 * of its parts. For IMAP messages the structure is taken from the 
+	 * BODYSTRUCTURE. Then only the text parts to show are read and the 
+	 * attachments get a source to read them later.
+	 * 
+	 * @param msg		the message to be read
+	 * @param allText	if set, both the plain text and the HTML content are 
+	 * read, otherwise only the HTML content or the plain text, if the 
+	 * message has no HTML content
+	 * @param sources	creates the sources of the attachments
+	 * @return		the MailContent object containing text, and HTML 
+	 * content as well as the attachments, or null, if the message cannot 
+	 * be read
+	 */
+	/*private*/ static MailContent parseMailContent(final Message msg, 
+			final boolean allText, final AttachmentSourceFactory sources) {
+		MailContent content = new MailContent();
+		Part[] textParts = new Part[2];
 		try {
-			String type = msg.getContentType();
-			if (type.toLowerCase().contains("text")) { //$NON-NLS-1$
-				content = new MailContent();
-				// content type TEXT/PLAIN 
-				if (type.toLowerCase().contains("plain")) { //$NON-NLS-1$
-					if (!(msg.getContent() instanceof String))
-						System.out.println("Content is no String?!");
-					content.setTextContent((String)msg.getContent());
-				}
-				// content type TEXT/HTML
-				if (type.toLowerCase().contains("html")) { //$NON-NLS-1$
-					if (!(msg.getContent() instanceof String))
-						System.out.println("Content is no String?!");
-					content.setHtmlContent((String)msg.getContent());
-				}
-				return content;
-			}
-			// content type MULTIPART
-			if (type.toLowerCase().contains("multipart")) //$NON-NLS-1$
-				content = parseMultipartContent((Multipart) msg.getContent());
+			walkPart(msg, new int[0], textParts, content, sources);
+			Part text = textParts[0];
+			Part html = textParts[1];
+			if (html != null)
+				content.setHtmlContent(readText(html));
+			if (text != null && (allText || html == null))
+				content.setTextContent(readText(text));
 			return content;
 		} catch (MessagingException e) {
 			// TODO Auto-generated catch block
@@ -319,66 +418,72 @@ public class MailTools {
 	}
 	
 	/**
-	 * A Mail either contains only a simple text content (plain or HTML), 
-	 * or is a Multipart message, possibly with attachments.
-	 * If the mail is Multipart message, this method diggs into it.
+	 * Finds the part of the message at the given path
 	 * 
-	 * @param part	the Multipart object in the mail
-	 * @return		the MailContent object containing text, and HTML 
-	 * content as well as the attachments
+	 * @param msg	the message containing the part
+	 * @param path	the indices of the parts within the nested multiparts
+	 * @return		the part
 	 * @throws MessagingException 	if the message is expunged or similar
 	 * @throws IOException 			if the internet connection is lost
 	 */
-	private static MailContent parseMultipartContent(final Multipart part) 
+	/*private*/ static Part findPart(final Message msg, final int[] path) 
 			throws MessagingException, IOException {
-		MailContent content = new MailContent();
-			for (int i = 0; i < part.getCount(); i++) 
-				parseBodyPart(part.getBodyPart(i), content);
-		return content;
+		Part part = msg;
+		for (int index : path)
+			part = ((Multipart) part.getContent()).getBodyPart(index);
+		return part;
 	}
 	
-	
 	/**
-	 * The actual content of a Multipart message object is within a
-	 * Bodypart object. So this method gets the content and stores it to
-	 * the content object.
+	 * Collects the first plain text and HTML part and the attachments.
+	 * Only the content of multiparts is accessed, which is the structure
+	 * of the nested parts.
 	 * 
-	 * Note: this method has side effects to the parameter content!
+	 * Note: this method has side effects to the parameters textParts and
+	 * content!
 	 * 
-	 * @param bodyPart	the Bodypart object to process
-	 * @param conent	the MailContent object to store the date
-	 * @throws MessagingException 	if the message is expunged or similar
-	 * @throws IOException 			if the internet connection is lost
+	 * @param part		the part to walk
+	 * @param path		the path of the part within the message
+	 * @param textParts	receives the plain text part at 0 and HTML at 1
+	 * @param content	receives the attachments
+	 * @param sources	creates the sources of the attachments
 	 */
-	private static void parseBodyPart(final BodyPart bodyPart, 
-			final MailContent content) 
-			throws IOException, MessagingException {
-		Object obj = bodyPart.getContent();
-		if (bodyPart.getContentType().toLowerCase().contains("text")) {
-			if (bodyPart.getContentType().toLowerCase().contains("plain"))
-				content.setTextContent((String) obj);
-			if (bodyPart.getContentType().toLowerCase().contains("html"))
-				content.setHtmlContent((String) obj);
+	private static void walkPart(final Part part, final int[] path, 
+			final Part[] textParts, final MailContent content, 
+			final AttachmentSourceFactory sources) 
+			throws MessagingException, IOException {
+		boolean attachment = Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition());
+		if (!attachment && part.isMimeType("multipart/*")) { //$NON-NLS-1$
+			Multipart mp = (Multipart) part.getContent();
+			for (int i = 0; i < mp.getCount(); i++) {
+				int[] sub = Arrays.copyOf(path, path.length + 1);
+				sub[path.length] = i;
+				walkPart(mp.getBodyPart(i), sub, textParts, content, sources);
+			}
+			return;
 		}
-		if (obj instanceof Multipart) {
-			MailContent inline = parseMultipartContent((Multipart) obj);
-			if (inline.getTextContent() != null)
-				content.setTextContent(inline.getTextContent());
-			if (inline.getHtmlContent() != null)
-				content.setHtmlContent(inline.getHtmlContent());
-			if (inline.getAttachments() != null)
-				content.addAttachment(inline.getAttachments());
+		if (!attachment && part.isMimeType("text/plain")) { //$NON-NLS-1$
+			if (textParts[0] == null)
+				textParts[0] = part;
+			return;
 		}
-		if (obj instanceof DataHandler)
-			System.out.println("Content is DataHandler - is it the same as a BASE64DecoderStream?");
-		if (obj instanceof BodyPart)
-			System.out.println("A BodyPart should contain Multiparts, no Bodyparts!");
-		if (obj instanceof BASE64DecoderStream)
-			content.addAttachment(bodyPart.getFileName(), bodyPart.getSize(), 
-					bodyPart.getContentType(), (InputStream) obj);
-		
+		if (!attachment && part.isMimeType("text/html")) { //$NON-NLS-1$
+			if (textParts[1] == null)
+				textParts[1] = part;
+			return;
+		}
+		// all other parts, e.g. images or attached text files
+		content.addAttachment(new AttachmentData(part.getFileName(), 
+				part.getSize(), part.getContentType(), 
+				AttachmentData.encodingOf(part), sources.sourceOf(part, path)));
 	}
-
+	
+	private static String readText(final Part part) 
+			throws MessagingException, IOException {
+		Object obj = part.getContent();
+		return obj instanceof String ? (String) obj : null;
+	}
+	
 	// TODO: delete at given time
 	// ALL ANALYZE METHODS BELOW
 	// are just for testing purpose and may be deleted, 
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+/**
+ * MessageKey calculates the key identifying a message within its folder.
+ * <p>
+ * For folders with UIDs, the key combines the UIDVALIDITY and the UID of 
+ * the message, both 32 bit values in IMAP, so the key is unique without 
+ * any hashing. Folders without UIDs fall back to a 64 bit FNV-1a hash of 
+ * the Message-ID header.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ final class MessageKey {
+
+	/* no key has been calculated yet */
+	/*private*/ static final long NONE = 0;
+	
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private MessageKey() {
+		// utility class
+	}
+	
+	/**
+	 * @param uidValidity	the UIDVALIDITY of the folder
+	 * @param uid			the UID of the message
+	 * @return				the key of the message
+	 */
+	/*private*/ static long of(final long uidValidity, final long uid) {
+		return (uidValidity << 32) | (uid & 0xffffffffL);
+	}
+	
+	/**
+	 * @param messageId	the Message-ID header of the message, or any other 
+	 * text identifying the message, if it has no Message-ID
+	 * @return			the key of the message
+	 */
+	/*private*/ static long ofMessageId(final String messageId) {
+		long hash = FNV_OFFSET;
+		for (int i = 0; i < messageId.length(); ++i) {
+			char c = messageId.charAt(i);
+			hash ^= c & 0xff;
+			hash *= FNV_PRIME;
+			hash ^= c >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return hash == NONE ? 1 : hash;
+	}
+}
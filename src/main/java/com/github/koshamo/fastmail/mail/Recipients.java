@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.Objects;
+
+/**
+ * The recipients of a message, as parsed from the To and Cc headers.
+ * <p>
+ * The headers are parsed once, so the addresses and names of all 
+ * recipients can be read without parsing the headers again. Recipients, 
+ * that are members of an address group (RFC 5322), keep the name of 
+ * their group.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public final class Recipients {
+
+	/* the recipients of a message without To and Cc headers */
+	/*private*/ static final Recipients EMPTY = 
+			new Recipients(new Recipient[0], null);
+	
+	private final Recipient[] to;
+	private final Recipient[] cc;
+	private final String[] toAddresses;
+	private final String[] toNames;
+	private final String[] ccAddresses;
+	private final String[] ccNames;
+	
+	/**
+	 * @param to	the direct recipients
+	 * @param cc	the indirect recipients, null if the message has no 
+	 * Cc header
+	 */
+	/*private*/ Recipients(final Recipient[] to, final Recipient[] cc) {
+		this.to = Objects.requireNonNull(to, "to must not be null");
+		this.cc = cc;
+		toAddresses = new String[to.length];
+		toNames = new String[to.length];
+		for (int i = 0; i < to.length; ++i) {
+			toAddresses[i] = to[i].getAddress();
+			toNames[i] = to[i].getName();
+		}
+		if (cc != null) {
+			ccAddresses = new String[cc.length];
+			ccNames = new String[cc.length];
+			for (int i = 0; i < cc.length; ++i) {
+				ccAddresses[i] = cc[i].getAddress();
+				ccNames[i] = cc[i].getName();
+			}
+		} else {
+			ccAddresses = null;
+			ccNames = null;
+		}
+	}
+	
+	/**
+	 * @return	the direct recipients
+	 */
+	public Recipient[] getTo() {
+		return to;
+	}
+	
+	/**
+	 * @return	the indirect recipients, null if the message has no Cc header
+	 */
+	public Recipient[] getCc() {
+		return cc;
+	}
+	
+	/**
+	 * @return	the addresses of the direct recipients
+	 */
+	public String[] getToAddresses() {
+		return toAddresses;
+	}
+	
+	/**
+	 * @return	the display names of the direct recipients, entries are null
+	 * for recipients without display name
+	 */
+	public String[] getToNames() {
+		return toNames;
+	}
+	
+	/**
+	 * @return	the addresses of the indirect recipients, null if the message
+	 * has no Cc header
+	 */
+	public String[] getCcAddresses() {
+		return ccAddresses;
+	}
+	
+	/**
+	 * @return	the display names of the indirect recipients, null if the 
+	 * message has no Cc header
+	 */
+	public String[] getCcNames() {
+		return ccNames;
+	}
+	
+	
+	/**
+	 * A single recipient of a message
+	 * 
+	 * @author Dr. Jochen Raßler
+	 *
+	 */
+	public static final class Recipient {
+		private final String address;
+		private final String name;
+		private final String group;
+		
+		/**
+		 * @param address	the mail address
+		 * @param name		the decoded display name, may be null
+		 * @param group		the name of the address group the recipient 
+		 * belongs to, null if not addressed by a group
+		 */
+		/*private*/ Recipient(final String address, final String name, 
+				final String group) {
+			this.address = Objects.requireNonNull(address, "address must not be null");
+			this.name = name;
+			this.group = group;
+		}
+		
+		/**
+		 * @return	the mail address
+		 */
+		public String getAddress() {
+			return address;
+		}
+		
+		/**
+		 * @return	the decoded display name, may be null
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return	the name of the address group, null if the recipient
+		 * is not addressed by a group
+		 */
+		public String getGroup() {
+			return group;
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			if (name == null)
+				return address;
+			return name + " <" + address + ">"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.Objects;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+/**
+ * A mail found by a search, together with the folder it is stored in
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public final class SearchHit {
+
+	private final String account;
+	private final String folder;
+	private final EmailTableData mail;
+	
+	/**
+	 * @param account	the account of the mail
+	 * @param folder	the full name of the folder of the mail
+	 * @param mail		the table data of the mail
+	 */
+	public SearchHit(final String account, final String folder, 
+			final EmailTableData mail) {
+		this.account = Objects.requireNonNull(account, "account must not be null");
+		this.folder = Objects.requireNonNull(folder, "folder must not be null");
+		this.mail = Objects.requireNonNull(mail, "mail must not be null");
+	}
+
+	/**
+	 * @return the account
+	 */
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return the folder
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the mail
+	 */
+	public EmailTableData getMail() {
+		return mail;
+	}
+	
+}
@@ -0,0 +1,744 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.github.koshamo.fastmail.FastmailGlobals;
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+/**
+ * The SearchIndex is an inverted index of the mails of all accounts, kept 
+ * in memory.
+ * <p>
+ * The mails are added by the folders, while their mail lists are built 
+ * and synchronized, so the sender and subject of all listed mails are 
+ * searchable. The text of a mail is added, as soon as its content has been
+ * parsed, e.g. when the mail has been shown or prefetched. Expunged mails
+ * are removed.
+ * <p>
+ * The index does not keep the table data of the mails, it refers to the
+ * mail lists of the folders, which are registered with their mails, and 
+ * takes the table data of the hits from them.
+ * <p>
+ * Every word is stored with the mails and positions it occurs at, so 
+ * the index can be searched for words, word prefixes and phrases. The 
+ * words of a query are case insensitive and all of them need to match. 
+ * Words ending with <code>*</code> match all words starting with the 
+ * word, words in quotes match as phrase. 
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ final class SearchIndex {
+
+	private static final SearchIndex INSTANCE = new SearchIndex();
+	
+	/* the mail fields are separated by gaps, so phrases do not match 
+	 * across fields */
+	private static final int FIELD_GAP = 16;
+	/* longer words are no words, but e.g. encoded data */
+	private static final int MAX_WORD_LENGTH = 64;
+	/* the postings of removed mails are removed, if there are more of them */
+	private static final int MIN_COMPACT_DOCS = 10000;
+	private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>"); //$NON-NLS-1$
+	
+	private final ReadWriteLock lock;
+	private final TreeMap<String, Postings> terms;
+	// the indexed mails by their document id, null for removed mails
+	private final List<Doc> docs;
+	private final Map<String, Integer> docIds;
+	// the folders of the indexed mails by their folder id
+	private final List<String> folderAccounts;
+	private final List<String> folderNames;
+	private final List<MailColumns> folderMails;
+	private final Map<String, Integer> folderIds;
+	// the number of mails without indexed text by their folder id
+	private int[] withoutText;
+	private int removed;
+	
+	/*private*/ SearchIndex() {
+		lock = new ReentrantReadWriteLock();
+		terms = new TreeMap<>();
+		docs = new ArrayList<>();
+		docIds = new HashMap<>();
+		folderAccounts = new ArrayList<>();
+		folderNames = new ArrayList<>();
+		folderMails = new ArrayList<>();
+		folderIds = new HashMap<>();
+		withoutText = new int[16];
+	}
+	
+	/*private*/ static SearchIndex getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Adds the sender and subject of a mail of a folder, whose mail list 
+	 * has been registered by addAll(). Mails already indexed are ignored.
+	 * 
+	 * @param account	the account of the mail
+	 * @param folder	the full name of the folder of the mail
+	 * @param mail		the table data of the mail
+	 */
+	/*private*/ void add(final String account, final String folder, 
+			final EmailTableData mail) {
+		String key = ContentCache.key(account, folder, mail.getUniqueID());
+		lock.writeLock().lock();
+		try {
+			if (!docIds.containsKey(key))
+				addDoc(new Doc(key, folderId(account, folder), mail), mail, null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Registers the mail list of a folder, which the hits are taken from,
+	 * and adds the sender and subject of its mails. The mails added to the 
+	 * list later on are added by add().
+	 * 
+	 * @param account	the account of the mails
+	 * @param folder	the full name of the folder of the mails
+	 * @param mails		the mail list of the folder
+	 */
+	/*private*/ void addAll(final String account, final String folder, 
+			final MailColumns mails) {
+		lock.writeLock().lock();
+		try {
+			int id = folderId(account, folder);
+			folderMails.set(id, mails);
+			for (int row = 0; row < mails.size(); ++row) {
+				String key = ContentCache.key(account, folder, mails.getKey(row));
+				if (!docIds.containsKey(key)) {
+					EmailTableData mail = mails.view(row);
+					addDoc(new Doc(key, id, mail), mail, null);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds the text of an indexed mail, mails not indexed are ignored
+	 * 
+	 * @param key		the key of the mail in the content cache
+	 * @param content	the parsed content of the mail
+	 */
+	/*private*/ void addContent(final String key, final MailContent content) {
+		String text = content.getTextContent();
+		if (text == null && content.getHtmlContent() != null)
+			text = HTML_TAG.matcher(content.getHtmlContent()).replaceAll(" "); //$NON-NLS-1$
+		if (text == null)
+			return;
+		lock.writeLock().lock();
+		try {
+			Integer id = docIds.get(key);
+			if (id == null)
+				return;
+			Doc doc = docs.get(id.intValue());
+			MailColumns mails = folderMails.get(doc.folder);
+			EmailTableData mail = mails != null ? mails.get(doc.uniqueID) : null;
+			if (doc.hasText || mail == null)
+				return;
+			// the postings are appended in document order, so the mail is 
+			// indexed again as new document
+			removeDoc(id.intValue());
+			Doc withText = new Doc(key, doc.folder, mail);
+			withText.hasText = true;
+			addDoc(withText, mail, text);
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param account	the account of the mail
+	 * @param folder	the full name of the folder of the mail
+	 * @param uniqueID	the message key of the mail
+	 */
+	/*private*/ void remove(final String account, final String folder, 
+			final long uniqueID) {
+		lock.writeLock().lock();
+		try {
+			Integer id = docIds.get(ContentCache.key(account, folder, uniqueID));
+			if (id != null)
+				removeDoc(id.intValue());
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes all mails of a folder, e.g. if it has been deleted or its 
+	 * mail list is built again
+	 * 
+	 * @param account	the account of the folder
+	 * @param folder	the full name of the folder
+	 */
+	/*private*/ void removeFolder(final String account, final String folder) {
+		removeMatching(account, folder);
+	}
+	
+	/**
+	 * Removes all mails of an account
+	 * 
+	 * @param account	the account
+	 */
+	/*private*/ void removeAccount(final String account) {
+		removeMatching(account, null);
+	}
+	
+	/**
+	 * Searches the mails matching all words of the query. The hits are
+	 * ordered by their sent date, the newest first. The table data is only
+	 * taken from the mail lists for the hits returned.
+	 * 
+	 * @param query		the words to search for
+	 * @param account	the account to search in, null for all accounts
+	 * @param folder	the full name of the folder to search in, null for
+	 * all folders of the account
+	 * @param maxHits	the maximum number of hits
+	 * @return			the matching mails
+	 */
+	/*private*/ List<SearchHit> search(final String query, final String account, 
+			final String folder, final int maxHits) {
+		List<Clause> clauses = parse(query);
+		List<SearchHit> hits = new ArrayList<>();
+		if (clauses.isEmpty())
+			return hits;
+		List<Doc> found = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			BitSet matches = null;
+			for (Clause clause : clauses) {
+				BitSet docSet = clause.evaluate();
+				if (matches == null)
+					matches = docSet;
+				else
+					matches.and(docSet);
+				if (matches.isEmpty())
+					return hits;
+			}
+			BitSet folders = new BitSet(folderNames.size());
+			for (int f = 0; f < folderNames.size(); ++f)
+				if ((account == null || account.equals(folderAccounts.get(f)))
+						&& (folder == null || folder.equals(folderNames.get(f))))
+					folders.set(f);
+			for (int d = matches.nextSetBit(0); d >= 0; d = matches.nextSetBit(d + 1)) {
+				Doc doc = docs.get(d);
+				if (doc != null && folders.get(doc.folder))
+					found.add(doc);
+			}
+			found.sort(Comparator.comparingLong((Doc doc) -> doc.sentDate).reversed());
+			for (Doc doc : found) {
+				if (hits.size() == maxHits)
+					break;
+				MailColumns mails = folderMails.get(doc.folder);
+				EmailTableData mail = mails != null ? mails.get(doc.uniqueID) : null;
+				if (mail != null)
+					hits.add(new SearchHit(folderAccounts.get(doc.folder), 
+							folderNames.get(doc.folder), mail));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return hits;
+	}
+	
+	/**
+	 * @param account	the account of the folder
+	 * @param folder	the full name of the folder
+	 * @return			true, if the text of every indexed mail of the folder
+	 * has been indexed as well
+	 */
+	/*private*/ boolean isTextIndexed(final String account, final String folder) {
+		lock.readLock().lock();
+		try {
+			Integer id = folderIds.get(account + '\n' + folder);
+			return id == null || withoutText[id.intValue()] == 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return	the number of indexed mails
+	 */
+	/*private*/ int size() {
+		lock.readLock().lock();
+		try {
+			return docIds.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private int folderId(final String account, final String folder) {
+		String key = account + '\n' + folder;
+		Integer id = folderIds.get(key);
+		if (id == null) {
+			id = Integer.valueOf(folderNames.size());
+			folderIds.put(key, id);
+			folderAccounts.add(account);
+			folderNames.add(folder);
+			folderMails.add(null);
+			if (id.intValue() == withoutText.length)
+				withoutText = Arrays.copyOf(withoutText, 2 * withoutText.length);
+		}
+		return id.intValue();
+	}
+	
+	/**
+	 * Adds the words of a mail to the postings
+	 * 
+	 * @param doc	the mail to add
+	 * @param mail	the table data of the mail
+	 * @param text	the text of the mail, null if not available
+	 */
+	private void addDoc(final Doc doc, final EmailTableData mail, final String text) {
+		int id = docs.size();
+		docs.add(doc);
+		docIds.put(doc.key, Integer.valueOf(id));
+		if (!doc.hasText)
+			withoutText[doc.folder]++;
+		
+		Map<String, IntList> positions = new HashMap<>();
+		int pos = 0;
+		pos = collect(mail.getSubject(), pos, positions, Integer.MAX_VALUE);
+		pos = collect(mail.getFromName(), pos + FIELD_GAP, positions, Integer.MAX_VALUE);
+		pos = collect(mail.getFrom(), pos + FIELD_GAP, positions, Integer.MAX_VALUE);
+		collect(text, pos + FIELD_GAP, positions, FastmailGlobals.SEARCH_BODY_WORDS);
+		for (Map.Entry<String, IntList> entry : positions.entrySet()) {
+			Postings postings = terms.get(entry.getKey());
+			if (postings == null) {
+				postings = new Postings();
+				terms.put(entry.getKey(), postings);
+			}
+			postings.add(id, entry.getValue());
+		}
+	}
+	
+	private void removeDoc(final int id) {
+		Doc doc = docs.get(id);
+		if (doc == null)
+			return;
+		docs.set(id, null);
+		docIds.remove(doc.key);
+		if (!doc.hasText)
+			withoutText[doc.folder]--;
+		removed++;
+	}
+	
+	private void removeMatching(final String account, final String folder) {
+		lock.writeLock().lock();
+		try {
+			for (int f = 0; f < folderNames.size(); ++f)
+				if (account.equals(folderAccounts.get(f))
+						&& (folder == null || folder.equals(folderNames.get(f))))
+					folderMails.set(f, null);
+			for (int d = 0; d < docs.size(); ++d) {
+				Doc doc = docs.get(d);
+				if (doc != null && account.equals(folderAccounts.get(doc.folder))
+						&& (folder == null || folder.equals(folderNames.get(doc.folder))))
+					removeDoc(d);
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes the postings of removed mails and renumbers the remaining 
+	 * mails, if most of the mails have been removed
+	 */
+	private void compactIfNeeded() {
+		if (removed < MIN_COMPACT_DOCS || removed < docIds.size())
+			return;
+		int[] newIds = new int[docs.size()];
+		List<Doc> remaining = new ArrayList<>(docIds.size());
+		for (int d = 0; d < docs.size(); ++d) {
+			Doc doc = docs.get(d);
+			if (doc == null) {
+				newIds[d] = -1;
+				continue;
+			}
+			newIds[d] = remaining.size();
+			docIds.put(doc.key, Integer.valueOf(remaining.size()));
+			remaining.add(doc);
+		}
+		Iterator<Postings> it = terms.values().iterator();
+		while (it.hasNext()) {
+			Postings postings = it.next();
+			postings.renumber(newIds);
+			if (postings.size == 0)
+				it.remove();
+		}
+		docs.clear();
+		docs.addAll(remaining);
+		removed = 0;
+	}
+	
+	/**
+	 * Splits a text into lower case words and collects their positions
+	 * 
+	 * @param text		the text to split, may be null
+	 * @param start		the position of the first word
+	 * @param positions	the positions of the words
+	 * @param maxWords	the maximum number of words to collect
+	 * @return			the position after the last word
+	 */
+	private static int collect(final String text, final int start, 
+			final Map<String, IntList> positions, final int maxWords) {
+		if (text == null)
+			return start;
+		int pos = start;
+		for (String word : words(text)) {
+			if (pos - start >= maxWords)
+				break;
+			IntList list = positions.get(word);
+			if (list == null) {
+				list = new IntList();
+				positions.put(word, list);
+			}
+			list.add(pos++);
+		}
+		return pos;
+	}
+	
+	/**
+	 * Splits a text into lower case words of letters and digits
+	 * 
+	 * @param text	the text to split
+	 * @return		the words of the text
+	 */
+	/*private*/ static List<String> words(final String text) {
+		List<String> words = new ArrayList<>();
+		int begin = -1;
+		for (int i = 0; i <= text.length(); ++i) {
+			boolean letter = i < text.length() 
+					&& Character.isLetterOrDigit(text.charAt(i));
+			if (letter && begin < 0)
+				begin = i;
+			else if (!letter && begin >= 0) {
+				if (i - begin <= MAX_WORD_LENGTH)
+					words.add(text.substring(begin, i).toLowerCase(Locale.ROOT));
+				begin = -1;
+			}
+		}
+		return words;
+	}
+	
+	/**
+	 * Splits a query into its parts: the text of quoted phrases and the
+	 * single words, as they have been written.
+	 * 
+	 * @param query	the query to split
+	 * @return		the parts of the query
+	 */
+	/*private*/ static List<String> split(final String query) {
+		List<String> parts = new ArrayList<>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int end;
+			if (c == '"') {
+				end = query.indexOf('"', i + 1);
+				if (end < 0)
+					end = query.length();
+				parts.add(query.substring(i + 1, end));
+				end++;
+			} else {
+				end = i;
+				while (end < query.length() && !Character.isWhitespace(query.charAt(end)))
+					end++;
+				parts.add(query.substring(i, end));
+			}
+			i = end;
+		}
+		return parts;
+	}
+	
+	/**
+	 * Splits a query into its clauses: words in quotes are a phrase, words
+	 * ending with * are prefixes. Words joined by punctuation, like mail
+	 * addresses, match as phrase.
+	 * 
+	 * @param query	the query to parse
+	 * @return		the clauses, that all need to match
+	 */
+	private List<Clause> parse(final String query) {
+		List<Clause> clauses = new ArrayList<>();
+		for (String part : split(query)) {
+			List<String> words = words(part);
+			if (!words.isEmpty())
+				clauses.add(new Clause(words.toArray(new String[words.size()]), 
+						part.endsWith("*"))); //$NON-NLS-1$
+		}
+		return clauses;
+	}
+	
+	
+	/**
+	 * A mail of the index, its table data is kept by the mail list of its
+	 * folder
+	 */
+	private static final class Doc {
+		/*private*/ final String key;
+		/*private*/ final int folder;
+		/*private*/ final long uniqueID;
+		/*private*/ final long sentDate;
+		/*private*/ boolean hasText;
+		
+		/*private*/ Doc(final String key, final int folder, final EmailTableData mail) {
+			this.key = key;
+			this.folder = folder;
+			this.uniqueID = mail.getUniqueID();
+			this.sentDate = mail.getSentDateMillis();
+		}
+	}
+	
+	
+	/**
+	 * A growing list of primitive ints
+	 */
+	private static final class IntList {
+		/*private*/ int[] values = new int[4];
+		/*private*/ int size;
+		
+		/*private*/ void add(final int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+	
+	
+	/**
+	 * The mails and positions of a word. The entries are stored in 
+	 * ascending document order as sequence of the document id, the 
+	 * number of positions and the positions.
+	 */
+	private static final class Postings {
+		/*private*/ int[] data = new int[4];
+		/*private*/ int size;
+		
+		/*private*/ void add(final int doc, final IntList positions) {
+			int needed = size + 2 + positions.size;
+			if (needed > data.length)
+				data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+			data[size++] = doc;
+			data[size++] = positions.size;
+			System.arraycopy(positions.values, 0, data, size, positions.size);
+			size += positions.size;
+		}
+		
+		/*private*/ void addDocs(final BitSet docSet) {
+			for (int i = 0; i < size; i += 2 + data[i + 1])
+				docSet.set(data[i]);
+		}
+		
+		/**
+		 * @param newIds	the new document ids, -1 for removed documents
+		 */
+		/*private*/ void renumber(final int[] newIds) {
+			int write = 0;
+			for (int read = 0; read < size; ) {
+				int count = data[read + 1];
+				int id = newIds[data[read]];
+				if (id >= 0) {
+					data[write] = id;
+					System.arraycopy(data, read + 1, data, write + 1, count + 1);
+					write += 2 + count;
+				}
+				read += 2 + count;
+			}
+			size = write;
+			if (data.length > 2 * size + 4)
+				data = Arrays.copyOf(data, size);
+		}
+	}
+	
+	
+	/**
+	 * Reads the positions of the documents of postings in ascending 
+	 * document order
+	 */
+	private static final class Cursor {
+		private final Postings postings;
+		private int offset;
+		
+		/*private*/ Cursor(final Postings postings) {
+			this.postings = postings;
+		}
+		
+		/**
+		 * Moves to the entry of the document, the documents must be 
+		 * requested in ascending order
+		 * 
+		 * @param doc	the document to move to
+		 * @return		true, if the postings contain the document
+		 */
+		/*private*/ boolean moveTo(final int doc) {
+			while (offset < postings.size && postings.data[offset] < doc)
+				offset += 2 + postings.data[offset + 1];
+			return offset < postings.size && postings.data[offset] == doc;
+		}
+		
+		/**
+		 * @param position	the position to check in the current document
+		 * @return			true, if the word occurs at the position
+		 */
+		/*private*/ boolean hasPosition(final int position) {
+			int count = postings.data[offset + 1];
+			return Arrays.binarySearch(postings.data, offset + 2, 
+					offset + 2 + count, position) >= 0;
+		}
+	}
+	
+	
+	/**
+	 * A part of a query: a word or a phrase, whose last word may be a prefix
+	 */
+	private final class Clause {
+		private final String[] words;
+		private final boolean prefix;
+		
+		/*private*/ Clause(final String[] words, final boolean prefix) {
+			this.words = words;
+			this.prefix = prefix;
+		}
+		
+		/**
+		 * @param index	the index of the word in the clause
+		 * @return		the postings of all words matching the word
+		 */
+		private List<Postings> postingsOf(final int index) {
+			List<Postings> list = new ArrayList<>();
+			String word = words[index];
+			if (prefix && index == words.length - 1) {
+				NavigableMap<String, Postings> matching = 
+						terms.subMap(word, true, word + Character.MAX_VALUE, false);
+				list.addAll(matching.values());
+			} else {
+				Postings postings = terms.get(word);
+				if (postings != null)
+					list.add(postings);
+			}
+			return list;
+		}
+		
+		/**
+		 * @return	the documents matching the clause
+		 */
+		/*private*/ BitSet evaluate() {
+			BitSet docSet = null;
+			List<List<Postings>> postings = new ArrayList<>(words.length);
+			for (int w = 0; w < words.length; ++w) {
+				List<Postings> list = postingsOf(w);
+				postings.add(list);
+				BitSet wordDocs = new BitSet(docs.size());
+				for (Postings p : list)
+					p.addDocs(wordDocs);
+				if (docSet == null)
+					docSet = wordDocs;
+				else
+					docSet.and(wordDocs);
+				if (docSet.isEmpty())
+					return docSet;
+			}
+			if (words.length > 1)
+				retainPhrases(docSet, postings);
+			return docSet;
+		}
+		
+		/**
+		 * Removes the documents, whose words do not occur in order
+		 * 
+		 * @param docSet	the documents containing all words
+		 * @param postings	the postings of the words
+		 */
+		private void retainPhrases(final BitSet docSet, 
+				final List<List<Postings>> postings) {
+			List<List<Cursor>> cursors = new ArrayList<>(postings.size());
+			for (List<Postings> list : postings) {
+				List<Cursor> wordCursors = new ArrayList<>(list.size());
+				for (Postings p : list)
+					wordCursors.add(new Cursor(p));
+				cursors.add(wordCursors);
+			}
+			for (int d = docSet.nextSetBit(0); d >= 0; d = docSet.nextSetBit(d + 1)) {
+				List<List<Cursor>> present = new ArrayList<>(cursors.size());
+				for (List<Cursor> wordCursors : cursors) {
+					List<Cursor> inDoc = new ArrayList<>(1);
+					for (Cursor cursor : wordCursors)
+						if (cursor.moveTo(d))
+							inDoc.add(cursor);
+					present.add(inDoc);
+				}
+				if (!containsPhrase(present))
+					docSet.clear(d);
+			}
+		}
+		
+		private boolean containsPhrase(final List<List<Cursor>> present) {
+			for (Cursor first : present.get(0)) {
+				Postings p = first.postings;
+				int count = p.data[first.offset + 1];
+				for (int i = 0; i < count; ++i) {
+					int start = p.data[first.offset + 2 + i];
+					boolean match = true;
+					for (int w = 1; w < present.size() && match; ++w) {
+						match = false;
+						for (Cursor cursor : present.get(w))
+							if (cursor.hasPosition(start + w)) {
+								match = true;
+								break;
+							}
+					}
+					if (match)
+						return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * The ServerSearch searches the folders on the server with IMAP SEARCH,
+ * to find the mails the search index cannot answer for. Only folders, 
+ * whose mail list is still built, are searched by subject and sender. 
+ * The text of the mails is searched on explicit request only, in the
+ * folders, whose mails have not all been added to the index with their 
+ * text.
+ * <p>
+ * The query is translated into a search term, which requires every part
+ * of the query to be contained in the subject, the sender or, if 
+ * requested, the text of a mail. As IMAP SEARCH matches substrings, 
+ * prefixes are searched without their <code>*</code>.
+ * <p>
+ * The folders are searched one after another and the found mails are 
+ * delivered chunk by chunk, as their envelopes are fetched.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ final class ServerSearch {
+
+	private ServerSearch() {
+		// prevent instantiating
+	}
+	
+	/**
+	 * @param query		the words to search for
+	 * @param bodies	true, to search the text of the mails as well
+	 * @return			the search term or null, if the query contains no words
+	 */
+	/*private*/ static SearchTerm toSearchTerm(final String query, 
+			final boolean bodies) {
+		List<SearchTerm> terms = new ArrayList<>();
+		for (String part : SearchIndex.split(query)) {
+			String text = part.endsWith("*") //$NON-NLS-1$
+					? part.substring(0, part.length() - 1) : part;
+			text = text.trim();
+			if (text.isEmpty())
+				continue;
+			if (bodies)
+				terms.add(new OrTerm(new SearchTerm[] {
+						new SubjectTerm(text), 
+						new FromStringTerm(text), 
+						new BodyTerm(text)}));
+			else
+				terms.add(new OrTerm(
+						new SubjectTerm(text), new FromStringTerm(text)));
+		}
+		if (terms.isEmpty())
+			return null;
+		if (terms.size() == 1)
+			return terms.get(0);
+		return new AndTerm(terms.toArray(new SearchTerm[terms.size()]));
+	}
+	
+	/**
+	 * Searches the folders of the given accounts on the server
+	 * 
+	 * @param accounts	the accounts to search
+	 * @param folder	the full name of the folder to search, null to search
+	 * all folders of the accounts
+	 * @param query		the words to search for
+	 * @param bodies	true, to search the text of the mails, which is not
+	 * indexed, false to search the folders, whose mail list is still built
+	 * @param known		the keys of the mails already found, which are skipped
+	 * @param maxHits	the maximum number of mails to deliver
+	 * @param hits		receives the found mails chunk by chunk
+	 * @param cancelled	tells, if the search is not needed anymore
+	 */
+	/*private*/ static void search(final List<MailAccount> accounts, 
+			final String folder, final String query, final boolean bodies, 
+			final Set<String> known, final int maxHits, 
+			final Consumer<SearchHit[]> hits, final BooleanSupplier cancelled) {
+		SearchTerm term = toSearchTerm(query, bodies);
+		if (term == null)
+			return;
+		int delivered = 0;
+		for (MailAccount ma : accounts) {
+			if (delivered >= maxHits || cancelled.getAsBoolean())
+				return;
+			delivered += ma.searchServer(folder, term, bodies, known, 
+					maxHits - delivered, hits, cancelled);
+		}
+	}
+}
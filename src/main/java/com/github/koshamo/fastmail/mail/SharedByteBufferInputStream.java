@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * The SharedByteBufferInputStream reads a message from a ByteBuffer, 
+ * e.g. a memory-mapped region of the BodyStore.
+ * <p>
+ * As a SharedInputStream, MimeMessage and MimeBodyPart do not copy the 
+ * content of the parts, but create new streams on sub-regions of the 
+ * same buffer. So the content is served directly from the mapped file.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class SharedByteBufferInputStream extends InputStream 
+		implements SharedInputStream {
+
+	// the buffer containing the whole message, never moved
+	private final ByteBuffer whole;
+	// the region of this stream, positions are absolute within whole
+	private final ByteBuffer buffer;
+	private final int start;
+	private int mark;
+	
+	/**
+	 * @param whole	the buffer containing the message
+	 */
+	/*private*/ SharedByteBufferInputStream(final ByteBuffer whole) {
+		this(Objects.requireNonNull(whole, "whole must not be null"), 
+				0, whole.limit());
+	}
+	
+	private SharedByteBufferInputStream(final ByteBuffer whole, 
+			final int start, final int end) {
+		this.whole = whole;
+		this.start = start;
+		buffer = whole.duplicate();
+		buffer.limit(end);
+		buffer.position(start);
+		mark = start;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining())
+			return -1;
+		return buffer.get() & 0xff;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+		if (len == 0)
+			return 0;
+		if (!buffer.hasRemaining())
+			return -1;
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(final long n) {
+		if (n <= 0)
+			return 0;
+		int count = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#markSupported()
+	 */
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#mark(int)
+	 */
+	@Override
+	public synchronized void mark(final int readlimit) {
+		mark = buffer.position();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#reset()
+	 */
+	@Override
+	public synchronized void reset() {
+		buffer.position(mark);
+	}
+	
+	/* (non-Javadoc)
+	 * @see javax.mail.internet.SharedInputStream#getPosition()
+	 */
+	@Override
+	public long getPosition() {
+		return buffer.position() - start;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.mail.internet.SharedInputStream#newStream(long, long)
+	 */
+	@Override
+	public InputStream newStream(final long from, final long to) {
+		if (from < 0)
+			throw new IllegalArgumentException("from must not be negative");
+		int end = to == -1 ? buffer.limit() : start + (int) to;
+		return new SharedByteBufferInputStream(whole, start + (int) from, end);
+	}
+}
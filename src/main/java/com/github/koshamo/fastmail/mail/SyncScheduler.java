@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import com.github.koshamo.fastmail.util.MessageItem;
+import com.github.koshamo.fastmail.util.MessageMarket;
+import com.github.koshamo.fastmail.util.SerializeManager;
+
+/**
+ * The SyncScheduler builds the initial mail lists of the folders of an 
+ * account. 
+ * <p>
+ * The folders are synchronized concurrently, each worker uses a fetch
+ * connection of the account's connection pool. There is one worker less
+ * than the pool's cap of fetch connections, so a fetch connection is 
+ * left for loading mails, pages and attachments the user asks for, while
+ * large folders are synchronized. Only a pool with a single fetch 
+ * connection has to share it. Waiting folders are processed by priority:
+ * <li> the inbox first
+ * <li> the folder currently displayed
+ * <li> all other folders, the folder with the fewest mails first
+ * <p>
+ * When the user selects another folder, it is moved to the front of the
+ * waiting folders with prioritize(). Running and waiting folders are
+ * cancelled with shutdown().
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+/*private*/ class SyncScheduler {
+
+	private final ConnectionPool connectionPool;
+	private final ExecutorService workers;
+	private final PriorityBlockingQueue<SyncTask> queue;
+	private final Set<SyncTask> running;
+	private final AtomicLong sequence;
+	private volatile String displayedFolder;
+	private volatile boolean shutdown = false;
+	
+	/**
+	 * @param connectionPool	the connection pool providing the fetch connections
+	 */
+	/*private*/ SyncScheduler(final ConnectionPool connectionPool) {
+		this.connectionPool = Objects.requireNonNull(
+				connectionPool, "connectionPool must not be null");
+		// one fetch connection is kept for the requests of the user
+		int size = Math.max(connectionPool.getMaxFetchConnections() - 1, 1);
+		workers = Executors.newFixedThreadPool(size, runnable -> {
+			Thread thread = new Thread(runnable, "SyncScheduler"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		queue = new PriorityBlockingQueue<>(16, createComparator());
+		running = new HashSet<>();
+		sequence = new AtomicLong();
+	}
+	
+	/**
+	 * Queues the folder to build its initial mail list. The number of mails
+	 * is requested from the server (STATUS), so this should not be called
+	 * in the FX thread.
+	 * 
+	 * @param folderContent	the folder to synchronize
+	 */
+	/*private*/ void schedule(final FolderContent folderContent) {
+		Objects.requireNonNull(folderContent, "folderContent must not be null");
+		if (shutdown)
+			return;
+		queue.add(new SyncTask(folderContent, folderContent.getServerMessageCount(), 
+				sequence.getAndIncrement()));
+		workers.execute(this::runNext);
+	}
+	
+	/**
+	 * Moves the given folder in front of the waiting folders. The queue is
+	 * rebuilt, as the priorities of the queued tasks changed.
+	 * 
+	 * @param folderName	the full name of the folder displayed
+	 */
+	/*private*/ synchronized void prioritize(final String folderName) {
+		displayedFolder = folderName;
+		List<SyncTask> waiting = new ArrayList<>();
+		queue.drainTo(waiting);
+		queue.addAll(waiting);
+	}
+	
+	/**
+	 * Cancels all waiting folders and stops the running ones
+	 */
+	/*private*/ void shutdown() {
+		shutdown = true;
+		queue.clear();
+		synchronized (running) {
+			for (SyncTask task : running)
+				task.cancel();
+		}
+		workers.shutdownNow();
+	}
+	
+	/**
+	 * Every scheduled folder submits one call to the workers, which takes
+	 * the folder with the highest priority at that time.
+	 */
+	private void runNext() {
+		SyncTask task;
+		synchronized (this) {
+			task = queue.poll();
+		}
+		if (task == null || shutdown)
+			return;
+		synchronized (running) {
+			running.add(task);
+		}
+		try {
+			task.run();
+		} finally {
+			synchronized (running) {
+				running.remove(task);
+			}
+		}
+	}
+	
+	private Comparator<SyncTask> createComparator() {
+		return Comparator.comparingInt((SyncTask task) -> rank(task))
+				.thenComparingInt(task -> task.messageCount)
+				.thenComparingLong(task -> task.sequence);
+	}
+	
+	private int rank(final SyncTask task) {
+		String name = task.folderContent.getFolderName();
+		if ("INBOX".equalsIgnoreCase(name)) //$NON-NLS-1$
+			return 0;
+		if (name.equals(displayedFolder))
+			return 1;
+		return 2;
+	}
+	
+	/**
+	 * A SyncTask builds the mail list of a single folder using a fetch 
+	 * connection of the pool
+	 */
+	private class SyncTask implements Runnable {
+		/*private*/ final FolderContent folderContent;
+		/*private*/ final int messageCount;
+		/*private*/ final long sequence;
+		private volatile MailRef2EtdMapper mapper;
+		private volatile boolean cancelled = false;
+		
+		/*private*/ SyncTask(final FolderContent folderContent, 
+				final int messageCount, final long sequence) {
+			this.folderContent = folderContent;
+			this.messageCount = messageCount;
+			this.sequence = sequence;
+		}
+		
+		/*private*/ void cancel() {
+			cancelled = true;
+			MailRef2EtdMapper current = mapper;
+			if (current != null)
+				current.stop();
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			Store store;
+			try {
+				store = connectionPool.acquireFetchStore();
+			} catch (@SuppressWarnings("unused") InterruptedException e) {
+				return;
+			} catch (MessagingException e) {
+				postException(e);
+				folderContent.mailListFailed();
+				return;
+			}
+			try {
+				if (cancelled)
+					return;
+				mapper = folderContent.generateMail2EtdRunner();
+				if (cancelled)
+					return;
+				Folder folder = store.getFolder(folderContent.getFolderName());
+				mapper.setFolder(folder);
+				mapper.run();
+				folderContent.saveHeaderCache();
+				folderContent.mailListCompleted();
+			} catch (MessagingException e) {
+				connectionPool.invalidate(store);
+				postException(e);
+				folderContent.mailListFailed();
+			} finally {
+				connectionPool.releaseFetchStore(store);
+			}
+		}
+	}
+	
+	private static void postException(MessagingException e) {
+		MessageItem mItem = new MessageItem(
+				MessageFormat.format(
+						SerializeManager.getLocaleMessageBundle().getString("exception.mailaccess"),  //$NON-NLS-1$
+						e.getMessage()),
+				0.0, MessageItem.MessageType.EXCEPTION);
+		MessageMarket.getInstance().produceMessage(mItem);
+	}
+}
@@ -28,17 +28,30 @@ import javafx.beans.property.SimpleBooleanProperty;
  */
 public class EmailTableData implements Comparable<EmailTableData>{
 
+	private static final byte ATTACHMENT = 1;
+	private static final byte READ = 2;
+	private static final byte MARKED = 4;
+	private static final String[] NO_REFERENCES = new String[0];
+	
 	private final String from;
 	private final String fromName;
 	private final String subject;
-	private final Instant sentDate;
+	private final long sentDate;
 //	private final boolean attached;
 //	private boolean read;
 //	private boolean marked;
-	private final SimpleBooleanProperty attachment;
+	/* 
+	 * the flags are stored as bits, the properties are only created, if
+	 * they are requested, which happens for the rows shown in the table
+	 */
+	private byte flags;
+	private SimpleBooleanProperty attachment;
 	private SimpleBooleanProperty read;
 	private SimpleBooleanProperty marked;
-	private final String uniqueID;
+	private final long uniqueID;
+	// the headers linking the mail to its conversation thread
+	private String messageId;
+	private String[] references = NO_REFERENCES;
 
 	/**
 	 * @param from
@@ -48,17 +61,20 @@ public class EmailTableData implements Comparable<EmailTableData>{
 	 * @param attached
 	 * @param read
 	 * @param marked
-	 * @param uniqueID
+	 * @param uniqueID	the key identifying the message within its folder
 	 */
 	public EmailTableData(String from, String fromName, String subject, Instant sentDate, boolean attached,
-			boolean read, boolean marked, String uniqueID) {
+			boolean read, boolean marked, long uniqueID) {
 		this.from = from;
 		this.fromName = fromName;
 		this.subject = subject;
-		this.sentDate = sentDate;
-		this.attachment = new SimpleBooleanProperty(attached);
-		this.read = new SimpleBooleanProperty(read);
-		this.marked = new SimpleBooleanProperty(marked);
+		this.sentDate = sentDate.toEpochMilli();
+		if (attached)
+			flags |= ATTACHMENT;
+		if (read)
+			flags |= READ;
+		if (marked)
+			flags |= MARKED;
 		this.uniqueID = uniqueID;
 	}
 
@@ -70,10 +86,10 @@ public class EmailTableData implements Comparable<EmailTableData>{
 	@Override
 	public int compareTo(EmailTableData other) {
 		/* 
-		 * negate the Instant compareTo method, as we want to have the
+		 * negate the order of the dates, as we want to have the
 		 * latest mails on top of the list
 		 */
-		return -this.sentDate.compareTo(other.sentDate);
+		return -Long.compare(this.sentDate, other.sentDate);
 	}
 
 	/**
@@ -97,10 +113,45 @@ public class EmailTableData implements Comparable<EmailTableData>{
 		return subject;
 	}
 
+	/**
+	 * Sets the headers used to group the mail into conversation threads
+	 * 
+	 * @param messageId		the Message-ID of the mail, may be null
+	 * @param references	the Message-IDs of the References header, the 
+	 * 		parent of the mail last, may be null
+	 */
+	public void setThreadHeaders(String messageId, String[] references) {
+		this.messageId = messageId;
+		this.references = references == null || references.length == 0 
+				? NO_REFERENCES : references;
+	}
+
+	/**
+	 * @return the Message-ID, or null if unknown
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return the Message-IDs of the mails this mail refers to, the 
+	 * parent last, never null
+	 */
+	public String[] getReferences() {
+		return references;
+	}
+
 	/**
 	 * @return the sentDate
 	 */
 	public Instant getSentDateAsInstant() {
+		return Instant.ofEpochMilli(sentDate);
+	}
+
+	/**
+	 * @return the sentDate in milliseconds since the epoch
+	 */
+	public long getSentDateMillis() {
 		return sentDate;
 	}
 
@@ -108,34 +159,66 @@ public class EmailTableData implements Comparable<EmailTableData>{
 	 * @return the sentDate
 	 */
 	public String getSentDate() {
-		return sentDate.toString();
+		return getSentDateAsInstant().toString();
 	}
 
 	/**
 	 * @return the attached
 	 */
 	public boolean isAttachment() {
-		return attachment.get();
+		return (flags & ATTACHMENT) != 0;
 	}
 
 	/**
 	 * @return the read
 	 */
 	public boolean isRead() {
-		return read.get();
+		if (read != null)
+			return read.get();
+		return (flags & READ) != 0;
 	}
 
 	/**
 	 * @return the marked
 	 */
 	public boolean isMarked() {
-		return marked.get();
+		if (marked != null)
+			return marked.get();
+		return (flags & MARKED) != 0;
+	}
+
+	/**
+	 * Sets the read state. If the property exists, it has to be called in
+	 * the FX thread.
+	 * 
+	 * @param read the read state to set
+	 */
+	public void setRead(boolean read) {
+		if (this.read != null)
+			this.read.set(read);
+		else
+			flags = (byte) (read ? flags | READ : flags & ~READ);
+	}
+
+	/**
+	 * Sets the marked state. If the property exists, it has to be called in
+	 * the FX thread.
+	 * 
+	 * @param marked the marked state to set
+	 */
+	public void setMarked(boolean marked) {
+		if (this.marked != null)
+			this.marked.set(marked);
+		else
+			flags = (byte) (marked ? flags | MARKED : flags & ~MARKED);
 	}
 
 	/**
 	 * @return the read
 	 */
 	public SimpleBooleanProperty readProperty() {
+		if (read == null)
+			read = new SimpleBooleanProperty((flags & READ) != 0);
 		return read;
 	}
 
@@ -143,6 +226,8 @@ public class EmailTableData implements Comparable<EmailTableData>{
 	 * @return the marked
 	 */
 	public SimpleBooleanProperty markedProperty() {
+		if (marked == null)
+			marked = new SimpleBooleanProperty((flags & MARKED) != 0);
 		return marked;
 	}
 
@@ -150,14 +235,43 @@ public class EmailTableData implements Comparable<EmailTableData>{
 	 * @return the attached
 	 */
 	public SimpleBooleanProperty attachmentProperty() {
+		if (attachment == null)
+			attachment = new SimpleBooleanProperty(isAttachment());
 		return attachment;
 	}
 
 	/**
 	 * @return the uniqueID
 	 */
-	public String getUniqueID() {
+	public long getUniqueID() {
 		return uniqueID;
 	}
+
+	/* Mails are identified by their unique id only, the other fields
+	 * are derived from the message. The unique id identifies a mail within
+	 * its folder only, so rows of different folders may be equal. Where
+	 * rows of several folders are mixed, e.g. in a search result, they 
+	 * need to be told apart by their folder as well, like MailItemMeta 
+	 * and SearchHit do.
+	 * 
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Long.hashCode(uniqueID);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof EmailTableData))
+			return false;
+		return uniqueID == ((EmailTableData) obj).uniqueID;
+	}
 	
 }
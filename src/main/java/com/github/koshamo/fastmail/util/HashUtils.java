@@ -1,55 +0,0 @@
-/*
- * Copyright (C) 2018  Dr. Jochen Raßler
- * 
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- * 
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
- */
-
-package com.github.koshamo.fastmail.util;
-
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-/**
- * @author Dr. Jochen Raßler
- *
- */
-public class HashUtils {
-
-	/**
-	 * calculates the MD5 hash value from a given input string. 
-	 * 
-	 * This method is thread safe and internally uses a standard 
-	 * string encoding.
-	 *  
-	 * @param text	the text to be hashed
-	 * @return	the hash code
-	 */
-	public synchronized static String calcMD5Hash(String text) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.reset();
-			md.update(text.getBytes("UTF-8"));
-			return new String(md.digest(), "UTF-8");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		throw new IllegalStateException("unable to calculate MD5 hash");
-	}
-}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.util;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MailColumns keeps the table data of the mails of a folder column by
+ * column in parallel arrays instead of an EmailTableData object per mail:
+ * the message key, the sent date in milliseconds, the flags packed into a
+ * byte, the sender address and name, which are dictionary encoded, as most
+ * mails of a folder come from a few senders, the subject and the thread
+ * headers.
+ * <p>
+ * The mails are addressed by their row. EmailTableData objects are only
+ * created as views of single rows, e.g. for the rows shown by the table,
+ * changing a view does not change the columns. A mail is found by its
+ * message key in an open addressing table of rows. Removing a mail moves
+ * the last row into its place, so rows are stable only as long as no mail
+ * is removed.
+ * <p>
+ * All methods are synchronized, so the columns may be filled by the thread
+ * building the mail list, while they are read by others.
+ * 
+ * @author Dr. Jochen Raßler
+ * 
+ */
+public final class MailColumns {
+	
+	private static final byte ATTACHMENT = 1;
+	private static final byte READ = 2;
+	private static final byte MARKED = 4;
+	private static final int MIN_CAPACITY = 16;
+	/* a free slot of the key table, no string of the dictionary */
+	private static final int NONE = -1;
+	
+	private long[] keys;
+	private long[] dates;
+	private byte[] flags;
+	private int[] senders;
+	private int[] names;
+	private String[] subjects;
+	private String[] messageIds;
+	private String[][] references;
+	private int size;
+	// the rows by the hash of their key, probed linearly
+	private int[] slots;
+	// the distinct sender addresses and names
+	private final Map<String, Integer> codes;
+	private String[] strings;
+	private int stringCount;
+	
+	/**
+	 * Creates empty columns
+	 */
+	public MailColumns() {
+		this(MIN_CAPACITY);
+	}
+	
+	/**
+	 * @param capacity	the number of mails to reserve space for
+	 */
+	public MailColumns(final int capacity) {
+		int cap = Math.max(capacity, MIN_CAPACITY);
+		keys = new long[cap];
+		dates = new long[cap];
+		flags = new byte[cap];
+		senders = new int[cap];
+		names = new int[cap];
+		subjects = new String[cap];
+		messageIds = new String[cap];
+		references = new String[cap][];
+		slots = newSlots(cap);
+		codes = new HashMap<>();
+		strings = new String[MIN_CAPACITY];
+	}
+	
+	/**
+	 * Copies the columns, the copy is trimmed to the number of mails
+	 * 
+	 * @param other	the columns to copy
+	 */
+	private MailColumns(final MailColumns other) {
+		int cap = Math.max(other.size, MIN_CAPACITY);
+		keys = Arrays.copyOf(other.keys, cap);
+		dates = Arrays.copyOf(other.dates, cap);
+		flags = Arrays.copyOf(other.flags, cap);
+		senders = Arrays.copyOf(other.senders, cap);
+		names = Arrays.copyOf(other.names, cap);
+		subjects = Arrays.copyOf(other.subjects, cap);
+		messageIds = Arrays.copyOf(other.messageIds, cap);
+		references = Arrays.copyOf(other.references, cap);
+		size = other.size;
+		slots = newSlots(cap);
+		// the rows keep their slots, if the key table keeps its size
+		if (slots.length == other.slots.length)
+			System.arraycopy(other.slots, 0, slots, 0, slots.length);
+		else
+			for (int row = 0; row < size; ++row)
+				slots[freeSlot(keys[row])] = row;
+		codes = new HashMap<>(other.codes);
+		strings = Arrays.copyOf(other.strings, Math.max(other.stringCount, MIN_CAPACITY));
+		stringCount = other.stringCount;
+	}
+	
+	/**
+	 * @return	a copy of the columns, e.g. to hand them to another thread
+	 */
+	public synchronized MailColumns copy() {
+		return new MailColumns(this);
+	}
+	
+	/**
+	 * @return	the number of mails
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Appends a mail, if no mail with its message key is contained yet
+	 * 
+	 * @param mail	the table data of the mail
+	 * @return		true, if the mail has been added
+	 */
+	public synchronized boolean add(final EmailTableData mail) {
+		if (slotOf(mail.getUniqueID()) != NONE)
+			return false;
+		if (size == keys.length)
+			grow();
+		keys[size] = mail.getUniqueID();
+		dates[size] = mail.getSentDateMillis();
+		byte f = 0;
+		if (mail.isAttachment())
+			f |= ATTACHMENT;
+		if (mail.isRead())
+			f |= READ;
+		if (mail.isMarked())
+			f |= MARKED;
+		flags[size] = f;
+		senders[size] = encode(mail.getFrom());
+		names[size] = encode(mail.getFromName());
+		subjects[size] = mail.getSubject();
+		messageIds[size] = mail.getMessageId();
+		// most mails do not refer to others, they share no array
+		references[size] = mail.getReferences().length == 0 ? null : mail.getReferences();
+		slots[freeSlot(keys[size])] = size;
+		size++;
+		return true;
+	}
+	
+	/**
+	 * Removes a mail, the last row is moved into its place
+	 * 
+	 * @param key	the message key of the mail
+	 * @return		the table data of the removed mail or null, if it is
+	 * not contained
+	 */
+	public synchronized EmailTableData remove(final long key) {
+		int slot = slotOf(key);
+		if (slot == NONE)
+			return null;
+		int row = slots[slot];
+		EmailTableData removed = view(row);
+		clearSlot(slot);
+		int last = size - 1;
+		if (row != last) {
+			slots[slotOf(keys[last])] = row;
+			keys[row] = keys[last];
+			dates[row] = dates[last];
+			flags[row] = flags[last];
+			senders[row] = senders[last];
+			names[row] = names[last];
+			subjects[row] = subjects[last];
+			messageIds[row] = messageIds[last];
+			references[row] = references[last];
+		}
+		subjects[last] = null;
+		messageIds[last] = null;
+		references[last] = null;
+		size = last;
+		return removed;
+	}
+	
+	/**
+	 * @param key	the message key of a mail
+	 * @return		the row of the mail or -1, if it is not contained
+	 */
+	public synchronized int indexOf(final long key) {
+		int slot = slotOf(key);
+		return slot == NONE ? -1 : slots[slot];
+	}
+	
+	/**
+	 * @param key	the message key of a mail
+	 * @return		a view of the mail or null, if it is not contained
+	 */
+	public synchronized EmailTableData get(final long key) {
+		int slot = slotOf(key);
+		return slot == NONE ? null : view(slots[slot]);
+	}
+	
+	/**
+	 * Sets the read and marked state of a mail
+	 * 
+	 * @param key		the message key of the mail
+	 * @param read		the read state
+	 * @param marked	the marked state
+	 * @return			a view of the mail with its new state or null, if
+	 * it is not contained
+	 */
+	public synchronized EmailTableData setFlags(final long key, final boolean read,
+			final boolean marked) {
+		int slot = slotOf(key);
+		if (slot == NONE)
+			return null;
+		int row = slots[slot];
+		setFlag(row, READ, read);
+		setFlag(row, MARKED, marked);
+		return view(row);
+	}
+	
+	/**
+	 * Creates a view of a row, which is not bound to the columns
+	 * 
+	 * @param row	the row of the mail
+	 * @return		the table data of the mail
+	 */
+	public synchronized EmailTableData view(final int row) {
+		checkRow(row);
+		EmailTableData mail = new EmailTableData(decode(senders[row]),
+				decode(names[row]), subjects[row], Instant.ofEpochMilli(dates[row]),
+				(flags[row] & ATTACHMENT) != 0, (flags[row] & READ) != 0,
+				(flags[row] & MARKED) != 0, keys[row]);
+		mail.setThreadHeaders(messageIds[row], references[row]);
+		return mail;
+	}
+	
+	/**
+	 * @return	views of all mails in the order of their rows
+	 */
+	public synchronized EmailTableData[] toArray() {
+		EmailTableData[] mails = new EmailTableData[size];
+		for (int row = 0; row < size; ++row)
+			mails[row] = view(row);
+		return mails;
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		the message key of the mail
+	 */
+	public synchronized long getKey(final int row) {
+		checkRow(row);
+		return keys[row];
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		the sent date in milliseconds since the epoch
+	 */
+	public synchronized long getSentDateMillis(final int row) {
+		checkRow(row);
+		return dates[row];
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		the sender address
+	 */
+	public synchronized String getFrom(final int row) {
+		checkRow(row);
+		return decode(senders[row]);
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		the sender name, may be null
+	 */
+	public synchronized String getFromName(final int row) {
+		checkRow(row);
+		return decode(names[row]);
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		the subject
+	 */
+	public synchronized String getSubject(final int row) {
+		checkRow(row);
+		return subjects[row];
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		true, if the mail has attachments
+	 */
+	public synchronized boolean isAttachment(final int row) {
+		checkRow(row);
+		return (flags[row] & ATTACHMENT) != 0;
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		true, if the mail has been read
+	 */
+	public synchronized boolean isRead(final int row) {
+		checkRow(row);
+		return (flags[row] & READ) != 0;
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @return		true, if the mail is marked
+	 */
+	public synchronized boolean isMarked(final int row) {
+		checkRow(row);
+		return (flags[row] & MARKED) != 0;
+	}
+	
+	/**
+	 * @param row	the row of a mail
+	 * @param read	the read state to set
+	 */
+	public synchronized void setRead(final int row, final boolean read) {
+		checkRow(row);
+		setFlag(row, READ, read);
+	}
+	
+	/**
+	 * @param row		the row of a mail
+	 * @param marked	the marked state to set
+	 */
+	public synchronized void setMarked(final int row, final boolean marked) {
+		checkRow(row);
+		setFlag(row, MARKED, marked);
+	}
+	
+	/**
+	 * @return	the number of distinct sender addresses and names
+	 */
+	public synchronized int getSenderCount() {
+		return stringCount;
+	}
+	
+	private void setFlag(final int row, final byte flag, final boolean set) {
+		flags[row] = (byte) (set ? flags[row] | flag : flags[row] & ~flag);
+	}
+	
+	private void checkRow(final int row) {
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("row " + row + " of " + size); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	private int encode(final String str) {
+		if (str == null)
+			return NONE;
+		Integer code = codes.get(str);
+		if (code != null)
+			return code.intValue();
+		if (stringCount == strings.length)
+			strings = Arrays.copyOf(strings, 2 * strings.length);
+		strings[stringCount] = str;
+		codes.put(str, Integer.valueOf(stringCount));
+		return stringCount++;
+	}
+	
+	private String decode(final int code) {
+		return code == NONE ? null : strings[code];
+	}
+	
+	private void grow() {
+		int cap = 2 * keys.length;
+		keys = Arrays.copyOf(keys, cap);
+		dates = Arrays.copyOf(dates, cap);
+		flags = Arrays.copyOf(flags, cap);
+		senders = Arrays.copyOf(senders, cap);
+		names = Arrays.copyOf(names, cap);
+		subjects = Arrays.copyOf(subjects, cap);
+		messageIds = Arrays.copyOf(messageIds, cap);
+		references = Arrays.copyOf(references, cap);
+		slots = newSlots(cap);
+		for (int row = 0; row < size; ++row)
+			slots[freeSlot(keys[row])] = row;
+	}
+	
+	/**
+	 * @param capacity	the number of rows
+	 * @return			a free key table, at most half of it is used
+	 */
+	private static int[] newSlots(final int capacity) {
+		int[] table = new int[Integer.highestOneBit(capacity - 1) << 2];
+		Arrays.fill(table, NONE);
+		return table;
+	}
+	
+	private int home(final long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & (slots.length - 1);
+	}
+	
+	/**
+	 * @param key	the message key of a mail
+	 * @return		the slot of the mail or NONE, if it is not contained
+	 */
+	private int slotOf(final long key) {
+		int mask = slots.length - 1;
+		for (int slot = home(key); slots[slot] != NONE; slot = (slot + 1) & mask)
+			if (keys[slots[slot]] == key)
+				return slot;
+		return NONE;
+	}
+	
+	private int freeSlot(final long key) {
+		int mask = slots.length - 1;
+		int slot = home(key);
+		while (slots[slot] != NONE)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	/**
+	 * Frees a slot and moves the following rows of the probe sequence back,
+	 * so no row is separated from its home slot by a free slot
+	 * 
+	 * @param slot	the slot to free
+	 */
+	private void clearSlot(final int slot) {
+		int mask = slots.length - 1;
+		int hole = slot;
+		for (int next = (slot + 1) & mask; slots[next] != NONE; next = (next + 1) & mask) {
+			int home = home(keys[slots[next]]);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				slots[hole] = slots[next];
+				hole = next;
+			}
+		}
+		slots[hole] = NONE;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The MailThreader groups the mails of a folder into conversation 
+ * threads, following the algorithm of Jamie Zawinski, which is used by
+ * most mail clients.
+ * <p>
+ * Every mail and every message referenced by a mail gets a container, 
+ * identified by its Message-ID. The References and In-Reply-To headers 
+ * link the containers to trees, whose roots are the threads. Containers 
+ * of referenced messages, that are not part of the folder, remain empty;
+ * they are skipped, when the threads are read. Mails are added and 
+ * removed one by one, so the threads are kept up to date as mails arrive.
+ * <p>
+ * Every container knows the root of its thread through a union-find 
+ * pointer, which is compressed when followed, so finding the root of a
+ * thread and checking a link for cycles do not walk up the thread. A 
+ * mail costs nearly constant time per reference, so the threads of a 
+ * folder are built in nearly linear time even for long reply chains. 
+ * Only a mail, whose container has been linked by the references of 
+ * other mails and is moved below its own parent, walks its thread. The 
+ * sent date of the newest mail of a thread is cached in its root.
+ * <p>
+ * Mails without common references are not grouped by their subject.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailThreader {
+
+	private final Map<String, Container> containers;
+	private final Map<EmailTableData, Container> mails;
+	private final Set<Container> roots;
+	// former roots linked into another thread since the last query
+	private final List<Container> detached;
+	
+	/**
+	 * Creates an empty threader
+	 */
+	public MailThreader() {
+		containers = new HashMap<>();
+		mails = new HashMap<>();
+		roots = new LinkedHashSet<>();
+		detached = new ArrayList<>();
+	}
+	
+	/**
+	 * Creates the threads of the given mails
+	 * 
+	 * @param mails	the mails of a folder
+	 */
+	public MailThreader(final Collection<EmailTableData> mails) {
+		this();
+		for (EmailTableData mail : mails)
+			add(mail);
+		detached.clear();
+	}
+	
+	/**
+	 * Adds a mail to its thread
+	 * 
+	 * @param mail	the mail to add
+	 * @return		the root container of the thread containing the mail
+	 */
+	public Container add(final EmailTableData mail) {
+		if (mails.containsKey(mail))
+			return mails.get(mail).getRoot();
+		String id = mail.getMessageId();
+		Container container = id != null ? containers.get(id) : null;
+		// mails with duplicate Message-IDs get their own container
+		if (container == null || container.mail != null) {
+			container = new Container();
+			if (id != null && !containers.containsKey(id))
+				containers.put(id, container);
+			roots.add(container);
+		}
+		container.mail = mail;
+		mails.put(mail, container);
+		
+		// each reference is the parent of the following one, existing 
+		// links are kept, as they may come from a more complete chain
+		Container previous = null;
+		for (String ref : mail.getReferences()) {
+			Container refContainer = containers.get(ref);
+			if (refContainer == null) {
+				refContainer = new Container();
+				containers.put(ref, refContainer);
+				roots.add(refContainer);
+			}
+			// a root is an ancestor, if it is the root of the other thread
+			if (previous != null && refContainer.parent == null 
+					&& previous.getRoot() != refContainer)
+				link(previous, refContainer);
+			previous = refContainer;
+		}
+		// the last reference is the parent of the mail, even if the mail
+		// has been linked by the references of another mail
+		if (previous != null && previous != container 
+				&& container.parent != previous
+				&& !container.isAncestorOf(previous)) {
+			unlink(container);
+			link(previous, container);
+		}
+		Container root = container.getRoot();
+		root.updateLatest(mail.getSentDateMillis());
+		return root;
+	}
+	
+	/**
+	 * Removes a mail, its replies stay in the thread
+	 * 
+	 * @param mail	the mail to remove
+	 * @return		the root container of the thread, that contained the 
+	 * mail, or null if the mail is unknown
+	 */
+	public Container remove(final EmailTableData mail) {
+		Container container = mails.remove(mail);
+		if (container == null)
+			return null;
+		container.mail = null;
+		Container root = container.getRoot();
+		// the removed mail may have been the newest of the thread
+		root.latestValid = false;
+		// an empty container is only needed to connect other containers
+		if (container.children.isEmpty() && container.parent == null) {
+			roots.remove(container);
+			String id = mail.getMessageId();
+			if (id != null && containers.get(id) == container)
+				containers.remove(id);
+		}
+		return root;
+	}
+	
+	/**
+	 * Get the containers, that have been roots, but were linked into other
+	 * threads by the mails added since the last call. They are part of 
+	 * the threads returned by add().
+	 * 
+	 * @return	the former roots
+	 */
+	public List<Container> takeDetached() {
+		List<Container> taken = new ArrayList<>(detached);
+		detached.clear();
+		return taken;
+	}
+	
+	/**
+	 * @return	the number of mails
+	 */
+	public int size() {
+		return mails.size();
+	}
+	
+	/**
+	 * Get the threads containing at least one mail, the thread with the
+	 * newest mail first
+	 * 
+	 * @return	the root containers of the threads
+	 */
+	public List<Container> getThreads() {
+		List<Container> threads = new ArrayList<>(roots.size());
+		for (Container root : roots) {
+			// the sort key must not change while sorting
+			root.newest = root.getLatest();
+			if (root.newest != Long.MIN_VALUE)
+				threads.add(root);
+		}
+		threads.sort(Comparator.comparingLong((Container c) -> c.newest).reversed());
+		return threads;
+	}
+	
+	/**
+	 * Links a root below a container of another thread, which joins both
+	 * threads
+	 * 
+	 * @param parent	the new parent
+	 * @param child		the root to link
+	 */
+	private void link(final Container parent, final Container child) {
+		Container root = parent.getRoot();
+		child.parent = parent;
+		parent.children.add(child);
+		child.up = root;
+		if (child.latestValid)
+			root.updateLatest(child.latest);
+		else
+			root.latestValid = false;
+		if (roots.remove(child))
+			detached.add(child);
+	}
+	
+	/**
+	 * Splits a container and its replies off its thread. The containers 
+	 * moved need to find their new root, so they are walked once.
+	 * 
+	 * @param child	the container to make a root
+	 */
+	private void unlink(final Container child) {
+		if (child.parent == null)
+			return;
+		Container root = child.getRoot();
+		child.parent.children.remove(child);
+		child.parent = null;
+		child.up = null;
+		root.latestValid = false;
+		child.latestValid = false;
+		Deque<Container> pending = new ArrayDeque<>(child.children);
+		while (!pending.isEmpty()) {
+			Container c = pending.pop();
+			c.up = child;
+			for (Container reply : c.children)
+				pending.push(reply);
+		}
+		roots.add(child);
+	}
+	
+	
+	/**
+	 * A node of a thread. Its mail is null, if the message is referenced
+	 * by other mails, but not contained in the folder.
+	 */
+	public static final class Container {
+		/*private*/ EmailTableData mail;
+		/*private*/ Container parent;
+		/*private*/ final List<Container> children = new ArrayList<>(1);
+		/*private*/ long newest;
+		// points towards the root of the thread, null for the root
+		/*private*/ Container up;
+		// the newest sent date of the thread, kept by the root
+		/*private*/ long latest = Long.MIN_VALUE;
+		/*private*/ boolean latestValid = true;
+		
+		/**
+		 * @return	the mail or null, if the message is not contained
+		 */
+		public EmailTableData getMail() {
+			return mail;
+		}
+		
+		/**
+		 * Get the replies to this message. Replies to messages, that are 
+		 * not contained, are replies to this message as well.
+		 * 
+		 * @return	the containers with a mail, the oldest first
+		 */
+		public List<Container> getReplies() {
+			List<Container> replies = new ArrayList<>();
+			Deque<Container> pending = new ArrayDeque<>(children);
+			while (!pending.isEmpty()) {
+				Container c = pending.pop();
+				if (c.mail != null)
+					replies.add(c);
+				else
+					for (int i = c.children.size() - 1; i >= 0; --i)
+						pending.push(c.children.get(i));
+			}
+			replies.sort(Comparator.comparingLong(
+					(Container c) -> c.mail.getSentDateMillis()));
+			return replies;
+		}
+		
+		/**
+		 * @return	true, if this message has a reply contained in the folder
+		 */
+		public boolean hasReplies() {
+			Deque<Container> pending = new ArrayDeque<>(children);
+			while (!pending.isEmpty()) {
+				Container c = pending.pop();
+				if (c.mail != null)
+					return true;
+				for (Container child : c.children)
+					pending.push(child);
+			}
+			return false;
+		}
+		
+		/**
+		 * Only a container with replies, which is not the root of its 
+		 * thread, needs to walk up from the other container.
+		 * 
+		 * @param other	the container to check
+		 * @return		true, if this container is the other one or one of
+		 * its parents
+		 */
+		/*private*/ boolean isAncestorOf(final Container other) {
+			if (other == this)
+				return true;
+			if (children.isEmpty() || other.getRoot() != getRoot())
+				return false;
+			if (parent == null)
+				return true;
+			for (Container c = other; c != null; c = c.parent)
+				if (c == this)
+					return true;
+			return false;
+		}
+		
+		/**
+		 * @return	the root container of the thread
+		 */
+		public Container getRoot() {
+			Container root = this;
+			while (root.up != null)
+				root = root.up;
+			// path compression, the next call finds the root at once
+			Container c = this;
+			while (c.up != null && c.up != root) {
+				Container next = c.up;
+				c.up = root;
+				c = next;
+			}
+			return root;
+		}
+		
+		/**
+		 * Records the sent date of a mail added to the thread of this root
+		 * 
+		 * @param sentDate	the sent date of the mail
+		 */
+		/*private*/ void updateLatest(final long sentDate) {
+			if (latestValid && sentDate > latest)
+				latest = sentDate;
+		}
+		
+		/**
+		 * @return	true, if the container is the root of a thread
+		 */
+		public boolean isRoot() {
+			return parent == null;
+		}
+		
+		/**
+		 * The newest sent date of a thread is cached in its root, other 
+		 * containers walk their replies.
+		 * 
+		 * @return	the sent date of the newest mail of this container and 
+		 * its replies or Long.MIN_VALUE, if they contain no mail
+		 */
+		public long getLatest() {
+			if (parent == null && latestValid)
+				return latest;
+			long newestDate = Long.MIN_VALUE;
+			Deque<Container> pending = new ArrayDeque<>();
+			pending.push(this);
+			while (!pending.isEmpty()) {
+				Container c = pending.pop();
+				if (c.mail != null)
+					newestDate = Math.max(newestDate, 
+							c.mail.getSentDateMillis());
+				for (Container child : c.children)
+					pending.push(child);
+			}
+			if (parent == null) {
+				latest = newestDate;
+				latestValid = true;
+			}
+			return newestDate;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * @author Dr. Jochen Raßler
+ * 
+ */
+public class CompactMailListTest {
+	
+	@Test
+	public void testNewestMailsFirst() {
+		CompactMailList list = listOf(mail(1, "b", false), mail(3, "c", false), //$NON-NLS-1$ //$NON-NLS-2$
+				mail(2, "a", false)); //$NON-NLS-1$
+		assertEquals(Arrays.asList(mail(3, "", false), mail(2, "", false), mail(1, "", false)), list); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertSame(list.get(0), list.get(0));
+	}
+	
+	@Test
+	public void testSortBySubject() {
+		CompactMailList list = listOf(mail(1, "b", false), mail(3, "c", false), //$NON-NLS-1$ //$NON-NLS-2$
+				mail(2, "a", false)); //$NON-NLS-1$
+		List<EmailTableData> mirror = mirror(list);
+		list.sortBy(new String[] {"subject"}, new boolean[] {true}); //$NON-NLS-1$
+		assertEquals(Arrays.asList(2L, 1L, 3L), keys(list));
+		assertEquals(list, mirror);
+		
+		list.sortBy(new String[0], new boolean[0]);
+		assertEquals(Arrays.asList(3L, 2L, 1L), keys(list));
+		assertEquals(list, mirror);
+	}
+	
+	@Test
+	public void testFilterHidesMailsBecomingRead() {
+		CompactMailList list = listOf(mail(1, "a", false), mail(2, "b", true), //$NON-NLS-1$ //$NON-NLS-2$
+				mail(3, "c", false)); //$NON-NLS-1$
+		List<EmailTableData> mirror = mirror(list);
+		MailColumns mails = list.getMails();
+		list.setFilter(row -> !mails.isRead(row));
+		assertEquals(Arrays.asList(3L, 1L), keys(list));
+		assertEquals(list, mirror);
+		
+		list.updateFlags(Collections.singletonList(mail(3, "c", true))); //$NON-NLS-1$
+		assertEquals(Arrays.asList(1L), keys(list));
+		assertEquals(list, mirror);
+		
+		list.setFilter(null);
+		assertEquals(Arrays.asList(3L, 2L, 1L), keys(list));
+		assertTrue(list.get(0).isRead());
+		assertEquals(list, mirror);
+	}
+	
+	@Test
+	public void testMergeAndRemove() {
+		CompactMailList list = listOf(mail(1, "a", false), mail(5, "e", false)); //$NON-NLS-1$ //$NON-NLS-2$
+		List<EmailTableData> mirror = mirror(list);
+		List<EmailTableData> added = list.merge(Arrays.asList(mail(3, "c", false), //$NON-NLS-1$
+				mail(5, "e", false), mail(7, "g", false))); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(2, added.size());
+		assertEquals(Arrays.asList(7L, 5L, 3L, 1L), keys(list));
+		assertEquals(list, mirror);
+		
+		assertTrue(list.removeAll(Arrays.asList(mail(5, "", false), mail(1, "", false)))); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(list.removeAll(Collections.singletonList(mail(5, "", false)))); //$NON-NLS-1$
+		assertEquals(Arrays.asList(7L, 3L), keys(list));
+		assertEquals(list, mirror);
+		
+		// a removed mail may come back
+		assertEquals(1, list.merge(Collections.singletonList(mail(5, "e", true))).size()); //$NON-NLS-1$
+		assertEquals(Arrays.asList(7L, 5L, 3L), keys(list));
+		assertTrue(list.get(1).isRead());
+		assertEquals(list, mirror);
+	}
+	
+	@Test
+	public void testStateChangedInTheTableIsKept() {
+		CompactMailList list = listOf(mail(1, "a", false)); //$NON-NLS-1$
+		list.get(0).setRead(true);
+		list.get(0).setMarked(true);
+		assertTrue(list.getMails().isRead(0));
+		assertTrue(list.getMails().isMarked(0));
+	}
+	
+	private static CompactMailList listOf(final EmailTableData... mails) {
+		MailColumns columns = new MailColumns();
+		for (EmailTableData mail : mails)
+			columns.add(mail);
+		CompactMailList list = new CompactMailList();
+		list.setAll(columns, CompactMailList.sortNatural(columns));
+		return list;
+	}
+	
+	/* follows the changes reported by the list */
+	private static List<EmailTableData> mirror(final CompactMailList list) {
+		final List<EmailTableData> mirror = new ArrayList<>(list);
+		list.addListener((ListChangeListener<EmailTableData>) c -> {
+			while (c.next()) {
+				if (c.wasPermutated()) {
+					List<EmailTableData> former = new ArrayList<>(mirror.subList(c.getFrom(), c.getTo()));
+					for (int i = c.getFrom(); i < c.getTo(); ++i)
+						mirror.set(c.getPermutation(i), former.get(i - c.getFrom()));
+				} else if (c.wasRemoved() || c.wasAdded()) {
+					mirror.subList(c.getFrom(), c.getFrom() + c.getRemovedSize()).clear();
+					mirror.addAll(c.getFrom(), c.getAddedSubList());
+				}
+			}
+		});
+		return mirror;
+	}
+	
+	private static List<Long> keys(final List<EmailTableData> mails) {
+		List<Long> keys = new ArrayList<>();
+		for (EmailTableData mail : mails)
+			keys.add(Long.valueOf(mail.getUniqueID()));
+		return keys;
+	}
+	
+	private static EmailTableData mail(final long key, final String subject, final boolean read) {
+		return new EmailTableData("alice@example.org", "Alice", subject, //$NON-NLS-1$ //$NON-NLS-2$
+				Instant.ofEpochSecond(key), false, read, false, key);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.gui.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+
+import javafx.collections.transformation.FilteredList;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class QuickFilterTest {
+
+	private static final EmailTableData UNREAD = new EmailTableData(
+			"alice@example.org", "Alice Smith", "Quarterly Report", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			Instant.EPOCH, false, false, false, 1);
+	private static final EmailTableData READ = new EmailTableData(
+			"bob@example.org", null, "Lunch", //$NON-NLS-1$ //$NON-NLS-2$
+			Instant.EPOCH, false, true, false, 2);
+	
+	@Test
+	public void testEmptyFilter() {
+		QuickFilter filter = new QuickFilter("  ", false); //$NON-NLS-1$
+		assertTrue(filter.isEmpty());
+		assertTrue(filter.test(UNREAD));
+		assertTrue(filter.test(READ));
+		assertTrue(new QuickFilter(null, false).isEmpty());
+	}
+	
+	@Test
+	public void testWordsMatchIgnoringCase() {
+		assertTrue(new QuickFilter("report", false).test(UNREAD)); //$NON-NLS-1$
+		assertTrue(new QuickFilter("QUARTER", false).test(UNREAD)); //$NON-NLS-1$
+		assertTrue(new QuickFilter("smith", false).test(UNREAD)); //$NON-NLS-1$
+		assertTrue(new QuickFilter("alice@example", false).test(UNREAD)); //$NON-NLS-1$
+		assertFalse(new QuickFilter("lunch", false).test(UNREAD)); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testAllWordsNeedToMatch() {
+		assertTrue(new QuickFilter(" alice   report ", false).test(UNREAD)); //$NON-NLS-1$
+		assertFalse(new QuickFilter("alice lunch", false).test(UNREAD)); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testMissingFields() {
+		assertTrue(new QuickFilter("bob", false).test(READ)); //$NON-NLS-1$
+		assertFalse(new QuickFilter("smith", false).test(READ)); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testUnreadOnly() {
+		QuickFilter filter = new QuickFilter("", true); //$NON-NLS-1$
+		assertFalse(filter.isEmpty());
+		assertTrue(filter.test(UNREAD));
+		assertFalse(filter.test(READ));
+		assertFalse(new QuickFilter("lunch", true).test(READ)); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testStateAndTextApart() {
+		QuickFilter filter = new QuickFilter("lunch", true); //$NON-NLS-1$
+		assertTrue(filter.matchesText(READ));
+		assertFalse(filter.matchesState(READ));
+		assertTrue(filter.matchesState(UNREAD));
+		assertFalse(filter.matchesText(UNREAD));
+	}
+	
+	@Test
+	public void testReadMailLeavesUnreadFilter() {
+		EmailTableData mail = new EmailTableData("carol@example.org", null, "News", //$NON-NLS-1$ //$NON-NLS-2$
+				Instant.EPOCH, false, false, false, 3);
+		SortedMailList model = new SortedMailList();
+		model.setAllSorted(Arrays.asList(mail, UNREAD));
+		FilteredList<EmailTableData> filtered = new FilteredList<>(model);
+		filtered.setPredicate(new QuickFilter("", true)); //$NON-NLS-1$
+		assertEquals(2, filtered.size());
+		
+		// the mail is read, while it is shown
+		mail.setRead(true);
+		model.refresh(Collections.singletonList(mail));
+		assertEquals(1, filtered.size());
+		assertEquals(UNREAD, filtered.get(0));
+	}
+	
+	@Test
+	public void testContains() {
+		assertTrue(QuickFilter.contains("Hello World", "world")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(QuickFilter.contains("abc", "")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(QuickFilter.contains("ab", "abc")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(QuickFilter.contains(null, "a")); //$NON-NLS-1$
+	}
+}
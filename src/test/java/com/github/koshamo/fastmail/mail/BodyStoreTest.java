@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class BodyStoreTest {
+
+	private String userHome;
+	private BodyStore store;
+	
+	@Before
+	public void setUp() throws IOException {
+		// the store is written below the home directory
+		userHome = System.getProperty("user.home"); //$NON-NLS-1$
+		System.setProperty("user.home",  //$NON-NLS-1$
+				Files.createTempDirectory("fastmail").toString()); //$NON-NLS-1$
+		store = new BodyStore("test@example.org", "INBOX"); //$NON-NLS-1$ //$NON-NLS-2$
+		store.open(1);
+	}
+	
+	@After
+	public void tearDown() {
+		store.delete();
+		HeaderCache.deleteAccount("test@example.org"); //$NON-NLS-1$
+		System.setProperty("user.home", userHome); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testOldestMessagesAreEvicted() throws IOException {
+		// ten messages of 100 bytes exceed the bound of 500 bytes
+		for (int uid = 1; uid <= 10; ++uid)
+			store.append(uid, message(uid), 500);
+		
+		// the sixth and the ninth message exceeded the bound, each time 
+		// the oldest messages were evicted down to three quarters of it
+		for (int uid = 1; uid <= 6; ++uid)
+			assertNull(store.get(uid));
+		for (int uid = 7; uid <= 10; ++uid)
+			assertContent(uid);
+		
+		// the compacted store is read again
+		store.close();
+		store.open(1);
+		assertNull(store.get(6));
+		for (int uid = 7; uid <= 10; ++uid)
+			assertContent(uid);
+	}
+	
+	@Test
+	public void testLargeMessageIsKept() throws IOException {
+		store.append(1, message(1), 500);
+		byte[] large = new byte[1000];
+		store.append(2, large, 500);
+		
+		assertNull(store.get(1));
+		assertEquals(1000, store.get(2).remaining());
+	}
+	
+	private void assertContent(final int uid) throws IOException {
+		ByteBuffer content = store.get(uid);
+		assertNotNull(content);
+		byte[] bytes = new byte[content.remaining()];
+		content.get(bytes);
+		assertEquals(Arrays.toString(message(uid)), Arrays.toString(bytes));
+	}
+	
+	private static byte[] message(final int uid) {
+		byte[] raw = new byte[100];
+		Arrays.fill(raw, (byte) uid);
+		return raw;
+	}
+}
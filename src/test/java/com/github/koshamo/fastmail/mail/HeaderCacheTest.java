@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class HeaderCacheTest {
+
+	private String userHome;
+	
+	@Before
+	public void setUp() throws IOException {
+		// the cache is written below the home directory
+		userHome = System.getProperty("user.home"); //$NON-NLS-1$
+		System.setProperty("user.home",  //$NON-NLS-1$
+				Files.createTempDirectory("fastmail").toString()); //$NON-NLS-1$
+	}
+	
+	@After
+	public void tearDown() {
+		HeaderCache.deleteAccount("test@example.org"); //$NON-NLS-1$
+		System.setProperty("user.home", userHome); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testStringsLongerThan64KB() {
+		char[] chars = new char[100000];
+		Arrays.fill(chars, 'ä');
+		String subject = new String(chars);
+		String[] references = {"<a@example.org>", subject}; //$NON-NLS-1$
+		EmailTableData mail = new EmailTableData("from@example.org", null,  //$NON-NLS-1$
+				subject, Instant.ofEpochSecond(60), true, false, true, 7);
+		mail.setThreadHeaders("<b@example.org>", references); //$NON-NLS-1$
+		MailColumns mails = new MailColumns();
+		mails.add(mail);
+		
+		new HeaderCache("test@example.org", "INBOX").save(5, 3, -1, mails, new long[] {3}); //$NON-NLS-1$ //$NON-NLS-2$
+		HeaderCache cache = new HeaderCache("test@example.org", "INBOX"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(cache.load());
+		
+		assertEquals(5, cache.getUidValidity());
+		assertEquals(3, cache.getLastUid());
+		assertArrayEquals(new long[] {3}, cache.getUids());
+		EmailTableData loaded = cache.getHeaders().view(0);
+		assertEquals(subject, loaded.getSubject());
+		assertNull(loaded.getFromName());
+		assertEquals(mail.getSentDateMillis(), loaded.getSentDateMillis());
+		assertTrue(loaded.isAttachment());
+		assertTrue(loaded.isMarked());
+		assertEquals(7, loaded.getUniqueID());
+		assertEquals("<b@example.org>", loaded.getMessageId()); //$NON-NLS-1$
+		assertArrayEquals(references, loaded.getReferences());
+	}
+}
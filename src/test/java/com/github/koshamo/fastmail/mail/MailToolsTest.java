@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.time.Instant;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.mail.Recipients.Recipient;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailToolsTest {
+
+	/* the recipients of the To header of the large message */
+	private static final int RECIPIENTS = 500;
+	/* the members of the group at the end of the To header */
+	private static final int GROUP = 10;
+	
+	@Test
+	public void testLargeRecipientHeaderIsParsedOnce() throws MessagingException {
+		CountingMessage message = largeMessage();
+		MailData mail = new MailData("from@example.org", "From", "Subject",  //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				Instant.EPOCH, Instant.EPOCH, false, message);
+		
+		String[] to = mail.getTo();
+		String[] names = mail.getToName();
+		assertEquals(RECIPIENTS, to.length);
+		assertEquals(RECIPIENTS, names.length);
+		for (int i = 0; i < RECIPIENTS; ++i)
+			assertSame(to[i], mail.getTo()[i]);
+		mail.getToAsLine();
+		mail.getCc();
+		mail.getCcName();
+		// one read of the To and the Cc header
+		assertEquals(2, message.reads);
+	}
+	
+	@Test
+	public void testLargeRecipientHeader() throws MessagingException {
+		Recipients recipients = MailTools.getRecipients(largeMessage());
+		
+		Recipient[] to = recipients.getTo();
+		assertEquals(RECIPIENTS, to.length);
+		assertEquals("user0@example.org", to[0].getAddress()); //$NON-NLS-1$
+		assertEquals("User 0", to[0].getName()); //$NON-NLS-1$
+		assertNull(to[0].getGroup());
+		// the encoded names are decoded
+		assertEquals("Jürgen 1", to[1].getName()); //$NON-NLS-1$
+		assertEquals("user1@example.org", to[1].getAddress()); //$NON-NLS-1$
+		assertNull(to[2].getName());
+		// the members of the group keep the name of their group
+		int first = RECIPIENTS - GROUP;
+		for (int i = first; i < RECIPIENTS; ++i) {
+			assertEquals("member" + (i - first) + "@example.org", to[i].getAddress()); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("Project Team", to[i].getGroup()); //$NON-NLS-1$
+		}
+		assertEquals(RECIPIENTS, recipients.getToAddresses().length);
+		assertArrayEquals(new String[] {"cc@example.org"}, recipients.getCcAddresses()); //$NON-NLS-1$
+		assertEquals("Carbon Copy", recipients.getCcNames()[0]); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testMessageWithoutRecipients() {
+		Recipients recipients = MailTools.getRecipients(
+				new MimeMessage(Session.getInstance(new Properties())));
+		assertEquals(0, recipients.getTo().length);
+		assertNull(recipients.getCc());
+		assertNull(recipients.getCcNames());
+	}
+	
+	/**
+	 * @return	a message with 500 direct recipients, some with encoded 
+	 * names, the last ones in a group
+	 */
+	/*package private*/ static CountingMessage largeMessage() 
+			throws MessagingException {
+		StringBuilder to = new StringBuilder();
+		for (int i = 0; i < RECIPIENTS - GROUP; ++i) {
+			if (i % 3 == 0)
+				to.append("User ").append(i); //$NON-NLS-1$
+			else if (i % 3 == 1)
+				to.append("=?UTF-8?Q?J=C3=BCrgen_").append(i).append("?="); //$NON-NLS-1$ //$NON-NLS-2$
+			to.append(" <user").append(i).append("@example.org>, "); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		to.append("Project Team: "); //$NON-NLS-1$
+		for (int i = 0; i < GROUP; ++i)
+			to.append(i > 0 ? ", " : "").append("member").append(i).append("@example.org"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		to.append(';');
+		CountingMessage message = new CountingMessage();
+		message.setHeader("To", to.toString()); //$NON-NLS-1$
+		message.setHeader("Cc", "Carbon Copy <cc@example.org>"); //$NON-NLS-1$ //$NON-NLS-2$
+		return message;
+	}
+	
+	/**
+	 * A message counting the reads of its recipient headers
+	 */
+	/*package private*/ static final class CountingMessage extends MimeMessage {
+		/*private*/ int reads;
+		
+		/*package private*/ CountingMessage() {
+			super(Session.getInstance(new Properties()));
+		}
+		
+		/* (non-Javadoc)
+		 * @see javax.mail.internet.MimeMessage#getRecipients(javax.mail.Message.RecipientType)
+		 */
+		@Override
+		public Address[] getRecipients(final Message.RecipientType type) 
+				throws MessagingException {
+			++reads;
+			return super.getRecipients(type);
+		}
+	}
+}
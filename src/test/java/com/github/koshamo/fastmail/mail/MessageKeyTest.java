@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MessageKeyTest {
+
+	@Test
+	public void testUidKeyCombinesValidityAndUid() {
+		assertEquals(0x0000000500000007L, MessageKey.of(5, 7));
+		assertEquals(0xffffffffffffffffL, MessageKey.of(0xffffffffL, 0xffffffffL));
+		assertNotEquals(MessageKey.of(1, 2), MessageKey.of(2, 1));
+	}
+	
+	@Test
+	public void testUidKeysAreUnique() {
+		Set<Long> keys = new HashSet<>();
+		for (long validity = 1; validity <= 10; ++validity)
+			for (long uid = 1; uid <= 1000; ++uid)
+				keys.add(Long.valueOf(MessageKey.of(validity, uid)));
+		assertEquals(10 * 1000, keys.size());
+	}
+	
+	@Test
+	public void testMessageIdKey() {
+		long key = MessageKey.ofMessageId("<1234@example.org>"); //$NON-NLS-1$
+		assertEquals(key, MessageKey.ofMessageId("<1234@example.org>")); //$NON-NLS-1$
+		assertNotEquals(key, MessageKey.ofMessageId("<1235@example.org>")); //$NON-NLS-1$
+		assertNotEquals(MessageKey.NONE, MessageKey.ofMessageId("")); //$NON-NLS-1$
+		// the high byte of a character is part of the hash
+		assertNotEquals(MessageKey.ofMessageId("A"),  //$NON-NLS-1$
+				MessageKey.ofMessageId("Ł")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testMessageIdKeysAreUnique() {
+		Set<Long> keys = new HashSet<>();
+		for (int i = 0; i < 100000; ++i) {
+			long key = MessageKey.ofMessageId("<" + i + "@example.org>"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertNotEquals(MessageKey.NONE, key);
+			keys.add(Long.valueOf(key));
+		}
+		assertEquals(100000, keys.size());
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.time.Instant;
+
+import javax.mail.MessagingException;
+
+import com.github.koshamo.fastmail.mail.MailToolsTest.CountingMessage;
+
+/**
+ * Measures the time to show the recipients of a message with 500 direct
+ * recipients. The mail view reads the addresses and names of all 
+ * recipients, which parsed the To header twice per recipient before the
+ * recipients were kept in a Recipients model. The benchmark is no unit 
+ * test, as its result depends on the machine, so it is run manually.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class RecipientsBenchmark {
+
+	private static final int RUNS = 1000;
+	
+	/**
+	 * @param args	not used
+	 * @throws MessagingException	if the test message cannot be built
+	 */
+	public static void main(String[] args) throws MessagingException {
+		CountingMessage message = MailToolsTest.largeMessage();
+		long best = Long.MAX_VALUE;
+		int reads = 0;
+		int recipients = 0;
+		// the first runs warm up the JIT
+		for (int run = 0; run < RUNS; ++run) {
+			message.reads = 0;
+			long begin = System.nanoTime();
+			MailData mail = new MailData("from@example.org", "From", "Subject",  //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					Instant.EPOCH, Instant.EPOCH, false, message);
+			String[] to = mail.getTo();
+			String[] names = mail.getToName();
+			for (int i = 0; i < to.length; ++i)
+				if (names[i] == null && to[i] == null)
+					throw new IllegalStateException();
+			mail.getCc();
+			best = Math.min(best, System.nanoTime() - begin);
+			reads = message.reads;
+			recipients = to.length;
+		}
+		System.out.printf("%d recipients shown in %.3f ms, %d header reads%n", //$NON-NLS-1$
+				Integer.valueOf(recipients),
+				Double.valueOf(best / 1e6), Integer.valueOf(reads));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import java.time.Instant;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+/**
+ * Measures the query time of the search index with 500k mails. The 
+ * benchmark is no unit test, as its result depends on the machine, so it
+ * is run manually and prints the best time of each query.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class SearchIndexBenchmark {
+
+	private static final int MAILS = 500000;
+	private static final int RUNS = 5;
+	
+	/**
+	 * @param args	not used
+	 */
+	public static void main(String[] args) {
+		SearchIndex index = new SearchIndex();
+		String[] names = {"Alice", "Bob", "Carol", "Dave", "Eve", "Frank"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		// the hits are taken from the mail lists of the folders
+		MailColumns inbox = new MailColumns(MAILS);
+		MailColumns archive = new MailColumns(MAILS / 10);
+		index.addAll("test@example.org", "INBOX", inbox); //$NON-NLS-1$ //$NON-NLS-2$
+		index.addAll("test@example.org", "Archive", archive); //$NON-NLS-1$ //$NON-NLS-2$
+		long start = System.nanoTime();
+		for (int i = 1; i <= MAILS; ++i) {
+			EmailTableData mail = new EmailTableData("mail" + i + "@example.org", names[i % names.length],  //$NON-NLS-1$ //$NON-NLS-2$
+					"Project topic" + (i % 5000) + " status update " + (i % 997), //$NON-NLS-1$ //$NON-NLS-2$
+					Instant.ofEpochSecond(i * 60L), false, false, false, i);
+			(i % 10 == 0 ? archive : inbox).add(mail);
+			index.add("test@example.org", i % 10 == 0 ? "Archive" : "INBOX", mail); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		System.out.printf("indexed %d mails in %d ms%n", //$NON-NLS-1$
+				Integer.valueOf(MAILS), Long.valueOf((System.nanoTime() - start) / 1000000));
+		String[] queries = {"topic42", "topic4*", "\"status update 17\"",  //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				"bob topic4*", "project"}; //$NON-NLS-1$ //$NON-NLS-2$
+		for (String query : queries) {
+			long best = Long.MAX_VALUE;
+			int hits = 0;
+			// the first runs warm up the JIT
+			for (int run = 0; run < RUNS; ++run) {
+				long begin = System.nanoTime();
+				hits = index.search(query, "test@example.org", null, 1000).size(); //$NON-NLS-1$
+				best = Math.min(best, System.nanoTime() - begin);
+			}
+			System.out.printf("%-22s %4d hits %8.1f ms%n", query,  //$NON-NLS-1$
+					Integer.valueOf(hits), Double.valueOf(best / 1e6));
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.util.EmailTableData;
+import com.github.koshamo.fastmail.util.MailColumns;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class SearchIndexTest {
+
+	private static final String ACCOUNT = "test@example.org"; //$NON-NLS-1$
+	private static final String INBOX = "INBOX"; //$NON-NLS-1$
+	private static final String ARCHIVE = "Archive"; //$NON-NLS-1$
+	
+	private SearchIndex index;
+	private Map<String, MailColumns> folders;
+	
+	@Before
+	public void setUp() {
+		index = new SearchIndex();
+		folders = new HashMap<>();
+	}
+	
+	@Test
+	public void testHitsAreTakenFromTheMailList() {
+		add(ACCOUNT, INBOX, mail(1, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		folders.get(ACCOUNT + '\n' + INBOX).setFlags(1, true, false);
+		
+		List<SearchHit> hits = index.search("invoice", null, null, 10); //$NON-NLS-1$
+		assertEquals(1, hits.size());
+		assertTrue(hits.get(0).getMail().isRead());
+		
+		// the mail list of a folder built again is registered again
+		index.removeFolder(ACCOUNT, INBOX);
+		MailColumns rebuilt = new MailColumns();
+		rebuilt.add(mail(1, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		index.addAll(ACCOUNT, INBOX, rebuilt);
+		hits = index.search("invoice", null, null, 10); //$NON-NLS-1$
+		assertEquals(1, hits.size());
+		assertFalse(hits.get(0).getMail().isRead());
+	}
+	
+	@Test
+	public void testWordsMatchIgnoringCase() {
+		add(ACCOUNT, INBOX, mail(1, "Quarterly Report", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, INBOX, mail(2, "Holiday plans", "Bob")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(ids(1), search("quarterly")); //$NON-NLS-1$
+		assertEquals(ids(1), search("REPORT alice")); //$NON-NLS-1$
+		assertEquals(ids(), search("report bob")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testPrefixQuery() {
+		add(ACCOUNT, INBOX, mail(1, "Meeting tomorrow", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, INBOX, mail(2, "Meet the team", "Bob")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, INBOX, mail(3, "Greetings", "Carol")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(ids(1, 2), search("meet*")); //$NON-NLS-1$
+		assertEquals(ids(2), search("meet")); //$NON-NLS-1$
+		assertEquals(ids(3), search("gree*")); //$NON-NLS-1$
+		assertEquals(ids(), search("eet*")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testPhraseQuery() {
+		add(ACCOUNT, INBOX, mail(1, "The quarterly report is ready", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, INBOX, mail(2, "Report on the quarterly numbers", "Bob")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(ids(1, 2), search("quarterly report")); //$NON-NLS-1$
+		assertEquals(ids(1), search("\"quarterly report\"")); //$NON-NLS-1$
+		assertEquals(ids(2), search("\"on the quarterly\"")); //$NON-NLS-1$
+		assertEquals(ids(1), search("\"quarterly rep*\"")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testPhraseDoesNotMatchAcrossFields() {
+		add(ACCOUNT, INBOX, mail(1, "Lunch with", "Alice Smith")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(ids(1), search("with alice")); //$NON-NLS-1$
+		assertEquals(ids(), search("\"with alice\"")); //$NON-NLS-1$
+		assertEquals(ids(1), search("\"alice smith\"")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testAddressMatchesAsPhrase() {
+		add(ACCOUNT, INBOX, mail(1, "Hello", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(ids(1), search("mail1@example.org")); //$NON-NLS-1$
+		assertEquals(ids(), search("mail2@example.org")); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testFolderAndAccountFilter() {
+		add(ACCOUNT, INBOX, mail(1, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, ARCHIVE, mail(2, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add("other@example.org", INBOX, mail(3, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		assertEquals(ids(1, 2, 3), ids(index.search("invoice", null, null, 100))); //$NON-NLS-1$
+		assertEquals(ids(1, 2), ids(index.search("invoice", ACCOUNT, null, 100))); //$NON-NLS-1$
+		assertEquals(ids(2), ids(index.search("invoice", ACCOUNT, ARCHIVE, 100))); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testHitsNewestFirstAndLimited() {
+		for (int i = 1; i <= 10; ++i)
+			add(ACCOUNT, INBOX, mail(i, "Status", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		List<SearchHit> hits = index.search("status", null, null, 3); //$NON-NLS-1$
+		assertEquals(3, hits.size());
+		assertEquals(10, hits.get(0).getMail().getUniqueID());
+		assertEquals(9, hits.get(1).getMail().getUniqueID());
+		assertEquals(8, hits.get(2).getMail().getUniqueID());
+	}
+	
+	@Test
+	public void testContentIsSearchable() {
+		add(ACCOUNT, INBOX, mail(1, "Hello", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(search("budget").isEmpty()); //$NON-NLS-1$
+		assertFalse(index.isTextIndexed(ACCOUNT, INBOX));
+		
+		index.addContent(ContentCache.key(ACCOUNT, INBOX, 1), 
+				content("The <b>budget</b> for next year")); //$NON-NLS-1$
+		
+		assertEquals(ids(1), search("budget")); //$NON-NLS-1$
+		assertEquals(ids(1), search("\"budget for next\"")); //$NON-NLS-1$
+		assertEquals(ids(), search("\"the b budget\"")); //$NON-NLS-1$
+		assertTrue(index.isTextIndexed(ACCOUNT, INBOX));
+		assertEquals(1, index.size());
+	}
+	
+	@Test
+	public void testRemove() {
+		add(ACCOUNT, INBOX, mail(1, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		add(ACCOUNT, ARCHIVE, mail(2, "Invoice", "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		index.remove(ACCOUNT, INBOX, 1);
+		assertEquals(ids(2), search("invoice")); //$NON-NLS-1$
+		index.removeFolder(ACCOUNT, ARCHIVE);
+		assertEquals(ids(), search("invoice")); //$NON-NLS-1$
+		assertEquals(0, index.size());
+	}
+	
+	@Test
+	public void testRemoveThenCompactRenumbers() {
+		// enough removals to compact the postings
+		final int count = 30000;
+		for (int i = 1; i <= count; ++i)
+			add(ACCOUNT, INBOX, mail(i, (i % 3 == 0 ? "Keep " : "Drop ") //$NON-NLS-1$ //$NON-NLS-2$
+					+ "word" + (i % 100), "Alice")); //$NON-NLS-1$ //$NON-NLS-2$
+		for (int i = 1; i <= count; ++i)
+			if (i % 3 != 0)
+				index.remove(ACCOUNT, INBOX, i);
+		assertEquals(count / 3, index.size());
+		
+		Set<Long> kept = new HashSet<>();
+		for (int i = 3; i <= count; i += 3)
+			kept.add(Long.valueOf(i));
+		assertEquals(kept, search("keep")); //$NON-NLS-1$
+		assertEquals(ids(), search("drop")); //$NON-NLS-1$
+		Set<Long> word42 = new HashSet<>();
+		for (int i = 42; i <= count; i += 100)
+			if (i % 3 == 0)
+				word42.add(Long.valueOf(i));
+		assertEquals(word42, search("\"keep word42\"")); //$NON-NLS-1$
+		
+		// the renumbered mails still get their text and new mails are added
+		index.addContent(ContentCache.key(ACCOUNT, INBOX, 300), 
+				content("renumbered text")); //$NON-NLS-1$
+		add(ACCOUNT, INBOX, mail(count + 1, "Keep fresh", "Bob")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(ids(300), search("renumbered")); //$NON-NLS-1$
+		assertEquals(ids(count + 1), search("fresh")); //$NON-NLS-1$
+		index.remove(ACCOUNT, INBOX, 300);
+		assertEquals(ids(), search("renumbered")); //$NON-NLS-1$
+		assertEquals(count / 3, index.size());
+	}
+	
+	/**
+	 * Adds a mail to the mail list of its folder and to the index, like the
+	 * folders do
+	 */
+	private void add(final String account, final String folder, 
+			final EmailTableData mail) {
+		MailColumns mails = folders.get(account + '\n' + folder);
+		if (mails == null) {
+			mails = new MailColumns();
+			folders.put(account + '\n' + folder, mails);
+			index.addAll(account, folder, mails);
+		}
+		mails.add(mail);
+		index.add(account, folder, mail);
+	}
+	
+	private Set<Long> search(final String query) {
+		return ids(index.search(query, null, null, Integer.MAX_VALUE));
+	}
+	
+	private static Set<Long> ids(final List<SearchHit> hits) {
+		Set<Long> ids = new HashSet<>();
+		for (SearchHit hit : hits)
+			ids.add(Long.valueOf(hit.getMail().getUniqueID()));
+		return ids;
+	}
+	
+	private static Set<Long> ids(final long... values) {
+		Set<Long> ids = new HashSet<>();
+		for (long value : values)
+			ids.add(Long.valueOf(value));
+		return ids;
+	}
+	
+	/**
+	 * @return	a mail sent id minutes after the epoch
+	 */
+	private static EmailTableData mail(final long id, final String subject, 
+			final String fromName) {
+		return new EmailTableData("mail" + id + "@example.org", fromName, subject,  //$NON-NLS-1$ //$NON-NLS-2$
+				Instant.ofEpochSecond(id * 60), false, false, false, id);
+	}
+	
+	private static MailContent content(final String html) {
+		MailContent content = new MailContent();
+		content.setHtmlContent(html);
+		return content;
+	}
+}
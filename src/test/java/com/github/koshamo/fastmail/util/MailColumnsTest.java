@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Dr. Jochen Raßler
+ * 
+ */
+public class MailColumnsTest {
+	
+	@Test
+	public void testViewsKeepTheFields() {
+		EmailTableData mail = new EmailTableData("alice@example.org", "Alice",  //$NON-NLS-1$ //$NON-NLS-2$
+				"Report", Instant.ofEpochMilli(1234567), true, false, true, 42); //$NON-NLS-1$
+		mail.setThreadHeaders("<b@example.org>", new String[] {"<a@example.org>"}); //$NON-NLS-1$ //$NON-NLS-2$
+		MailColumns mails = new MailColumns();
+		assertTrue(mails.add(mail));
+		assertFalse(mails.add(mail));
+		
+		EmailTableData view = mails.get(42);
+		assertEquals(mail, view);
+		assertEquals("alice@example.org", view.getFrom()); //$NON-NLS-1$
+		assertEquals("Alice", view.getFromName()); //$NON-NLS-1$
+		assertEquals("Report", view.getSubject()); //$NON-NLS-1$
+		assertEquals(1234567, view.getSentDateMillis());
+		assertTrue(view.isAttachment());
+		assertFalse(view.isRead());
+		assertTrue(view.isMarked());
+		assertEquals("<b@example.org>", view.getMessageId()); //$NON-NLS-1$
+		assertArrayEquals(new String[] {"<a@example.org>"}, view.getReferences()); //$NON-NLS-1$
+		assertNull(mails.get(43));
+	}
+	
+	@Test
+	public void testSendersAreStoredOnce() {
+		MailColumns mails = new MailColumns();
+		for (int i = 0; i < 1000; ++i)
+			mails.add(mail(i, i % 2 == 0 ? "Alice" : null)); //$NON-NLS-1$
+		
+		assertEquals(1000, mails.size());
+		// the addresses of both senders and the name of one
+		assertEquals(3, mails.getSenderCount());
+		assertNull(mails.getFromName(1));
+		assertEquals("Alice", mails.getFromName(2)); //$NON-NLS-1$
+	}
+	
+	@Test
+	public void testSetFlags() {
+		MailColumns mails = new MailColumns();
+		mails.add(mail(1, null));
+		
+		EmailTableData changed = mails.setFlags(1, true, true);
+		assertTrue(changed.isRead());
+		assertTrue(changed.isMarked());
+		assertTrue(mails.isRead(0));
+		assertFalse(mails.isAttachment(0));
+		assertNull(mails.setFlags(2, true, true));
+	}
+	
+	@Test
+	public void testCopyIsIndependent() {
+		MailColumns mails = new MailColumns();
+		mails.add(mail(1, null));
+		MailColumns copy = mails.copy();
+		
+		copy.setRead(0, true);
+		copy.add(mail(2, null));
+		assertFalse(mails.isRead(0));
+		assertEquals(1, mails.size());
+		assertEquals(2, copy.size());
+		assertEquals(0, copy.indexOf(1));
+	}
+	
+	@Test
+	public void testRemoveMovesTheLastRow() {
+		MailColumns mails = new MailColumns();
+		for (int i = 1; i <= 3; ++i)
+			mails.add(mail(i, null));
+		
+		assertEquals(1, mails.remove(1).getUniqueID());
+		assertNull(mails.remove(1));
+		assertEquals(2, mails.size());
+		assertEquals(0, mails.indexOf(3));
+		assertEquals(3, mails.getKey(0));
+		assertEquals(1, mails.indexOf(2));
+		assertEquals(-1, mails.indexOf(1));
+	}
+	
+	@Test
+	public void testKeysAreFoundAfterRemovals() {
+		MailColumns mails = new MailColumns();
+		Random random = new Random(7);
+		long[] keys = new long[20000];
+		for (int i = 0; i < keys.length; ++i) {
+			// message keys of folders with UIDs share their upper half
+			keys[i] = random.nextBoolean() ? (5L << 32) | i : random.nextLong();
+			mails.add(mail(keys[i], null));
+		}
+		for (int i = 0; i < keys.length; i += 2)
+			assertEquals(keys[i], mails.remove(keys[i]).getUniqueID());
+		
+		assertEquals(keys.length / 2, mails.size());
+		for (int i = 0; i < keys.length; ++i) {
+			int row = mails.indexOf(keys[i]);
+			if (i % 2 == 0)
+				assertEquals(-1, row);
+			else
+				assertEquals(keys[i], mails.getKey(row));
+		}
+	}
+	
+	private static EmailTableData mail(final long key, final String fromName) {
+		return new EmailTableData(fromName != null ? "alice@example.org" : "bob@example.org",  //$NON-NLS-1$ //$NON-NLS-2$
+				fromName, "Mail " + key, Instant.ofEpochMilli(key), false, false, false, key); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the time to build the threads of folders of growing size. 
+ * The mails form long reply chains, as they are the worst case of 
+ * walking up a thread. The time per mail should stay about the same, 
+ * when the number of mails doubles. The benchmark is no unit test, as its
+ * result depends on the machine, so it is run manually.
+ * 
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailThreaderBenchmark {
+
+	private static final int RUNS = 5;
+	// the mails of a chain, the chains are shuffled into each other
+	private static final int CHAIN = 10000;
+	
+	/**
+	 * @param args	not used
+	 */
+	public static void main(String[] args) {
+		for (int size = 50000; size <= 800000; size *= 2) {
+			List<EmailTableData> mails = new ArrayList<>(size);
+			for (int i = 0; i < size; ++i) {
+				int chain = i / CHAIN;
+				int pos = i % CHAIN;
+				EmailTableData mail = new EmailTableData("from@example.org", "From",  //$NON-NLS-1$ //$NON-NLS-2$
+						"Subject", Instant.ofEpochSecond(i * 60L), false, false, false, i); //$NON-NLS-1$
+				List<String> refs = new ArrayList<>();
+				for (int ref = Math.max(pos - 3, 0); ref < pos; ++ref)
+					refs.add("m" + chain + "." + ref); //$NON-NLS-1$ //$NON-NLS-2$
+				mail.setThreadHeaders("m" + chain + "." + pos,  //$NON-NLS-1$ //$NON-NLS-2$
+						refs.toArray(new String[refs.size()]));
+				mails.add(mail);
+			}
+			long ordered = measure(mails);
+			Collections.shuffle(mails, new Random(size));
+			long shuffled = measure(mails);
+			System.out.printf("%7d mails  ordered %6.1f ms %5.0f ns/mail  shuffled %6.1f ms %5.0f ns/mail%n", //$NON-NLS-1$
+					Integer.valueOf(size), Double.valueOf(ordered / 1e6), 
+					Double.valueOf((double) ordered / size),
+					Double.valueOf(shuffled / 1e6), 
+					Double.valueOf((double) shuffled / size));
+		}
+	}
+	
+	/**
+	 * @return	the best time in nanoseconds to thread the mails and read 
+	 * the threads
+	 */
+	private static long measure(final List<EmailTableData> mails) {
+		long best = Long.MAX_VALUE;
+		// the first runs warm up the JIT
+		for (int run = 0; run < RUNS; ++run) {
+			long begin = System.nanoTime();
+			new MailThreader(mails).getThreads();
+			best = Math.min(best, System.nanoTime() - begin);
+		}
+		return best;
+	}
+}
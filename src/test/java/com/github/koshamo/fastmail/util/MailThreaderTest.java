@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2018  Dr. Jochen Raßler
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.github.koshamo.fastmail.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.koshamo.fastmail.util.MailThreader.Container;
+
+/**
+ * @author Dr. Jochen Raßler
+ *
+ */
+public class MailThreaderTest {
+
+	@Test
+	public void testRepliesAreLinkedToTheirParent() {
+		EmailTableData first = mail(1, "a"); //$NON-NLS-1$
+		EmailTableData reply = mail(2, "b", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+		EmailTableData other = mail(3, "c"); //$NON-NLS-1$
+		MailThreader threader = new MailThreader();
+		threader.add(first);
+		Container root = threader.add(reply);
+		threader.add(other);
+		
+		assertSame(first, root.getMail());
+		assertEquals(1, root.getReplies().size());
+		assertSame(reply, root.getReplies().get(0).getMail());
+		List<Container> threads = threader.getThreads();
+		assertEquals(2, threads.size());
+		// the thread with the newest mail first
+		assertSame(other, threads.get(0).getMail());
+		assertEquals(3, threader.size());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testReplyBeforeParent() {
+		MailThreader threader = new MailThreader();
+		Container missing = threader.add(mail(2, "b", "a")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(missing.getMail());
+		
+		EmailTableData parent = mail(1, "a"); //$NON-NLS-1$
+		Container root = threader.add(parent);
+		assertSame(missing, root);
+		assertSame(parent, root.getMail());
+		assertEquals(1, threader.getThreads().size());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testRepliesToMissingMessageShareThread() {
+		MailThreader threader = new MailThreader();
+		Container first = threader.add(mail(2, "b", "a")); //$NON-NLS-1$ //$NON-NLS-2$
+		Container second = threader.add(mail(3, "c", "a")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertSame(first, second);
+		assertNull(first.getMail());
+		assertEquals(2, first.getReplies().size());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testDetachedRoots() {
+		MailThreader threader = new MailThreader();
+		Container former = threader.add(mail(2, "b")); //$NON-NLS-1$
+		threader.add(mail(1, "a")); //$NON-NLS-1$
+		assertTrue(threader.takeDetached().isEmpty());
+		
+		// c links b below a
+		Container root = threader.add(mail(3, "c", "a", "b")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertTrue(threader.takeDetached().contains(former));
+		assertFalse(former.isRoot());
+		assertSame(root, former.getRoot());
+		assertTrue(threader.takeDetached().isEmpty());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testRemoveKeepsReplies() {
+		EmailTableData parent = mail(1, "a"); //$NON-NLS-1$
+		EmailTableData reply = mail(2, "b", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+		MailThreader threader = new MailThreader(Arrays.asList(parent, reply));
+		
+		Container root = threader.remove(parent);
+		assertNull(root.getMail());
+		assertEquals(1, threader.getThreads().size());
+		assertSame(reply, threader.getThreads().get(0).getReplies().get(0).getMail());
+		assertNull(threader.remove(parent));
+		assertEquals(1, threader.size());
+		assertTree(threader);
+	}
+	
+	@Test(timeout = 1000)
+	public void testSelfReference() {
+		MailThreader threader = new MailThreader();
+		EmailTableData mail = mail(1, "a", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+		Container root = threader.add(mail);
+		
+		assertSame(mail, root.getMail());
+		assertTrue(root.isRoot());
+		assertFalse(root.hasReplies());
+		assertTree(threader);
+	}
+	
+	@Test(timeout = 1000)
+	public void testMutualReferences() {
+		MailThreader threader = new MailThreader();
+		EmailTableData a = mail(1, "a", "b"); //$NON-NLS-1$ //$NON-NLS-2$
+		EmailTableData b = mail(2, "b", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+		threader.add(a);
+		Container root = threader.add(b);
+		
+		assertSame(b, root.getMail());
+		assertEquals(1, threader.getThreads().size());
+		assertSame(a, root.getReplies().get(0).getMail());
+		assertTree(threader);
+	}
+	
+	@Test(timeout = 1000)
+	public void testConflictingReferenceChains() {
+		MailThreader threader = new MailThreader();
+		threader.add(mail(1, "x", "a", "b")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		threader.add(mail(2, "y", "b", "a")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		threader.add(mail(3, "a", "y")); //$NON-NLS-1$ //$NON-NLS-2$
+		threader.add(mail(4, "b", "x")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(1, threader.getThreads().size());
+		assertTree(threader);
+	}
+	
+	@Test(timeout = 1000)
+	public void testLongCycle() {
+		MailThreader threader = new MailThreader();
+		final int length = 100;
+		// each mail refers to the next one, the last to the first
+		for (int i = 0; i < length; ++i)
+			threader.add(mail(i, "m" + i, "m" + ((i + 1) % length))); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		assertEquals(1, threader.getThreads().size());
+		assertEquals(length, threader.size());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testDuplicateMessageIds() {
+		MailThreader threader = new MailThreader();
+		Container first = threader.add(mail(1, "a")); //$NON-NLS-1$
+		Container second = threader.add(mail(2, "a")); //$NON-NLS-1$
+		
+		assertNotSame(first, second);
+		assertEquals(2, threader.getThreads().size());
+		assertTree(threader);
+	}
+	
+	@Test
+	public void testLatestFollowsRemovedMails() {
+		EmailTableData parent = mail(1, "a"); //$NON-NLS-1$
+		EmailTableData reply = mail(5, "b", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+		EmailTableData other = mail(3, "c"); //$NON-NLS-1$
+		MailThreader threader = new MailThreader(Arrays.asList(parent, reply, other));
+		assertSame(parent, threader.getThreads().get(0).getMail());
+		assertEquals(reply.getSentDateMillis(), threader.getThreads().get(0).getLatest());
+		
+		threader.remove(reply);
+		assertSame(other, threader.getThreads().get(0).getMail());
+		assertEquals(parent.getSentDateMillis(), threader.getThreads().get(1).getLatest());
+	}
+	
+	@Test(timeout = 5000)
+	public void testLongReplyChain() {
+		final int length = 200000;
+		MailThreader threader = new MailThreader();
+		EmailTableData last = null;
+		// each mail refers to its parent only, the thread is as deep as long
+		for (int i = 1; i < length; ++i) {
+			last = mail(i, "m" + i, "m" + (i - 1)); //$NON-NLS-1$ //$NON-NLS-2$
+			threader.add(last);
+		}
+		threader.add(mail(0, "m0")); //$NON-NLS-1$
+		
+		List<Container> threads = threader.getThreads();
+		assertEquals(1, threads.size());
+		assertEquals(last.getSentDateMillis(), threads.get(0).getLatest());
+		assertSame(threads.get(0), threader.remove(last));
+	}
+	
+	@Test(timeout = 5000)
+	public void testLongReplyChainInReverse() {
+		final int length = 200000;
+		MailThreader threader = new MailThreader();
+		Container root = null;
+		// the replies arrive first, each mail refers to a few ancestors
+		for (int i = length - 1; i >= 3; --i)
+			root = threader.add(mail(i, "m" + i, "m" + (i - 3), "m" + (i - 2), "m" + (i - 1))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		threader.add(mail(2, "m2", "m0", "m1")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		threader.add(mail(1, "m1", "m0")); //$NON-NLS-1$ //$NON-NLS-2$
+		root = threader.add(mail(0, "m0")); //$NON-NLS-1$
+		
+		assertEquals(1, threader.getThreads().size());
+		assertEquals(length, threader.size());
+		assertSame(root, threader.getThreads().get(0));
+	}
+	
+	/**
+	 * Asserts, that the threads are trees containing every mail once
+	 */
+	private static void assertTree(final MailThreader threader) {
+		Map<EmailTableData, Boolean> seen = new IdentityHashMap<>();
+		for (Container root : threader.getThreads()) {
+			assertTrue(root.isRoot());
+			collect(root, root, seen, 0, threader.size());
+		}
+		assertEquals(threader.size(), seen.size());
+	}
+	
+	private static void collect(final Container container, final Container root, 
+			final Map<EmailTableData, Boolean> seen, final int depth, final int size) {
+		assertTrue("cycle in thread", depth <= size); //$NON-NLS-1$
+		assertSame(root, container.getRoot());
+		if (container.getMail() != null)
+			assertNull("mail in several threads",  //$NON-NLS-1$
+					seen.put(container.getMail(), Boolean.TRUE));
+		for (Container reply : container.getReplies())
+			collect(reply, root, seen, depth + 1, size);
+	}
+	
+	private static EmailTableData mail(final long id, final String messageId, 
+			final String... references) {
+		EmailTableData mail = new EmailTableData("from@example.org", "From",  //$NON-NLS-1$ //$NON-NLS-2$
+				"Subject", Instant.ofEpochSecond(id * 60), false, false, false, id); //$NON-NLS-1$
+		mail.setThreadHeaders(messageId, references);
+		return mail;
+	}
+}